@@ -36,6 +36,11 @@ android {
     buildFeatures {
         viewBinding = true
     }
+
+    // Local unit tests call into android.util.Log and the like, which are only stubs there
+    testOptions {
+        unitTests.isReturnDefaultValues = true
+    }
 }
 
 dependencies {
@@ -54,6 +59,9 @@ dependencies {
     implementation(libs.roundedimageview)
     implementation(libs.libsignal.android)
     testImplementation(libs.junit)
+    // android.jar only has stubs of org.json, which throw in local unit tests
+    testImplementation("org.json:json:20240303")
+    testImplementation("org.mockito:mockito-core:5.11.0")
     androidTestImplementation(libs.ext.junit)
     androidTestImplementation(libs.espresso.core)
     implementation("androidx.core:core-ktx:1.12.0")
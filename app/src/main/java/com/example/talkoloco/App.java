@@ -1,6 +1,8 @@
 package com.example.talkoloco;
 
 import android.app.Application;
+
+import com.example.talkoloco.controllers.UserController;
 import com.example.talkoloco.utils.ThemeManager;
 
 public class App extends Application {
@@ -8,6 +10,7 @@ public class App extends Application {
     public void onCreate() {
             super.onCreate();
             ThemeManager.getInstance(this).apply();
+            UserController.getInstance().init(this);
         }
 
     private void initializeTheme() {
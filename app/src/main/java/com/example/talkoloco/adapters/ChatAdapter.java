@@ -1,53 +1,128 @@
 package com.example.talkoloco.adapters;
 
 import android.graphics.Bitmap;
-import android.util.Base64;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.ImageView;
 
 import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListAdapter;
 import androidx.recyclerview.widget.RecyclerView;
 
+import com.example.talkoloco.R;
+import com.example.talkoloco.databinding.ItemContainerNoticeBinding;
 import com.example.talkoloco.databinding.ItemContainerReceivedMessageBinding;
 import com.example.talkoloco.databinding.ItemContainerSentMessageBinding;
+import com.example.talkoloco.listeners.MessageListener;
 import com.example.talkoloco.models.ChatMessages;
-import com.example.talkoloco.utils.ImageHandler;
+import com.example.talkoloco.utils.Constants;
+import com.example.talkoloco.utils.ImageLoader;
 
-import java.util.List;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
 
-public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
-    private final Bitmap receiverProfileImage;
-    private final List<ChatMessages> chatMessages;
+/**
+ * Shows the messages of a conversation. Lists submitted with {@link #submitList} are diffed
+ * against the shown list on a background thread, so adding a message only binds that message.
+ * Items have stable IDs derived from their Firestore document IDs.
+ */
+public class ChatAdapter extends ListAdapter<ChatMessages, RecyclerView.ViewHolder> {
+    private Bitmap receiverProfileImage;
     private final String sendId;
+    private final String conversationId;
+    private final MessageListener messageListener;
+    // Document IDs mapped to item IDs, assigned in order so they never collide
+    private final Map<String, Long> itemIds = new HashMap<>();
+
+    private static final DiffUtil.ItemCallback<ChatMessages> DIFF_CALLBACK = new DiffUtil.ItemCallback<ChatMessages>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull ChatMessages oldItem, @NonNull ChatMessages newItem) {
+            return Objects.equals(oldItem.messageId, newItem.messageId);
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull ChatMessages oldItem, @NonNull ChatMessages newItem) {
+            return Objects.equals(oldItem.message, newItem.message)
+                    && Objects.equals(oldItem.messageType, newItem.messageType)
+                    && Objects.equals(oldItem.mediaHash, newItem.mediaHash)
+                    && Arrays.equals(oldItem.thumbnail, newItem.thumbnail)
+                    && Objects.equals(oldItem.senderId, newItem.senderId)
+                    && Objects.equals(oldItem.dateTime, newItem.dateTime)
+                    && oldItem.isPending == newItem.isPending
+                    && oldItem.isFailed == newItem.isFailed;
+        }
+    };
 
     public static final int VIEW_TYPE_SENT = 1;
     public static final int VIEW_TYPE_RECEIVED = 2;
+    public static final int VIEW_TYPE_NOTICE = 3;
 
     /**
      * Constructs a new ChatAdapter.
      *
-     * @param chatMessages List of chat messages to display
      * @param receiverProfileImage Profile image of the message receiver
      * @param sendId ID of the message sender
+     * @param conversationId ID of the conversation, holding the media of image messages
+     * @param messageListener Listener for taps on messages that failed to be sent
      */
-    public ChatAdapter(List<ChatMessages> chatMessages, Bitmap receiverProfileImage, String sendId) {
+    public ChatAdapter(Bitmap receiverProfileImage, String sendId, String conversationId,
+                       MessageListener messageListener) {
+        super(DIFF_CALLBACK);
         this.receiverProfileImage = receiverProfileImage;
-        this.chatMessages = chatMessages;
         this.sendId = sendId;
+        this.conversationId = conversationId;
+        this.messageListener = messageListener;
+        setHasStableIds(true);
+    }
+
+    /**
+     * Shows a newly loaded profile image of the receiver next to their messages.
+     *
+     * @param receiverProfileImage Profile image of the message receiver
+     */
+    public void setReceiverProfileImage(Bitmap receiverProfileImage) {
+        this.receiverProfileImage = receiverProfileImage;
+        notifyItemRangeChanged(0, getItemCount());
+    }
+
+    /**
+     * Returns the stable ID of the message at the given position.
+     *
+     * @param position The position of the item in the list
+     * @return An ID that stays the same for the message's document
+     */
+    @Override
+    public long getItemId(int position) {
+        String messageId = getItem(position).messageId;
+        if (messageId == null) {
+            return RecyclerView.NO_ID;
+        }
+        Long itemId = itemIds.get(messageId);
+        if (itemId == null) {
+            itemId = (long) itemIds.size();
+            itemIds.put(messageId, itemId);
+        }
+        return itemId;
     }
 
     /**
-     * Creates appropriate ViewHolder based on the message type (sent or received).
+     * Creates appropriate ViewHolder based on the message type (sent, received or notice).
      *
      * @param parent The ViewGroup into which the new View will be added
-     * @param viewType The view type of the new View (VIEW_TYPE_SENT or VIEW_TYPE_RECEIVED)
-     * @return ViewHolder for either sent or received message
+     * @param viewType The view type of the new View (VIEW_TYPE_SENT, VIEW_TYPE_RECEIVED or VIEW_TYPE_NOTICE)
+     * @return ViewHolder for a sent message, a received message or a notice
      */
     @NonNull
     @Override
     public RecyclerView.ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
-        if (viewType == VIEW_TYPE_SENT) {
+        if (viewType == VIEW_TYPE_NOTICE) {
+            return new NoticeViewHolder(ItemContainerNoticeBinding
+                    .inflate(LayoutInflater.from(parent.getContext()), parent, false));
+        } else if (viewType == VIEW_TYPE_SENT) {
             return new SentMessageViewHolder(ItemContainerSentMessageBinding
                     .inflate(LayoutInflater.from(parent.getContext()), parent, false));
         } else {
@@ -64,16 +139,19 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
      */
     @Override
     public void onBindViewHolder(@NonNull RecyclerView.ViewHolder holder, int position) {
-        if (chatMessages == null || position >= chatMessages.size()) return;
+        if (position >= getItemCount()) return;
 
-        ChatMessages message = chatMessages.get(position);
+        ChatMessages message = getItem(position);
         if (message == null) return;
 
         try {
-            if (getItemViewType(position) == VIEW_TYPE_SENT) {
-                ((SentMessageViewHolder) holder).setData(message);
+            int viewType = getItemViewType(position);
+            if (viewType == VIEW_TYPE_NOTICE) {
+                ((NoticeViewHolder) holder).setData(message);
+            } else if (viewType == VIEW_TYPE_SENT) {
+                ((SentMessageViewHolder) holder).setData(message, conversationId, messageListener);
             } else {
-                ((ReceiverMessageViewHolder) holder).setData(message, receiverProfileImage);
+                ((ReceiverMessageViewHolder) holder).setData(message, receiverProfileImage, conversationId);
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -81,27 +159,72 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
     }
 
     /**
-     * Returns the total number of chat messages in the adapter.
+     * Cancels any image still being decoded for a recycled view.
      *
-     * @return The number of chat messages
+     * @param holder The ViewHolder being recycled
      */
     @Override
-    public int getItemCount() {
-        return chatMessages != null ? chatMessages.size() : 0;
+    public void onViewRecycled(@NonNull RecyclerView.ViewHolder holder) {
+        super.onViewRecycled(holder);
+        if (holder instanceof SentMessageViewHolder) {
+            ImageLoader.getInstance().cancel(((SentMessageViewHolder) holder).binding.imageMessage);
+        } else if (holder instanceof ReceiverMessageViewHolder) {
+            ImageLoader.getInstance().cancel(((ReceiverMessageViewHolder) holder).binding.imageMessage);
+        }
+    }
+
+    /**
+     * Checks whether a message holds an image rather than text.
+     * Messages stored before message types were kept are recognised by their length.
+     *
+     * @param message The chat message
+     * @return true if the message is an image
+     */
+    static boolean isImageMessage(ChatMessages message) {
+        if (message.mediaHash != null) {
+            return true;
+        }
+        if (message.messageType != null) {
+            return Constants.MESSAGE_TYPE_IMAGE.equals(message.messageType);
+        }
+        return message.getMessage() != null && message.getMessage().length() > 1000;
     }
 
     /**
-     * Determines the view type (sent or received) for the message at the given position.
+     * Shows the image of an image message. Images stored as conversation media are fetched
+     * by their content hash when the bubble is bound, with the inline preview shown first;
+     * older messages carry the encoded image themselves.
+     *
+     * @param imageView The view to show the image in
+     * @param message The image message
+     * @param conversationId ID of the conversation holding the media
+     */
+    static void loadImage(ImageView imageView, ChatMessages message, String conversationId) {
+        if (message.mediaHash != null) {
+            ImageLoader.getInstance().loadMedia(imageView, conversationId, message.mediaHash, message.thumbnail);
+        } else {
+            ImageLoader.getInstance().load(imageView,
+                    message.messageId != null ? message.messageId : message.getMessage(),
+                    message.getMessage());
+        }
+    }
+
+    /**
+     * Determines the view type (sent, received or notice) for the message at the given position.
      *
      * @param position The position of the item in the list
-     * @return VIEW_TYPE_SENT if the message was sent, VIEW_TYPE_RECEIVED if received
+     * @return VIEW_TYPE_NOTICE for a notice, VIEW_TYPE_SENT if the message was sent,
+     * VIEW_TYPE_RECEIVED if received
      */
     @Override
     public int getItemViewType(int position) {
         try {
-            if (chatMessages != null && position < chatMessages.size()) {
-                ChatMessages message = chatMessages.get(position);
+            if (position < getItemCount()) {
+                ChatMessages message = getItem(position);
                 if (message != null) {
+                    if (Constants.MESSAGE_TYPE_IDENTITY_CHANGED.equals(message.messageType)) {
+                        return VIEW_TYPE_NOTICE;
+                    }
                     String messageSenderId = message.getSenderId();
                     if (messageSenderId != null && sendId != null) {
                         return messageSenderId.equals(sendId) ? VIEW_TYPE_SENT : VIEW_TYPE_RECEIVED;
@@ -131,18 +254,32 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
          * Binds sent message data to the view.
          *
          * @param chatMessages The chat message data
+         * @param conversationId ID of the conversation holding the media
+         * @param messageListener Listener for taps on a failed message
          */
-        void setData(ChatMessages chatMessages) {
+        void setData(ChatMessages chatMessages, String conversationId, MessageListener messageListener) {
             if (chatMessages != null) {
-                if(chatMessages.getMessage().length() > 1000){
-                    Bitmap imageBitmap = ImageHandler.decodeImage(chatMessages.getMessage());
-
+                if (isImageMessage(chatMessages)) {
+                    // Decoded in the background, a placeholder is shown meanwhile
                     binding.textMessage.setVisibility(View.GONE);
-                    binding.imageMessage.setImageBitmap(imageBitmap);
-                    binding.textDateTime.setText(chatMessages.getDateTime());
+                    binding.imageMessage.setVisibility(View.VISIBLE);
+                    loadImage(binding.imageMessage, chatMessages, conversationId);
                 }else {
+                    binding.imageMessage.setImageDrawable(null);
+                    binding.imageMessage.setVisibility(View.GONE);
+                    binding.textMessage.setVisibility(View.VISIBLE);
                     binding.textMessage.setText(chatMessages.getMessage());
-                    binding.textDateTime.setText(chatMessages.getDateTime());
+                }
+                // Messages still in the outbox show that they are being sent, or that they failed
+                if (chatMessages.isFailed) {
+                    binding.textDateTime.setText(R.string.message_failed);
+                    binding.getRoot().setOnClickListener(v -> messageListener.onFailedMessageClicked(chatMessages));
+                } else {
+                    binding.getRoot().setOnClickListener(null);
+                    binding.getRoot().setClickable(false);
+                    binding.textDateTime.setText(chatMessages.isPending
+                            ? binding.getRoot().getContext().getString(R.string.message_sending)
+                            : chatMessages.getDateTime());
                 }
             }
         }
@@ -166,16 +303,20 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
          *
          * @param chatMessage The chat message data
          * @param receiverProfileImage The receiver's profile image
+         * @param conversationId ID of the conversation holding the media
          */
-        void setData(ChatMessages chatMessage, Bitmap receiverProfileImage) {
+        void setData(ChatMessages chatMessage, Bitmap receiverProfileImage, String conversationId) {
             if (chatMessage != null) {
-                if(chatMessage.getMessage().length() > 1000){
-                    Bitmap imageBitmap = ImageHandler.decodeImage(chatMessage.getMessage());
-
+                if (isImageMessage(chatMessage)) {
+                    // Decoded in the background, a placeholder is shown meanwhile
                     binding.textMessage.setVisibility(View.GONE);
-                    binding.imageMessage.setImageBitmap(imageBitmap);
+                    binding.imageMessage.setVisibility(View.VISIBLE);
+                    loadImage(binding.imageMessage, chatMessage, conversationId);
                     binding.textDateTime.setText(chatMessage.getDateTime());
                 }else {
+                    binding.imageMessage.setImageDrawable(null);
+                    binding.imageMessage.setVisibility(View.GONE);
+                    binding.textMessage.setVisibility(View.VISIBLE);
                     binding.textMessage.setText(chatMessage.getMessage());
                     binding.textDateTime.setText(chatMessage.getDateTime());
                 }
@@ -186,4 +327,27 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
             }
         }
     }
-}
\ No newline at end of file
+
+    static class NoticeViewHolder extends RecyclerView.ViewHolder {
+        private final ItemContainerNoticeBinding binding;
+
+        /**
+         * Constructor for NoticeViewHolder.
+         *
+         * @param itemContainerNoticeBinding Binding object for notice layout
+         */
+        public NoticeViewHolder(ItemContainerNoticeBinding itemContainerNoticeBinding) {
+            super(itemContainerNoticeBinding.getRoot());
+            binding = itemContainerNoticeBinding;
+        }
+
+        /**
+         * Binds a notice shown only on this device, such as a contact's changed identity.
+         *
+         * @param notice The notice
+         */
+        void setData(ChatMessages notice) {
+            binding.textMessage.setText(notice.getMessage());
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.example.talkoloco.controllers;
+
+import android.content.Context;
+import android.util.Base64;
+import android.util.Log;
+
+import com.example.talkoloco.database.AvatarStore;
+import com.example.talkoloco.database.MediaCache;
+import com.example.talkoloco.utils.AppExecutors;
+import com.example.talkoloco.utils.Constants;
+import com.example.talkoloco.utils.Hash;
+import com.example.talkoloco.utils.ImageHandler;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.Blob;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.WriteBatch;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The AvatarController class is a singleton controller that stores user avatars apart from
+ * user documents. Each avatar is kept twice in the avatars collection, as a small thumbnail
+ * for lists and as the full image for profiles, each in a document named after the SHA-256
+ * hash of its content. A user document only carries the two IDs and an avatar version, so
+ * reading a user costs kilobytes, and an avatar is only fetched again when its version changes.
+ */
+public class AvatarController {
+    private static final String TAG = "AvatarController";
+    private static final int THUMBNAIL_DIMENSION = 64;
+    private static final int THUMBNAIL_QUALITY = 70;
+
+    private static AvatarController instance;
+
+    private final FirebaseFirestore db;
+    private final AvatarStore avatarStore;
+    private final MediaCache mediaCache;
+
+    /**
+     * The IDs of an uploaded avatar.
+     */
+    public static class AvatarIds {
+        public final String thumbId;
+        public final String avatarId;
+
+        AvatarIds(String thumbId, String avatarId) {
+            this.thumbId = thumbId;
+            this.avatarId = avatarId;
+        }
+    }
+
+    /**
+     * An avatar ready to be written: its full image, its thumbnail and their IDs.
+     */
+    private static class PreparedAvatar {
+        final byte[] image;
+        final byte[] thumbnail;
+        final AvatarIds ids;
+
+        PreparedAvatar(byte[] image, byte[] thumbnail) {
+            this.image = image;
+            this.thumbnail = thumbnail;
+            this.ids = new AvatarIds(Hash.hashContent(thumbnail), Hash.hashContent(image));
+        }
+    }
+
+    private AvatarController(Context context) {
+        db = FirebaseFirestore.getInstance();
+        avatarStore = AvatarStore.getInstance(context);
+        mediaCache = MediaCache.getInstance(context);
+    }
+
+    /**
+     * Returns instance of AvatarController.
+     *
+     * @param context Application context
+     * @return AvatarController instance
+     */
+    public static synchronized AvatarController getInstance(Context context) {
+        if (instance == null) {
+            instance = new AvatarController(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Uploads an avatar as a thumbnail and a full image. Content that was uploaded before
+     * is simply written again under the same ID. The image is decoded, scaled down and
+     * hashed in the background, so this can be called from the main thread.
+     *
+     * @param encodedImage the Base64 encoded JPEG, as produced by ImageHandler
+     * @return task resolving to the IDs to store on the user document
+     */
+    public Task<AvatarIds> uploadAvatar(String encodedImage) {
+        return Tasks.call(AppExecutors.getInstance().diskIO(), () -> {
+                    byte[] image = Base64.decode(encodedImage, Base64.DEFAULT);
+                    return new PreparedAvatar(image,
+                            ImageHandler.createThumbnail(image, THUMBNAIL_DIMENSION, THUMBNAIL_QUALITY));
+                })
+                .continueWithTask(preparedTask -> {
+                    if (!preparedTask.isSuccessful()) {
+                        Log.e(TAG, "Error preparing avatar", preparedTask.getException());
+                        return Tasks.forException(preparedTask.getException());
+                    }
+                    PreparedAvatar avatar = preparedTask.getResult();
+                    WriteBatch batch = db.batch();
+                    batch.set(getAvatar(avatar.ids.thumbId), toDocument(avatar.thumbnail));
+                    batch.set(getAvatar(avatar.ids.avatarId), toDocument(avatar.image));
+                    return batch.commit().continueWith(task -> {
+                        if (!task.isSuccessful()) {
+                            Log.e(TAG, "Error uploading avatar", task.getException());
+                            throw task.getException();
+                        }
+                        // The uploader has the full image already, keep it for the profile screen
+                        AppExecutors.getInstance().diskIO().execute(() ->
+                                mediaCache.saveMedia(avatar.ids.avatarId, avatar.image));
+                        return avatar.ids;
+                    });
+                });
+    }
+
+    /**
+     * Returns a user's avatar thumbnail, from the local store if it is at the user's current
+     * avatar version, otherwise from Firestore.
+     *
+     * @param userId        the ID of the user
+     * @param avatarVersion the user's current avatar version
+     * @param thumbId       the ID of the thumbnail document
+     * @return task resolving to the Base64 encoded thumbnail
+     */
+    public Task<String> getThumbnail(String userId, long avatarVersion, String thumbId) {
+        return Tasks.call(AppExecutors.getInstance().diskIO(),
+                        () -> avatarStore.getAvatars(Collections.singleton(userId)).get(userId))
+                .continueWithTask(storedTask -> {
+                    AvatarStore.Avatar stored = storedTask.getResult();
+                    if (stored != null && stored.version == avatarVersion && stored.image != null) {
+                        return Tasks.forResult(stored.image);
+                    }
+                    return downloadAvatar(thumbId).continueWith(task -> {
+                        String image = Base64.encodeToString(task.getResult(), Base64.DEFAULT);
+                        AppExecutors.getInstance().diskIO().execute(() ->
+                                avatarStore.saveAvatar(userId, avatarVersion, image));
+                        return image;
+                    });
+                });
+    }
+
+    /**
+     * Returns a full size avatar, from the media cache if it was fetched before. Since an
+     * avatar ID is its content hash, a cached copy never goes stale.
+     *
+     * @param avatarId the ID of the full size avatar document
+     * @return task resolving to the Base64 encoded image
+     */
+    public Task<String> getFullImage(String avatarId) {
+        return Tasks.call(AppExecutors.getInstance().diskIO(), () -> mediaCache.getMedia(avatarId))
+                .continueWithTask(cachedTask -> {
+                    byte[] cached = cachedTask.getResult();
+                    if (cached != null) {
+                        return Tasks.forResult(Base64.encodeToString(cached, Base64.DEFAULT));
+                    }
+                    return downloadAvatar(avatarId).continueWith(task -> {
+                        byte[] image = task.getResult();
+                        AppExecutors.getInstance().diskIO().execute(() -> mediaCache.saveMedia(avatarId, image));
+                        return Base64.encodeToString(image, Base64.DEFAULT);
+                    });
+                });
+    }
+
+    /**
+     * Downloads an avatar document and checks it against its content hash.
+     *
+     * @param id the ID of the avatar document
+     * @return task resolving to the JPEG bytes
+     */
+    private Task<byte[]> downloadAvatar(String id) {
+        return getAvatar(id).get().continueWith(task -> {
+            Blob data = task.getResult().getBlob(Constants.KEY_AVATAR_DATA);
+            if (data == null) {
+                throw new IOException("Avatar not found: " + id);
+            }
+            byte[] bytes = data.toBytes();
+            if (!id.equals(Hash.hashContent(bytes))) {
+                throw new IOException("Avatar does not match its hash: " + id);
+            }
+            return bytes;
+        });
+    }
+
+    private DocumentReference getAvatar(String id) {
+        return db.collection(Constants.KEY_COLLECTION_AVATARS).document(id);
+    }
+
+    private static Map<String, Object> toDocument(byte[] image) {
+        return Collections.singletonMap(Constants.KEY_AVATAR_DATA, Blob.fromBytes(image));
+    }
+}
@@ -0,0 +1,225 @@
+package com.example.talkoloco.controllers;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.provider.ContactsContract;
+import android.util.Log;
+
+import com.example.talkoloco.database.ContactStore;
+import com.example.talkoloco.utils.AppExecutors;
+import com.example.talkoloco.utils.Constants;
+import com.example.talkoloco.utils.Hash;
+import com.example.talkoloco.utils.PhoneNumberFormatter;
+import com.example.talkoloco.utils.PreferenceManager;
+import com.google.android.gms.tasks.OnFailureListener;
+import com.google.android.gms.tasks.OnSuccessListener;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.QuerySnapshot;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The ContactController class is a singleton controller that finds which people in the
+ * device address book are registered users. Numbers are normalized and hashed in parallel,
+ * then looked up by hash in chunked whereIn queries, sent a few at a time, so the user
+ * directory is never downloaded. Results are kept in the local contact store; a re-sync only
+ * checks address book rows whose version changed, plus a full re-check once a day to find
+ * people who registered since. Requires the READ_CONTACTS permission.
+ */
+public class ContactController {
+    private static final String TAG = "ContactController";
+    // whereIn queries in flight at once; a large address book is looked up in several waves
+    private static final int LOOKUPS_PER_WAVE = 8;
+    private static final long FULL_SYNC_INTERVAL_MS = 24 * 60 * 60 * 1000L;
+    // Timeout of each wave of lookups
+    private static final long LOOKUP_TIMEOUT_SECONDS = 30;
+    private static final int HASH_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private static ContactController instance;
+
+    private final ContentResolver contentResolver;
+    private final ContactStore contactStore;
+    private final PreferenceManager preferenceManager;
+    private final FirebaseFirestore db;
+    // Syncs run one at a time
+    private final ExecutorService syncExecutor = Executors.newSingleThreadExecutor();
+    private final ExecutorService hashExecutor = Executors.newFixedThreadPool(HASH_THREADS);
+
+    private ContactController(Context context) {
+        contentResolver = context.getContentResolver();
+        contactStore = ContactStore.getInstance(context);
+        preferenceManager = new PreferenceManager(context);
+        db = FirebaseFirestore.getInstance();
+    }
+
+    /**
+     * Returns instance of ContactController.
+     *
+     * @param context Application context
+     * @return ContactController instance
+     */
+    public static synchronized ContactController getInstance(Context context) {
+        if (instance == null) {
+            instance = new ContactController(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Brings the registered contacts up to date with the address book.
+     *
+     * @param onSuccessListener receives the IDs of the registered users in the address book,
+     *                          on the main thread
+     * @param onFailureListener the listener for the failed sync, on the main thread
+     */
+    public void discoverContacts(OnSuccessListener<Set<String>> onSuccessListener,
+                                 OnFailureListener onFailureListener) {
+        syncExecutor.execute(() -> {
+            try {
+                Set<String> userIds = syncContacts();
+                AppExecutors.getInstance().mainThread().execute(() -> onSuccessListener.onSuccess(userIds));
+            } catch (Exception e) {
+                Log.e(TAG, "Error discovering contacts", e);
+                AppExecutors.getInstance().mainThread().execute(() -> onFailureListener.onFailure(e));
+            }
+        });
+    }
+
+    /**
+     * Checks the address book rows that are new or changed since the last sync.
+     *
+     * @return the IDs of the registered users in the address book
+     * @throws Exception if the lookup fails
+     */
+    private Set<String> syncContacts() throws Exception {
+        long now = System.currentTimeMillis();
+        boolean isFullSync = now - preferenceManager.getLong(Constants.KEY_CONTACTS_FULL_SYNC_AT)
+                > FULL_SYNC_INTERVAL_MS;
+        Map<Long, Integer> checkedVersions = isFullSync ? new HashMap<>() : contactStore.getVersions();
+        Set<Long> removedDataIds = new HashSet<>(contactStore.getVersions().keySet());
+
+        // Only row IDs and versions are compared; numbers are read for changed rows alone
+        List<long[]> changedRows = new ArrayList<>();
+        List<String> changedNumbers = new ArrayList<>();
+        try (Cursor cursor = contentResolver.query(ContactsContract.CommonDataKinds.Phone.CONTENT_URI,
+                new String[]{ContactsContract.CommonDataKinds.Phone._ID,
+                        ContactsContract.CommonDataKinds.Phone.DATA_VERSION,
+                        ContactsContract.CommonDataKinds.Phone.NUMBER},
+                null, null, null)) {
+            while (cursor != null && cursor.moveToNext()) {
+                long dataId = cursor.getLong(0);
+                int dataVersion = cursor.getInt(1);
+                removedDataIds.remove(dataId);
+                Integer checkedVersion = checkedVersions.get(dataId);
+                if (checkedVersion == null || checkedVersion != dataVersion) {
+                    changedRows.add(new long[]{dataId, dataVersion});
+                    changedNumbers.add(cursor.getString(2));
+                }
+            }
+        }
+
+        List<ContactStore.Contact> contacts = hashNumbers(changedRows, changedNumbers);
+        Map<String, String> userIdsByHash = lookUpHashes(contacts);
+        for (ContactStore.Contact contact : contacts) {
+            if (contact.phoneHash != null) {
+                contact.userId = userIdsByHash.get(contact.phoneHash);
+            }
+        }
+
+        contactStore.saveContacts(contacts, removedDataIds);
+        if (isFullSync) {
+            preferenceManager.putLong(Constants.KEY_CONTACTS_FULL_SYNC_AT, now);
+        }
+        Log.d(TAG, "Checked " + contacts.size() + " changed numbers, "
+                + userIdsByHash.size() + " registered");
+
+        Set<String> userIds = contactStore.getRegisteredUserIds();
+        userIds.remove(preferenceManager.getString(Constants.KEY_USER_ID));
+        return userIds;
+    }
+
+    /**
+     * Normalizes and hashes numbers on several threads, one slice of the numbers each.
+     *
+     * @param rows    the address book row ID and version of each number
+     * @param numbers the numbers as written in the address book
+     * @return the numbers as contacts, with a null hash for numbers that are not valid
+     * @throws Exception if hashing is interrupted or fails
+     */
+    private List<ContactStore.Contact> hashNumbers(List<long[]> rows, List<String> numbers) throws Exception {
+        int sliceSize = Math.max(1, (numbers.size() + HASH_THREADS - 1) / HASH_THREADS);
+        List<Callable<List<ContactStore.Contact>>> slices = new ArrayList<>();
+        for (int start = 0; start < numbers.size(); start += sliceSize) {
+            int sliceStart = start;
+            int sliceEnd = Math.min(start + sliceSize, numbers.size());
+            slices.add(() -> {
+                List<ContactStore.Contact> slice = new ArrayList<>();
+                for (int i = sliceStart; i < sliceEnd; i++) {
+                    String normalized = PhoneNumberFormatter.normalize(numbers.get(i));
+                    slice.add(new ContactStore.Contact(rows.get(i)[0], (int) rows.get(i)[1],
+                            normalized != null ? Hash.hashPhoneNumber(normalized) : null));
+                }
+                return slice;
+            });
+        }
+
+        List<ContactStore.Contact> contacts = new ArrayList<>();
+        for (Future<List<ContactStore.Contact>> slice : hashExecutor.invokeAll(slices)) {
+            contacts.addAll(slice.get());
+        }
+        return contacts;
+    }
+
+    /**
+     * Looks up which hashes belong to users, with up to LOOKUPS_PER_WAVE whereIn chunks in
+     * flight at once. Each wave has its own timeout, so a large address book does not
+     * have to finish within one.
+     *
+     * @param contacts the hashed numbers
+     * @return map of phone hash to user ID, for the registered numbers
+     * @throws Exception if a lookup fails or times out
+     */
+    private Map<String, String> lookUpHashes(List<ContactStore.Contact> contacts) throws Exception {
+        Set<String> uniqueHashes = new HashSet<>();
+        for (ContactStore.Contact contact : contacts) {
+            if (contact.phoneHash != null) {
+                uniqueHashes.add(contact.phoneHash);
+            }
+        }
+        List<String> hashes = new ArrayList<>(uniqueHashes);
+
+        Map<String, String> userIdsByHash = new HashMap<>();
+        int waveSize = Constants.MAX_WHERE_IN_VALUES * LOOKUPS_PER_WAVE;
+        for (int waveStart = 0; waveStart < hashes.size(); waveStart += waveSize) {
+            int waveEnd = Math.min(waveStart + waveSize, hashes.size());
+            List<Task<QuerySnapshot>> lookups = new ArrayList<>();
+            for (int i = waveStart; i < waveEnd; i += Constants.MAX_WHERE_IN_VALUES) {
+                lookups.add(db.collection(Constants.KEY_COLLECTION_USERS)
+                        .whereIn(Constants.KEY_PHONE_NUMBER,
+                                new ArrayList<>(hashes.subList(i, Math.min(i + Constants.MAX_WHERE_IN_VALUES, waveEnd))))
+                        .get());
+            }
+
+            for (Object result : Tasks.await(Tasks.whenAllSuccess(lookups), LOOKUP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                for (DocumentSnapshot user : ((QuerySnapshot) result).getDocuments()) {
+                    userIdsByHash.put(user.getString(Constants.KEY_PHONE_NUMBER), user.getId());
+                }
+            }
+        }
+        return userIdsByHash;
+    }
+}
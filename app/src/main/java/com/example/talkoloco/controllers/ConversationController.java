@@ -0,0 +1,362 @@
+package com.example.talkoloco.controllers;
+
+import android.util.Log;
+
+import com.example.talkoloco.models.Conversation;
+import com.example.talkoloco.models.OutboxMessage;
+import com.example.talkoloco.utils.Constants;
+import com.google.android.gms.tasks.OnFailureListener;
+import com.google.android.gms.tasks.OnSuccessListener;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.CollectionReference;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.QuerySnapshot;
+import com.google.firebase.firestore.SetOptions;
+import com.google.firebase.firestore.Transaction;
+import com.google.firebase.firestore.WriteBatch;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The ConversationController class is a singleton controller that manages conversation documents
+ * and their message subcollections in the Firestore database.
+ */
+public class ConversationController {
+    private final FirebaseFirestore db;
+    private static ConversationController instance;
+    private static final String TAG = "ConversationController";
+    // Firestore allows at most 500 writes per batch or transaction
+    private static final int MAX_BATCH_WRITES = 500;
+    // Each sent message writes the message and two inbox entries
+    public static final int MAX_BATCH_MESSAGES = MAX_BATCH_WRITES / 3;
+
+    private ConversationController() {
+        db = FirebaseFirestore.getInstance();
+    }
+
+    public static ConversationController getInstance() {
+        if (instance == null) {
+            instance = new ConversationController();
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the document of a conversation.
+     *
+     * @param conversationId the ID of the conversation
+     * @return reference to the conversation document
+     */
+    public DocumentReference getConversation(String conversationId) {
+        return db.collection(Constants.KEY_COLLECTION_CONVERSATIONS).document(conversationId);
+    }
+
+    /**
+     * Returns the messages subcollection of a conversation.
+     *
+     * @param conversationId the ID of the conversation
+     * @return reference to the messages subcollection
+     */
+    public CollectionReference getMessages(String conversationId) {
+        return getConversation(conversationId).collection(Constants.KEY_COLLECTION_MESSAGES);
+    }
+
+    /**
+     * Returns the inbox of a user, holding one summary document per conversation.
+     *
+     * @param userId the ID of the user
+     * @return reference to the inbox subcollection
+     */
+    public CollectionReference getInbox(String userId) {
+        return db.collection(Constants.KEY_COLLECTION_USERS)
+                .document(userId)
+                .collection(Constants.KEY_COLLECTION_INBOX);
+    }
+
+    /**
+     * Reserves the ID of a new message in a conversation without writing anything, so the
+     * sender can keep its own copy of the message under the same ID.
+     *
+     * @param conversationId the ID of the conversation
+     * @return the new message ID
+     */
+    public String newMessageId(String conversationId) {
+        return getMessages(conversationId).document().getId();
+    }
+
+    /**
+     * Writes messages from the outbox in one transaction, each together with both
+     * participants' inbox summaries, so the chat list never disagrees with the conversation.
+     * A message whose earlier send reached Firestore without the outbox hearing back is
+     * already there, and is skipped so the receiver's unread count is not raised twice.
+     * Transactions need the server, so offline this fails and the outbox retries later.
+     *
+     * @param messages the messages to write, oldest first, at most {@link #MAX_BATCH_MESSAGES}
+     * @return task completing once every message and inbox entry is written
+     */
+    public Task<Void> sendMessages(List<OutboxMessage> messages) {
+        return db.runTransaction(transaction -> {
+            // A transaction has to do all of its reads before any write
+            List<OutboxMessage> unsent = new ArrayList<>();
+            for (OutboxMessage message : messages) {
+                String conversationId = Conversation.idFor(message.senderId, message.receiverId);
+                if (!transaction.get(getMessages(conversationId).document(message.messageId)).exists()) {
+                    unsent.add(message);
+                }
+            }
+            for (OutboxMessage message : unsent) {
+                addMessage(transaction, message);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Adds the writes of one message to a transaction: the message itself and the inbox
+     * summaries of both participants. The message gets the server time it is written at as
+     * sentAt, which readers page by; its own timestamp is the time it was composed, for display.
+     *
+     * @param transaction the transaction to add the writes to
+     * @param outgoing    the message, with an ID from {@link #newMessageId(String)}
+     */
+    private void addMessage(Transaction transaction, OutboxMessage outgoing) {
+        String senderId = outgoing.senderId;
+        String conversationId = Conversation.idFor(senderId, outgoing.receiverId);
+        Map<String, Object> message = outgoing.message;
+        Object timestamp = message.get(Constants.KEY_TIMESTAMP);
+        Object messageType = message.get(Constants.KEY_MESSAGE_TYPE);
+
+        Map<String, Object> messageData = new HashMap<>(message);
+        messageData.put(Constants.KEY_SENT_AT, FieldValue.serverTimestamp());
+        transaction.set(getMessages(conversationId).document(outgoing.messageId), messageData);
+
+        // Sender's entry points at the receiver
+        Map<String, Object> senderEntry = new HashMap<>();
+        senderEntry.put(Constants.KEY_PEER_ID, outgoing.receiverId);
+        senderEntry.put(Constants.KEY_PEER_AVATAR_VERSION, outgoing.receiverAvatarVersion);
+        senderEntry.put(Constants.KEY_LAST_SENDER_ID, senderId);
+        senderEntry.put(Constants.KEY_LAST_MESSAGE_TYPE, messageType);
+        senderEntry.put(Constants.KEY_TIMESTAMP, timestamp);
+        if (outgoing.receiverName != null) {
+            senderEntry.put(Constants.KEY_PEER_NAME, outgoing.receiverName);
+        }
+        transaction.set(getInbox(senderId).document(conversationId), senderEntry, SetOptions.merge());
+
+        // Receiver's entry points at the sender and gains an unread message
+        Map<String, Object> receiverEntry = new HashMap<>();
+        receiverEntry.put(Constants.KEY_PEER_ID, senderId);
+        receiverEntry.put(Constants.KEY_PEER_AVATAR_VERSION, outgoing.senderAvatarVersion);
+        receiverEntry.put(Constants.KEY_LAST_SENDER_ID, senderId);
+        receiverEntry.put(Constants.KEY_LAST_MESSAGE_TYPE, messageType);
+        receiverEntry.put(Constants.KEY_TIMESTAMP, timestamp);
+        receiverEntry.put(Constants.KEY_UNREAD_COUNT, FieldValue.increment(1));
+        if (outgoing.senderName != null) {
+            receiverEntry.put(Constants.KEY_PEER_NAME, outgoing.senderName);
+        }
+        transaction.set(getInbox(outgoing.receiverId).document(conversationId), receiverEntry, SetOptions.merge());
+    }
+
+    /**
+     * Clears the unread counter of a conversation in a user's inbox.
+     *
+     * @param userId         the ID of the reading user
+     * @param conversationId the ID of the conversation
+     */
+    public void markConversationRead(String userId, String conversationId) {
+        Map<String, Object> updates = new HashMap<>();
+        updates.put(Constants.KEY_UNREAD_COUNT, 0);
+        getInbox(userId)
+                .document(conversationId)
+                .set(updates, SetOptions.merge())
+                .addOnFailureListener(e -> Log.e(TAG, "Error marking conversation read", e));
+    }
+
+    /**
+     * Builds a user's inbox from the messages they exchanged through the old global chats
+     * collection. Only needed once per user, for conversations from before inboxes existed.
+     *
+     * @param userId            the ID of the user
+     * @param onSuccessListener the listener for the successful backfill
+     * @param onFailureListener the listener for the failed backfill
+     */
+    public void backfillInbox(String userId, OnSuccessListener<Void> onSuccessListener,
+                              OnFailureListener onFailureListener) {
+        Task<QuerySnapshot> sent = db.collection(Constants.KEY_COLLECTION_CHAT)
+                .whereEqualTo(Constants.KEY_SENDER_ID, userId)
+                .get();
+        Task<QuerySnapshot> received = db.collection(Constants.KEY_COLLECTION_CHAT)
+                .whereEqualTo(Constants.KEY_RECEIVER_ID, userId)
+                .get();
+
+        Map<String, DocumentSnapshot> latestByPeer = new HashMap<>();
+        Tasks.whenAllSuccess(sent, received)
+                .continueWithTask(task -> {
+                    // Keep only the latest message exchanged with each peer
+                    for (Object result : task.getResult()) {
+                        for (DocumentSnapshot message : ((QuerySnapshot) result).getDocuments()) {
+                            String senderId = message.getString(Constants.KEY_SENDER_ID);
+                            String peerId = userId.equals(senderId)
+                                    ? message.getString(Constants.KEY_RECEIVER_ID)
+                                    : senderId;
+                            Date timestamp = message.getDate(Constants.KEY_TIMESTAMP);
+                            if (peerId == null || timestamp == null) continue;
+
+                            DocumentSnapshot latest = latestByPeer.get(peerId);
+                            if (latest == null || timestamp.after(latest.getDate(Constants.KEY_TIMESTAMP))) {
+                                latestByPeer.put(peerId, message);
+                            }
+                        }
+                    }
+
+                    // Look up peer names in small chunks
+                    List<String> peerIds = new ArrayList<>(latestByPeer.keySet());
+                    List<Task<QuerySnapshot>> lookups = new ArrayList<>();
+                    for (int i = 0; i < peerIds.size(); i += Constants.MAX_WHERE_IN_VALUES) {
+                        lookups.add(db.collection(Constants.KEY_COLLECTION_USERS)
+                                .whereIn(FieldPath.documentId(),
+                                        peerIds.subList(i, Math.min(i + Constants.MAX_WHERE_IN_VALUES, peerIds.size())))
+                                .get());
+                    }
+                    return Tasks.whenAllSuccess(lookups);
+                })
+                .continueWithTask(task -> {
+                    WriteBatch batch = db.batch();
+                    for (Object result : task.getResult()) {
+                        for (DocumentSnapshot peer : ((QuerySnapshot) result).getDocuments()) {
+                            DocumentSnapshot latest = latestByPeer.get(peer.getId());
+                            if (latest == null) continue;
+
+                            Long avatarVersion = peer.getLong(Constants.KEY_AVATAR_VERSION);
+                            Map<String, Object> entry = new HashMap<>();
+                            entry.put(Constants.KEY_PEER_ID, peer.getId());
+                            entry.put(Constants.KEY_PEER_NAME, peer.getString(Constants.KEY_NAME));
+                            entry.put(Constants.KEY_PEER_AVATAR_VERSION, avatarVersion != null ? avatarVersion : 0L);
+                            entry.put(Constants.KEY_LAST_SENDER_ID, latest.getString(Constants.KEY_SENDER_ID));
+                            entry.put(Constants.KEY_LAST_MESSAGE_TYPE, latest.getString(Constants.KEY_MESSAGE_TYPE));
+                            entry.put(Constants.KEY_TIMESTAMP, latest.getDate(Constants.KEY_TIMESTAMP));
+                            batch.set(getInbox(userId).document(Conversation.idFor(userId, peer.getId())),
+                                    entry, SetOptions.merge());
+                        }
+                    }
+                    return batch.commit();
+                })
+                .addOnSuccessListener(aVoid -> {
+                    Log.d(TAG, "Inbox backfilled with " + latestByPeer.size() + " conversations");
+                    onSuccessListener.onSuccess(null);
+                })
+                .addOnFailureListener(e -> {
+                    Log.e(TAG, "Error backfilling inbox", e);
+                    onFailureListener.onFailure(e);
+                });
+    }
+
+    /**
+     * Makes sure the conversation between two users exists and that messages they exchanged
+     * through the old global chats collection have been copied into it.
+     *
+     * @param currentUserId     the ID of the signed in user
+     * @param peerId            the ID of the other participant
+     * @param onSuccessListener the listener called once the conversation is ready
+     * @param onFailureListener the listener for the failed operation
+     */
+    public void openConversation(String currentUserId, String peerId,
+                                 OnSuccessListener<Void> onSuccessListener,
+                                 OnFailureListener onFailureListener) {
+        Conversation conversation = new Conversation(currentUserId, peerId);
+
+        getConversation(conversation.id)
+                .get()
+                .addOnSuccessListener(documentSnapshot -> {
+                    Boolean migrated = documentSnapshot.getBoolean(Constants.KEY_LEGACY_MIGRATED);
+                    if (migrated != null && migrated) {
+                        onSuccessListener.onSuccess(null);
+                        return;
+                    }
+                    Log.d(TAG, "Migrating legacy messages into conversation " + conversation.id);
+                    migrateLegacyMessages(conversation, onSuccessListener, onFailureListener);
+                })
+                .addOnFailureListener(e -> {
+                    Log.e(TAG, "Error opening conversation", e);
+                    onFailureListener.onFailure(e);
+                });
+    }
+
+    /**
+     * Copies the messages two users exchanged in the global chats collection into their
+     * conversation, keeping the original document IDs so the copy can safely run more than once,
+     * and then marks the conversation as migrated.
+     *
+     * @param conversation      the conversation to fill
+     * @param onSuccessListener the listener for the successful migration
+     * @param onFailureListener the listener for the failed migration
+     */
+    private void migrateLegacyMessages(Conversation conversation,
+                                       OnSuccessListener<Void> onSuccessListener,
+                                       OnFailureListener onFailureListener) {
+        String firstUserId = conversation.participants.get(0);
+        String secondUserId = conversation.participants.get(1);
+
+        Task<QuerySnapshot> firstDirection = db.collection(Constants.KEY_COLLECTION_CHAT)
+                .whereEqualTo(Constants.KEY_SENDER_ID, firstUserId)
+                .whereEqualTo(Constants.KEY_RECEIVER_ID, secondUserId)
+                .get();
+        Task<QuerySnapshot> secondDirection = db.collection(Constants.KEY_COLLECTION_CHAT)
+                .whereEqualTo(Constants.KEY_SENDER_ID, secondUserId)
+                .whereEqualTo(Constants.KEY_RECEIVER_ID, firstUserId)
+                .get();
+
+        Tasks.whenAllSuccess(firstDirection, secondDirection)
+                .continueWithTask(task -> {
+                    List<DocumentSnapshot> legacyMessages = new ArrayList<>();
+                    for (Object result : task.getResult()) {
+                        legacyMessages.addAll(((QuerySnapshot) result).getDocuments());
+                    }
+
+                    CollectionReference messages = getMessages(conversation.id);
+                    List<Task<Void>> commits = new ArrayList<>();
+                    WriteBatch batch = db.batch();
+                    int writes = 0;
+                    for (DocumentSnapshot legacyMessage : legacyMessages) {
+                        if (legacyMessage.getData() == null) continue;
+                        batch.set(messages.document(legacyMessage.getId()), legacyMessage.getData());
+                        if (++writes == MAX_BATCH_WRITES) {
+                            commits.add(batch.commit());
+                            batch = db.batch();
+                            writes = 0;
+                        }
+                    }
+
+                    commits.add(batch.commit());
+
+                    Log.d(TAG, "Copying " + legacyMessages.size() + " legacy messages");
+                    return Tasks.whenAll(commits);
+                })
+                .continueWithTask(task -> {
+                    if (!task.isSuccessful()) {
+                        return task;
+                    }
+                    // Only mark the conversation once every copied message is written
+                    Map<String, Object> conversationData = new HashMap<>();
+                    conversationData.put(Constants.KEY_PARTICIPANTS, conversation.participants);
+                    conversationData.put(Constants.KEY_LEGACY_MIGRATED, true);
+                    return getConversation(conversation.id).set(conversationData, SetOptions.merge());
+                })
+                .addOnSuccessListener(aVoid -> {
+                    Log.d(TAG, "Conversation migrated successfully");
+                    onSuccessListener.onSuccess(null);
+                })
+                .addOnFailureListener(e -> {
+                    Log.e(TAG, "Error migrating conversation", e);
+                    onFailureListener.onFailure(e);
+                });
+    }
+}
@@ -0,0 +1,137 @@
+package com.example.talkoloco.controllers;
+
+import android.util.Log;
+
+import com.example.talkoloco.utils.Constants;
+import com.example.talkoloco.utils.Hash;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.Blob;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.WriteBatch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The MediaController class is a singleton controller that stores message media in Firestore.
+ * Media lives in a conversation's media subcollection, one document per file named after the
+ * SHA-256 hash of its content. The bytes are split into binary chunks kept as separate
+ * documents, so message documents only carry a reference and stay small.
+ */
+public class MediaController {
+    private final FirebaseFirestore db;
+    private static MediaController instance;
+    private static final String TAG = "MediaController";
+    // Stays well below the 1 MB document limit
+    private static final int CHUNK_SIZE = 512 * 1024;
+
+    private MediaController() {
+        db = FirebaseFirestore.getInstance();
+    }
+
+    public static MediaController getInstance() {
+        if (instance == null) {
+            instance = new MediaController();
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the document describing a media file of a conversation.
+     *
+     * @param conversationId the ID of the conversation
+     * @param mediaHash      the content hash of the media
+     * @return reference to the media document
+     */
+    private DocumentReference getMedia(String conversationId, String mediaHash) {
+        return ConversationController.getInstance()
+                .getConversation(conversationId)
+                .collection(Constants.KEY_COLLECTION_MEDIA)
+                .document(mediaHash);
+    }
+
+    /**
+     * Uploads media to a conversation. Content that was uploaded before is not written again.
+     *
+     * @param conversationId the ID of the conversation
+     * @param content        the media bytes
+     * @return task resolving to the content hash that messages use to refer to the media
+     */
+    public Task<String> uploadMedia(String conversationId, byte[] content) {
+        String mediaHash = Hash.hashContent(content);
+        DocumentReference media = getMedia(conversationId, mediaHash);
+
+        return media.get().continueWithTask(task -> {
+            if (task.isSuccessful() && task.getResult().exists()) {
+                Log.d(TAG, "Media already uploaded: " + mediaHash);
+                return Tasks.forResult(mediaHash);
+            }
+
+            int chunkCount = (content.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+            WriteBatch batch = db.batch();
+            for (int index = 0; index < chunkCount; index++) {
+                int start = index * CHUNK_SIZE;
+                Map<String, Object> chunk = new HashMap<>();
+                chunk.put(Constants.KEY_CHUNK_INDEX, index);
+                chunk.put(Constants.KEY_CHUNK_DATA, Blob.fromBytes(
+                        Arrays.copyOfRange(content, start, Math.min(start + CHUNK_SIZE, content.length))));
+                batch.set(media.collection(Constants.KEY_COLLECTION_CHUNKS).document(String.valueOf(index)), chunk);
+            }
+
+            // Written in the same batch as the chunks, so it only exists once they all do
+            Map<String, Object> manifest = new HashMap<>();
+            manifest.put(Constants.KEY_MEDIA_SIZE, content.length);
+            manifest.put(Constants.KEY_CHUNK_COUNT, chunkCount);
+            batch.set(media, manifest);
+
+            return batch.commit().continueWith(commitTask -> {
+                if (!commitTask.isSuccessful()) {
+                    throw commitTask.getException();
+                }
+                return mediaHash;
+            });
+        });
+    }
+
+    /**
+     * Downloads media of a conversation and checks it against its content hash.
+     *
+     * @param conversationId the ID of the conversation
+     * @param mediaHash      the content hash of the media
+     * @return task resolving to the media bytes
+     */
+    public Task<byte[]> downloadMedia(String conversationId, String mediaHash) {
+        return getMedia(conversationId, mediaHash)
+                .collection(Constants.KEY_COLLECTION_CHUNKS)
+                .orderBy(Constants.KEY_CHUNK_INDEX)
+                .get()
+                .continueWith(task -> {
+                    List<DocumentSnapshot> chunks = task.getResult().getDocuments();
+                    if (chunks.isEmpty()) {
+                        throw new IOException("Media not found: " + mediaHash);
+                    }
+
+                    ByteArrayOutputStream content = new ByteArrayOutputStream();
+                    for (DocumentSnapshot chunk : chunks) {
+                        Blob data = chunk.getBlob(Constants.KEY_CHUNK_DATA);
+                        if (data == null) {
+                            throw new IOException("Missing media chunk " + chunk.getId());
+                        }
+                        content.write(data.toBytes());
+                    }
+
+                    byte[] bytes = content.toByteArray();
+                    if (!mediaHash.equals(Hash.hashContent(bytes))) {
+                        throw new IOException("Media does not match its hash: " + mediaHash);
+                    }
+                    return bytes;
+                });
+    }
+}
@@ -0,0 +1,248 @@
+package com.example.talkoloco.controllers;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.example.talkoloco.database.Outbox;
+import com.example.talkoloco.listeners.OutboxListener;
+import com.example.talkoloco.models.OutboxMessage;
+import com.example.talkoloco.utils.AppExecutors;
+import com.google.firebase.firestore.FirebaseFirestoreException;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The OutboxController class is a singleton controller that sends messages through the
+ * persistent outbox. A message is stored in the outbox first and shown right away; the outbox
+ * is then drained to Firestore in batches, so a burst of messages costs one commit. Failed
+ * writes are retried with exponential backoff, and whatever is left when the app is killed
+ * is sent on the next flush. A message Firestore rejects outright, or that keeps failing for
+ * MAX_ATTEMPTS tries, is marked failed so it cannot hold up the messages behind it, until
+ * the user retries it. Tries made while the server cannot be reached are not counted, so
+ * being offline never fails a message. All methods must be called from the main thread.
+ */
+public class OutboxController {
+    private static final String TAG = "OutboxController";
+    private static final long INITIAL_RETRY_DELAY_MS = 1000;
+    private static final long MAX_RETRY_DELAY_MS = 60 * 1000;
+    private static final int MAX_ATTEMPTS = 10;
+
+    private static OutboxController instance;
+
+    private final Outbox outbox;
+    private final ConversationController conversationController;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Set<OutboxListener> listeners = new LinkedHashSet<>();
+    private boolean isFlushing = false;
+    private boolean isRetryScheduled = false;
+    private int failedAttempts = 0;
+    // Messages left to send one at a time, to single out the one a rejected batch tripped on
+    private int isolatedSendsLeft = 0;
+
+    private OutboxController(Context context) {
+        outbox = Outbox.getInstance(context);
+        conversationController = ConversationController.getInstance();
+    }
+
+    /**
+     * Returns instance of OutboxController.
+     *
+     * @param context Application context
+     * @return OutboxController instance
+     */
+    public static synchronized OutboxController getInstance(Context context) {
+        if (instance == null) {
+            instance = new OutboxController(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    public void addListener(OutboxListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(OutboxListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Stores a message in the outbox and starts sending it.
+     *
+     * @param message the message to send
+     */
+    public void send(OutboxMessage message) {
+        AppExecutors.getInstance().diskIO().execute(() -> {
+            outbox.enqueue(message);
+            AppExecutors.getInstance().mainThread().execute(this::flush);
+        });
+    }
+
+    /**
+     * Sends a failed message again, counting its attempts from zero.
+     *
+     * @param messageId the ID of the failed message
+     */
+    public void retry(String messageId) {
+        AppExecutors.getInstance().diskIO().execute(() -> {
+            outbox.resetFailed(messageId);
+            AppExecutors.getInstance().mainThread().execute(this::flush);
+        });
+    }
+
+    /**
+     * Writes the oldest waiting messages to Firestore in one batch, and keeps going until the
+     * outbox is empty. Messages added while a batch is in flight go out with the next one.
+     * When Firestore rejects a batch, its messages are sent one at a time until the rejected
+     * one is found and marked failed.
+     */
+    public void flush() {
+        if (isFlushing) return;
+        isFlushing = true;
+
+        AppExecutors.getInstance().diskIO().execute(() -> {
+            List<OutboxMessage> pending = outbox.getPending(
+                    isolatedSendsLeft > 0 ? 1 : ConversationController.MAX_BATCH_MESSAGES);
+            AppExecutors.getInstance().mainThread().execute(() -> {
+                if (pending.isEmpty()) {
+                    isFlushing = false;
+                    return;
+                }
+
+                List<String> messageIds = new ArrayList<>();
+                for (OutboxMessage message : pending) {
+                    messageIds.add(message.messageId);
+                }
+                conversationController.sendMessages(pending)
+                        .addOnSuccessListener(aVoid -> {
+                            Log.d(TAG, "Sent " + pending.size() + " messages");
+                            failedAttempts = 0;
+                            if (isolatedSendsLeft > 0) isolatedSendsLeft--;
+                            AppExecutors.getInstance().diskIO().execute(() -> {
+                                outbox.remove(messageIds);
+                                AppExecutors.getInstance().mainThread().execute(() -> {
+                                    isFlushing = false;
+                                    for (OutboxListener listener : new ArrayList<>(listeners)) {
+                                        listener.onMessagesSent(messageIds);
+                                    }
+                                    flush();
+                                });
+                            });
+                        })
+                        .addOnFailureListener(e -> {
+                            Log.e(TAG, "Error sending " + pending.size() + " messages", e);
+                            isFlushing = false;
+                            if (!isRetryable(e)) {
+                                if (pending.size() > 1) {
+                                    isolatedSendsLeft = pending.size();
+                                    flush();
+                                } else {
+                                    if (isolatedSendsLeft > 0) isolatedSendsLeft--;
+                                    markFailed(messageIds);
+                                }
+                                return;
+                            }
+                            failedAttempts++;
+                            if (!countsAsAttempt(e)) {
+                                scheduleRetry();
+                                return;
+                            }
+                            AppExecutors.getInstance().diskIO().execute(() -> {
+                                List<String> failedIds = outbox.recordFailedAttempt(messageIds, MAX_ATTEMPTS);
+                                AppExecutors.getInstance().mainThread().execute(() -> {
+                                    notifyFailed(failedIds);
+                                    scheduleRetry();
+                                });
+                            });
+                        });
+            });
+        });
+    }
+
+    /**
+     * Marks messages Firestore will not accept as failed and moves on to the next ones.
+     *
+     * @param messageIds the IDs of the rejected messages
+     */
+    private void markFailed(List<String> messageIds) {
+        AppExecutors.getInstance().diskIO().execute(() -> {
+            outbox.markFailed(messageIds);
+            AppExecutors.getInstance().mainThread().execute(() -> {
+                notifyFailed(messageIds);
+                flush();
+            });
+        });
+    }
+
+    private void notifyFailed(List<String> messageIds) {
+        if (messageIds.isEmpty()) return;
+        Log.w(TAG, "Gave up sending " + messageIds.size() + " messages");
+        for (OutboxListener listener : new ArrayList<>(listeners)) {
+            listener.onMessagesFailed(messageIds);
+        }
+    }
+
+    /**
+     * Tells whether a failed write may succeed if tried again. Errors such as a denied
+     * permission or an invalid document will fail the same way every time.
+     *
+     * @param e the error of the write
+     * @return true if the write should be retried
+     */
+    static boolean isRetryable(Exception e) {
+        if (!(e instanceof FirebaseFirestoreException)) return true;
+        switch (((FirebaseFirestoreException) e).getCode()) {
+            case CANCELLED:
+            case UNKNOWN:
+            case DEADLINE_EXCEEDED:
+            case RESOURCE_EXHAUSTED:
+            case ABORTED:
+            case INTERNAL:
+            case UNAVAILABLE:
+            case UNAUTHENTICATED:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Tells whether a retryable failure counts towards a message's attempts. A server that
+     * cannot be reached says nothing about the message, so the message waits without a limit.
+     *
+     * @param e the error of the write
+     * @return true if the failure counts as an attempt
+     */
+    static boolean countsAsAttempt(Exception e) {
+        return !(e instanceof FirebaseFirestoreException)
+                || ((FirebaseFirestoreException) e).getCode() != FirebaseFirestoreException.Code.UNAVAILABLE;
+    }
+
+    /**
+     * Returns the delay before the next flush, doubling with each failed attempt up to a minute.
+     *
+     * @param failedAttempts the number of failed attempts in a row, at least one
+     * @return the delay in milliseconds
+     */
+    static long retryDelay(int failedAttempts) {
+        return Math.min(MAX_RETRY_DELAY_MS, INITIAL_RETRY_DELAY_MS << Math.min(failedAttempts - 1, 16));
+    }
+
+    /**
+     * Flushes again after a delay that doubles with each failed attempt, up to a minute.
+     */
+    private void scheduleRetry() {
+        if (isRetryScheduled) return;
+        isRetryScheduled = true;
+        long delay = retryDelay(failedAttempts);
+        Log.d(TAG, "Retrying in " + delay + " ms");
+        handler.postDelayed(() -> {
+            isRetryScheduled = false;
+            flush();
+        }, delay);
+    }
+}
@@ -0,0 +1,269 @@
+package com.example.talkoloco.controllers;
+
+import android.content.Context;
+import android.util.Base64;
+import android.util.Log;
+
+import com.example.talkoloco.utils.BloomFilter;
+import com.example.talkoloco.utils.Constants;
+import com.example.talkoloco.utils.Hash;
+import com.example.talkoloco.utils.PreferenceManager;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.Blob;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.QuerySnapshot;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The RegistryController class is a singleton controller that keeps a bloom filter of the
+ * hashes of all registered phone numbers, so the app can tell offline that a number is not
+ * registered. The filter is published in one Firestore document with a version that goes up
+ * by one per registration; each registration is also written to an additions collection
+ * under its version. A device keeps its copy on disk and catches up by applying only the
+ * additions newer than its version, falling back to the whole filter when it is far behind.
+ *
+ * The filter is a hint, never the last word: a device's copy lags behind sign ups until its
+ * next sync, so callers still confirm with an exact lookup. Every registration rewrites the
+ * one filter document in a transaction, and Firestore sustains about one write per second on
+ * a single document, so registrations beyond that contend and retry. Any signed in client can
+ * rewrite the filter, so it is only ever used as a hint: a tampered filter can at worst show
+ * a wrong hint or cost an extra lookup, it never decides who can be reached.
+ * Self registration from sync is attempted at most once a day per device.
+ */
+public class RegistryController {
+    private static final String TAG = "RegistryController";
+    private static final String FILTER_FILE = "registered_numbers.bloom";
+    // 1 MiB bits with 7 hashes keep false positives near 1% up to about 100k users
+    private static final int DEFAULT_FILTER_SIZE = 128 * 1024;
+    private static final int DEFAULT_HASH_COUNT = 7;
+    // A device further behind than this downloads the whole filter instead
+    private static final int MAX_ADDITIONS_PER_SYNC = 500;
+    private static final long FETCH_TIMEOUT_SECONDS = 30;
+    // A device missing from the filter republishes its number at most this often
+    private static final long SELF_REGISTER_INTERVAL_MS = 24 * 60 * 60 * 1000L;
+
+    private static RegistryController instance;
+
+    private final File filterFile;
+    private final PreferenceManager preferenceManager;
+    private final DocumentReference filterRef;
+    // Syncs run one at a time, and off the main thread
+    private final ExecutorService syncExecutor = Executors.newSingleThreadExecutor();
+    // Replaced, never changed in place, so readers need no lock
+    private volatile BloomFilter filter;
+    private volatile long filterVersion;
+
+    private RegistryController(Context context) {
+        filterFile = new File(context.getFilesDir(), FILTER_FILE);
+        preferenceManager = new PreferenceManager(context);
+        filterRef = FirebaseFirestore.getInstance()
+                .collection(Constants.KEY_COLLECTION_REGISTRY)
+                .document(Constants.REGISTRY_PHONE_NUMBERS);
+        syncExecutor.execute(this::loadFilter);
+    }
+
+    /**
+     * Returns instance of RegistryController.
+     *
+     * @param context Application context
+     * @return RegistryController instance
+     */
+    public static synchronized RegistryController getInstance(Context context) {
+        if (instance == null) {
+            instance = new RegistryController(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Checks a phone number against the local filter. Cheap enough to call on every keystroke.
+     *
+     * @param phoneNumber the phone number, normalized as "+1XXXXXXXXXX"
+     * @return false if the number is definitely not registered, true if it probably is,
+     *         or null if the filter has not been synced yet
+     */
+    public Boolean isProbablyRegistered(String phoneNumber) {
+        BloomFilter current = filter;
+        if (current == null) {
+            return null;
+        }
+        return current.mightContain(toKey(Hash.hashPhoneNumber(phoneNumber)));
+    }
+
+    /**
+     * Brings the local filter up to date in the background. Also publishes the signed in
+     * user's number if the filter does not have it yet, which covers accounts created
+     * before the filter existed, at most once a day so the shared document is not hammered.
+     */
+    public void sync() {
+        syncExecutor.execute(() -> {
+            try {
+                syncFilter();
+            } catch (Exception e) {
+                Log.e(TAG, "Error syncing registered numbers", e);
+                return;
+            }
+
+            String phoneNumber = preferenceManager.getString(Constants.KEY_PHONE_NUMBER);
+            long now = System.currentTimeMillis();
+            if (phoneNumber != null && preferenceManager.getString(Constants.KEY_USER_ID) != null
+                    && !filter.mightContain(toKey(Hash.hashPhoneNumber(phoneNumber)))
+                    && now - preferenceManager.getLong(Constants.KEY_REGISTRY_SELF_REGISTERED_AT)
+                    >= SELF_REGISTER_INTERVAL_MS) {
+                preferenceManager.putLong(Constants.KEY_REGISTRY_SELF_REGISTERED_AT, now);
+                register(Hash.hashPhoneNumber(phoneNumber));
+            }
+        });
+    }
+
+    /**
+     * Adds a registered number's hash to the published filter. The filter, its version and
+     * the addition are written in one transaction, so devices never see one without the others.
+     *
+     * @param phoneHash the hash of the number, as stored on the user document
+     */
+    public void register(String phoneHash) {
+        byte[] key = toKey(phoneHash);
+        FirebaseFirestore.getInstance().runTransaction(transaction -> {
+            DocumentSnapshot snapshot = transaction.get(filterRef);
+            BloomFilter published = snapshot.exists()
+                    ? readFilter(snapshot)
+                    : new BloomFilter(DEFAULT_FILTER_SIZE, DEFAULT_HASH_COUNT);
+            if (!published.put(key)) {
+                return null;
+            }
+            Long version = snapshot.getLong(Constants.KEY_FILTER_VERSION);
+            long newVersion = (version != null ? version : 0) + 1;
+
+            Map<String, Object> filterData = new HashMap<>();
+            filterData.put(Constants.KEY_FILTER_BITS, Blob.fromBytes(published.getBits()));
+            filterData.put(Constants.KEY_FILTER_HASH_COUNT, published.getHashCount());
+            filterData.put(Constants.KEY_FILTER_VERSION, newVersion);
+            transaction.set(filterRef, filterData);
+
+            Map<String, Object> addition = new HashMap<>();
+            addition.put(Constants.KEY_PHONE_NUMBER, phoneHash);
+            addition.put(Constants.KEY_FILTER_VERSION, newVersion);
+            transaction.set(filterRef.collection(Constants.KEY_COLLECTION_REGISTRY_ADDITIONS)
+                    .document(String.valueOf(newVersion)), addition);
+            return null;
+        })
+                .addOnSuccessListener(result -> Log.d(TAG, "Number published to the registry"))
+                .addOnFailureListener(e -> Log.e(TAG, "Error publishing number to the registry", e));
+    }
+
+    /**
+     * Applies the additions newer than the local filter, or replaces the local filter with
+     * the published one if there is no local copy or it is too far behind.
+     *
+     * @throws Exception if fetching the filter fails
+     */
+    private void syncFilter() throws Exception {
+        BloomFilter current = filter;
+        if (current != null) {
+            QuerySnapshot additions = Tasks.await(filterRef
+                            .collection(Constants.KEY_COLLECTION_REGISTRY_ADDITIONS)
+                            .whereGreaterThan(Constants.KEY_FILTER_VERSION, filterVersion)
+                            .orderBy(Constants.KEY_FILTER_VERSION, Query.Direction.ASCENDING)
+                            .limit(MAX_ADDITIONS_PER_SYNC)
+                            .get(),
+                    FETCH_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (additions.isEmpty()) {
+                return;
+            }
+            if (additions.size() < MAX_ADDITIONS_PER_SYNC) {
+                BloomFilter updated = new BloomFilter(current.getBits().clone(), current.getHashCount());
+                long version = filterVersion;
+                for (DocumentSnapshot addition : additions.getDocuments()) {
+                    String phoneHash = addition.getString(Constants.KEY_PHONE_NUMBER);
+                    Long additionVersion = addition.getLong(Constants.KEY_FILTER_VERSION);
+                    if (phoneHash == null || additionVersion == null) continue;
+                    updated.put(toKey(phoneHash));
+                    version = Math.max(version, additionVersion);
+                }
+                saveFilter(updated, version);
+                Log.d(TAG, "Applied " + additions.size() + " registry additions");
+                return;
+            }
+        }
+
+        DocumentSnapshot snapshot = Tasks.await(filterRef.get(), FETCH_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        if (!snapshot.exists()) {
+            // Nobody has published yet, so every number is unregistered
+            saveFilter(new BloomFilter(DEFAULT_FILTER_SIZE, DEFAULT_HASH_COUNT), 0);
+            return;
+        }
+        Long version = snapshot.getLong(Constants.KEY_FILTER_VERSION);
+        saveFilter(readFilter(snapshot), version != null ? version : 0);
+        Log.d(TAG, "Downloaded registry filter");
+    }
+
+    private static BloomFilter readFilter(DocumentSnapshot snapshot) {
+        Blob bits = snapshot.getBlob(Constants.KEY_FILTER_BITS);
+        Long hashCount = snapshot.getLong(Constants.KEY_FILTER_HASH_COUNT);
+        if (bits == null || hashCount == null) {
+            throw new IllegalStateException("Registry filter document is incomplete");
+        }
+        return new BloomFilter(bits.toBytes(), hashCount.intValue());
+    }
+
+    /**
+     * Reads the filter saved by an earlier sync, if any.
+     */
+    private void loadFilter() {
+        if (!filterFile.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(filterFile))) {
+            int hashCount = in.readInt();
+            long version = in.readLong();
+            byte[] bits = new byte[in.readInt()];
+            in.readFully(bits);
+            filterVersion = version;
+            filter = new BloomFilter(bits, hashCount);
+        } catch (IOException | IllegalArgumentException e) {
+            Log.e(TAG, "Error reading registry filter, it will be downloaded again", e);
+            filterFile.delete();
+        }
+    }
+
+    /**
+     * Saves a filter and makes it the one checked. Written to a temporary file first,
+     * so a crash never leaves a partial filter behind.
+     */
+    private void saveFilter(BloomFilter updated, long version) throws IOException {
+        File tempFile = new File(filterFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tempFile))) {
+            out.writeInt(updated.getHashCount());
+            out.writeLong(version);
+            out.writeInt(updated.getBits().length);
+            out.write(updated.getBits());
+        }
+        if (!tempFile.renameTo(filterFile)) {
+            throw new IOException("Failed to save registry filter");
+        }
+        filterVersion = version;
+        filter = updated;
+    }
+
+    /**
+     * Turns a phone number hash back into the digest bytes the filter is keyed by.
+     */
+    private static byte[] toKey(String phoneHash) {
+        return Base64.decode(phoneHash, Base64.NO_WRAP);
+    }
+}
@@ -2,29 +2,82 @@ package com.example.talkoloco.controllers;
 
 import android.content.Context;
 import android.util.Log;
+import android.util.LruCache;
 import android.widget.Toast;
 
+import com.example.talkoloco.database.ProfileStore;
 import com.example.talkoloco.models.User;
+import com.example.talkoloco.utils.AppExecutors;
 import com.example.talkoloco.utils.Constants;
 import com.example.talkoloco.utils.PreferenceManager;
 import com.example.talkoloco.utils.KeyManager;
+import com.example.talkoloco.utils.SingleFlight;
+import com.example.talkoloco.utils.TaskUtils;
 import com.google.android.gms.tasks.OnFailureListener;
 import com.google.android.gms.tasks.OnSuccessListener;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldValue;
 import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.ListenerRegistration;
 import com.google.firebase.firestore.SetOptions;
 
 import com.example.talkoloco.utils.Hash;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The UserController class is a singleton controller that manages the user-related operations in the Firestore database.
+ * User lookups go through a two-tier profile cache: recently used profiles in memory, and
+ * every fetched profile on disk. A cached profile younger than the TTL is used without a
+ * read; older ones are shown first and then refreshed. Writes made here invalidate the
+ * cached copy, and screens can watch a document to keep its cached copy current.
  */
 public class UserController {
     private final FirebaseFirestore db;
     private static UserController instance;
     private static final String TAG = "UserController";
     private static final String USERS_COLLECTION = "users";
+    // Cached profiles younger than this are used without asking Firestore
+    private static final long PROFILE_TTL_MS = 5 * 60 * 1000L;
+    // Budget in characters, since older profiles still carry their avatar inline
+    private static final int MEMORY_CACHE_SIZE = 4 * 1024 * 1024;
+    private static final int PHONE_INDEX_SIZE = 256;
+    private static final int SHOWN_USERS_SIZE = 64;
+    private static final long LOOKUP_TIMEOUT_SECONDS = 15;
+
+    private final LruCache<String, ProfileStore.Profile> profiles =
+            new LruCache<String, ProfileStore.Profile>(MEMORY_CACHE_SIZE) {
+                @Override
+                protected int sizeOf(String userId, ProfileStore.Profile profile) {
+                    int size = 1;
+                    for (Map.Entry<String, Object> field : profile.data.entrySet()) {
+                        size += field.getKey().length() + String.valueOf(field.getValue()).length();
+                    }
+                    return size;
+                }
+            };
+    private final LruCache<String, String> userIdsByPhoneHash = new LruCache<>(PHONE_INDEX_SIZE);
+    // Users as a screen last showed them, so the next screen can be opened with just the ID
+    private final LruCache<String, User> shownUsers = new LruCache<>(SHOWN_USERS_SIZE);
+    // Lookups in flight, so concurrent callers share one read
+    private final SingleFlight<String, ProfileStore.Profile> profileFlights = new SingleFlight<>();
+    private final SingleFlight<String, ProfileStore.Profile> phoneFlights = new SingleFlight<>();
+    // Disk tier, available once init has been called
+    private ProfileStore profileStore;
+    private Context appContext;
+
+    /**
+     * Thrown by lookups when no user matches.
+     */
+    public static class UserNotFoundException extends Exception {
+        public UserNotFoundException() {
+            super("User not found");
+        }
+    }
 
     private UserController() {
         db = FirebaseFirestore.getInstance();
@@ -36,6 +89,16 @@ public class UserController {
         }
         return instance;
     }
+
+    /**
+     * Enables the disk tier of the profile cache and avatar uploads. Called once when the app starts.
+     *
+     * @param context Application context
+     */
+    public void init(Context context) {
+        appContext = context.getApplicationContext();
+        profileStore = ProfileStore.getInstance(context);
+    }
     /**
      * saves the user data to the Firestore database.
      *
@@ -61,12 +124,16 @@ public class UserController {
             preferenceManager.putString(Constants.KEY_PHONE_NUMBER, plainPhoneNumber);
         }
 
+        // Keep the name locally so it can be shown in other users' inboxes
+        if (user.getName() != null) {
+            new PreferenceManager(context).putString(Constants.KEY_NAME, user.getName());
+        }
+
         // Prepare Firestore data
         Map<String, Object> userData = new HashMap<>();
         userData.put(Constants.KEY_USER_ID, user.getUserId());
         userData.put(Constants.KEY_PHONE_NUMBER, user.getPhoneNumber_hash()); // Use hashed number
         userData.put(Constants.KEY_NAME, user.getName());
-        userData.put(Constants.KEY_PROFILE_PICTURE, user.getProfilePictureUrl());
         userData.put(Constants.KEY_CREATED_AT, user.getCreatedAt());
         userData.put(Constants.KEY_LAST_LOGIN, user.getLastLoginAt());
 
@@ -77,11 +144,18 @@ public class UserController {
         Log.d("UserController", "Saving user data with public key: " + user.getPublicKey());
 
         // Save to Firestore
-        db.collection(Constants.KEY_COLLECTION_USERS)
-                .document(user.getUserId())
-                .set(userData, SetOptions.merge())
+        DocumentReference userRef = db.collection(Constants.KEY_COLLECTION_USERS).document(user.getUserId());
+        userRef.set(userData, SetOptions.merge())
                 .addOnSuccessListener(aVoid -> {
                     Log.d("UserController", "User data saved successfully");
+                    invalidateUser(user.getUserId());
+                    // Let other devices know offline that this number is registered
+                    if (user.getPhoneNumber_hash() != null) {
+                        RegistryController.getInstance(context).register(user.getPhoneNumber_hash());
+                    }
+                    if (user.getProfilePictureUrl() != null) {
+                        saveAvatar(userRef, user.getProfilePictureUrl(), context);
+                    }
                     onSuccessListener.onSuccess(aVoid);
                 })
                 .addOnFailureListener(e -> {
@@ -90,6 +164,28 @@ public class UserController {
                 });
     }
 
+    /**
+     * Uploads the avatar of a saved user and points the user document at it. The user is
+     * already saved, so a failure only leaves them without an avatar until they set one again.
+     *
+     * @param userRef      the saved user document
+     * @param encodedImage the Base64 encoded avatar
+     * @param context      the application context
+     */
+    private void saveAvatar(DocumentReference userRef, String encodedImage, Context context) {
+        AvatarController.getInstance(context).uploadAvatar(encodedImage)
+                .onSuccessTask(avatarIds -> {
+                    Map<String, Object> updates = new HashMap<>();
+                    putAvatar(updates, avatarIds);
+                    return userRef.update(updates);
+                })
+                .addOnSuccessListener(aVoid -> {
+                    Log.d("UserController", "Avatar saved successfully");
+                    invalidateUser(userRef.getId());
+                })
+                .addOnFailureListener(e -> Log.e("UserController", "Error saving avatar", e));
+    }
+
 
 
 
@@ -105,11 +201,13 @@ public class UserController {
     }
 
     /**
-     * Updates the user's name and profile picture URL in the Firestore database.
+     * Updates the user's name and avatar in the Firestore database. The avatar is uploaded
+     * to its own documents first, and the user document only gets their IDs.
+     * Also bumps the avatar version so other clients know their cached copy is stale.
      *
      * @param userId            the ID of the user to be updated
      * @param name              the new name of the user
-     * @param profilePictureUrl the new profile picture URL of the user
+     * @param profilePictureUrl the new Base64 encoded avatar, or null to remove it
      * @param onSuccessListener the listener for the successful update operation
      * @param onFailureListener the listener for the failed update operation
      */
@@ -118,15 +216,30 @@ public class UserController {
                                   OnFailureListener onFailureListener) {
         Log.d(TAG, "Updating profile for user: " + userId);
 
-        Map<String, Object> updates = new HashMap<>();
-        updates.put(Constants.KEY_NAME, name);
-        updates.put(Constants.KEY_PROFILE_PICTURE, profilePictureUrl);
+        Task<AvatarController.AvatarIds> avatarTask = profilePictureUrl != null
+                ? AvatarController.getInstance(appContext).uploadAvatar(profilePictureUrl)
+                : Tasks.forResult(null);
 
-        db.collection(Constants.KEY_COLLECTION_USERS)
-                .document(userId)
-                .set(updates, SetOptions.merge())
+        avatarTask
+                .onSuccessTask(avatarIds -> {
+                    Map<String, Object> updates = new HashMap<>();
+                    updates.put(Constants.KEY_NAME, name);
+                    if (avatarIds != null) {
+                        putAvatar(updates, avatarIds);
+                    } else {
+                        updates.put(Constants.KEY_AVATAR_THUMB_ID, FieldValue.delete());
+                        updates.put(Constants.KEY_AVATAR_ID, FieldValue.delete());
+                        updates.put(Constants.KEY_AVATAR_VERSION, FieldValue.increment(1));
+                    }
+                    // Drop the inline image of profiles saved before avatars had their own documents
+                    updates.put(Constants.KEY_PROFILE_PICTURE, FieldValue.delete());
+                    return db.collection(Constants.KEY_COLLECTION_USERS)
+                            .document(userId)
+                            .set(updates, SetOptions.merge());
+                })
                 .addOnSuccessListener(aVoid -> {
                     Log.d(TAG, "User profile successfully updated");
+                    invalidateUser(userId);
                     onSuccessListener.onSuccess(aVoid);
                 })
                 .addOnFailureListener(e -> {
@@ -158,6 +271,7 @@ public class UserController {
                 .set(updates, SetOptions.merge())
                 .addOnSuccessListener(aVoid -> {
                     Log.d(TAG, "User fields successfully updated");
+                    invalidateUser(userId);
                     onSuccessListener.onSuccess(aVoid);
                 })
                 .addOnFailureListener(e -> {
@@ -166,6 +280,21 @@ public class UserController {
                 });
     }
 
+    /**
+     * Stores the FCM registration token of this device on the user's document, so new
+     * messages can be pushed to it.
+     *
+     * @param userId the ID of the signed in user
+     * @param token  the FCM registration token
+     */
+    public void updateFcmToken(String userId, String token) {
+        Map<String, Object> updates = new HashMap<>();
+        updates.put(Constants.KEY_FCM_TOKEN, token);
+        updateFields(userId, updates,
+                aVoid -> Log.d(TAG, "FCM token registered"),
+                e -> Log.e(TAG, "Error registering FCM token", e));
+    }
+
     /**
      * Updates the last login timestamp for a user.
      *
@@ -181,37 +310,128 @@ public class UserController {
         db.collection(USERS_COLLECTION)
                 .document(userId)
                 .set(updates, SetOptions.merge())
-                .addOnSuccessListener(onSuccessListener)
+                .addOnSuccessListener(aVoid -> {
+                    invalidateUser(userId);
+                    onSuccessListener.onSuccess(aVoid);
+                })
                 .addOnFailureListener(onFailureListener);
     }
 
     /**
-     * Retrieves a user by their ID from the Firestore database.
+     * Retrieves a user by their ID, from the profile cache if it is fresh, otherwise from
+     * the Firestore database. If Firestore cannot be reached, a stale cached copy is used.
+     * Concurrent lookups of the same user share one read.
+     *
+     * @param userId the ID of the user to retrieve
+     * @return task with the user, failing if the user does not exist or cannot be read in time
+     */
+    public Task<User> getUserById(String userId) {
+        Log.d(TAG, "Fetching user with ID: " + userId);
+
+        return TaskUtils.withTimeout(getCachedProfile(userId).continueWithTask(cachedTask -> {
+            ProfileStore.Profile cached = cachedTask.getResult();
+            if (isFresh(cached)) {
+                return Tasks.forResult(toUser(cached));
+            }
+            return fetchProfile(userId).continueWithTask(fetchTask -> {
+                if (fetchTask.isSuccessful()) {
+                    Log.d(TAG, "User successfully fetched");
+                    return Tasks.forResult(toUser(fetchTask.getResult()));
+                }
+                if (cached != null && !(fetchTask.getException() instanceof UserNotFoundException)) {
+                    Log.w(TAG, "Using cached user after failed fetch", fetchTask.getException());
+                    return Tasks.forResult(toUser(cached));
+                }
+                return Tasks.forException(fetchTask.getException());
+            });
+        }), LOOKUP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Remembers a user as a screen shows it, so a screen opened for that user can be given
+     * only the ID instead of a serialized copy of the user.
+     *
+     * @param user the user being shown, with its ID set
+     */
+    public void rememberUser(User user) {
+        if (user != null && user.id != null) {
+            shownUsers.put(user.id, user);
+        }
+    }
+
+    /**
+     * Returns a user without waiting, as a screen last showed it or else from the memory
+     * tier of the profile cache, however old. Screens that need current data should follow
+     * up with getUserById.
+     *
+     * @param userId the ID of the user
+     * @return the user, or null if it is not in memory, such as after the process was restarted
+     */
+    public User peekUser(String userId) {
+        if (userId == null) {
+            return null;
+        }
+        User shown = shownUsers.get(userId);
+        if (shown != null) {
+            return shown;
+        }
+        ProfileStore.Profile cached = profiles.get(userId);
+        return cached != null ? toUser(cached) : null;
+    }
+
+    /**
+     * Retrieves a user by their ID in two steps: any cached copy is delivered at once so a
+     * screen can render straight away, then a fresh copy is delivered if the cached one was
+     * missing or older than the TTL.
      *
      * @param userId            the ID of the user to retrieve
-     * @param onSuccessListener the listener for the successful retrieval operation
-     * @param onFailureListener the listener for the failed retrieval operation
+     * @param onCachedListener  receives the cached copy, if there is one
+     * @param onFreshListener   receives the copy fetched from Firestore, if one was needed
+     * @param onFailureListener the listener for the failed retrieval, only called if there
+     *                          was no cached copy either
      */
-    public void getUserById(String userId, OnSuccessListener<User> onSuccessListener,
+    public void getUserById(String userId, OnSuccessListener<User> onCachedListener,
+                            OnSuccessListener<User> onFreshListener,
                             OnFailureListener onFailureListener) {
-        Log.d(TAG, "Fetching user with ID: " + userId);
+        getCachedProfile(userId).addOnSuccessListener(cached -> {
+            if (cached != null) {
+                onCachedListener.onSuccess(toUser(cached));
+                if (isFresh(cached)) {
+                    return;
+                }
+            }
+            TaskUtils.withTimeout(fetchProfile(userId), LOOKUP_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                    .addOnSuccessListener(profile -> onFreshListener.onSuccess(toUser(profile)))
+                    .addOnFailureListener(e -> {
+                        if (cached == null) {
+                            onFailureListener.onFailure(e);
+                        } else {
+                            Log.w(TAG, "Keeping cached user after failed fetch", e);
+                        }
+                    });
+        });
+    }
 
-        db.collection(USERS_COLLECTION)
+    /**
+     * Keeps the cached profile of a user in step with their document for as long as the
+     * returned registration is active. Only the one document is listened to.
+     *
+     * @param userId the ID of the user to watch
+     * @return the registration to remove when the screen stops
+     */
+    public ListenerRegistration watchUser(String userId) {
+        return db.collection(USERS_COLLECTION)
                 .document(userId)
-                .get()
-                .addOnSuccessListener(documentSnapshot -> {
-                    User user = documentSnapshot.toObject(User.class);
-                    if (user != null) {
-                        Log.d(TAG, "User successfully fetched");
-                        onSuccessListener.onSuccess(user);
-                    } else {
-                        Log.d(TAG, "No user found with ID: " + userId);
-                        onFailureListener.onFailure(new Exception("User not found"));
+                .addSnapshotListener((snapshot, e) -> {
+                    if (e != null) {
+                        Log.e(TAG, "Error watching user", e);
+                        return;
+                    }
+                    // Only snapshots confirmed by the server say something new
+                    if (snapshot != null && !snapshot.getMetadata().isFromCache()
+                            && !snapshot.getMetadata().hasPendingWrites()) {
+                        cacheSnapshot(snapshot);
                     }
-                })
-                .addOnFailureListener(e -> {
-                    Log.e(TAG, "Error fetching user", e);
-                    onFailureListener.onFailure(e);
                 });
     }
 
@@ -231,6 +451,7 @@ public class UserController {
                 .delete()
                 .addOnSuccessListener(aVoid -> {
                     Log.d(TAG, "User successfully deleted");
+                    invalidateUser(userId);
                     onSuccessListener.onSuccess(aVoid);
                 })
                 .addOnFailureListener(e -> {
@@ -241,80 +462,79 @@ public class UserController {
 
     /**
      * Checks if a user with the given ID exists in the Firestore database.
+     * A fresh cached profile counts as existing; otherwise the fetched profile is cached,
+     * so a lookup of the same user right after is served from memory.
      *
-     * @param userId            the ID of the user to be checked
-     * @param onSuccessListener the listener for the successful check operation
-     * @param onFailureListener the listener for the failed check operation
+     * @param userId the ID of the user to be checked
+     * @return task with whether the user exists
      */
-    public void checkIfUserExists(String userId, OnSuccessListener<Boolean> onSuccessListener,
-                                  OnFailureListener onFailureListener) {
+    public Task<Boolean> checkIfUserExists(String userId) {
         Log.d(TAG, "Checking if user exists: " + userId);
 
-        db.collection(USERS_COLLECTION)
-                .document(userId)
-                .get()
-                .addOnSuccessListener(documentSnapshot -> {
-                    boolean exists = documentSnapshot.exists();
+        return TaskUtils.withTimeout(getCachedProfile(userId).continueWithTask(cachedTask -> {
+            if (isFresh(cachedTask.getResult())) {
+                return Tasks.forResult(true);
+            }
+            return fetchProfile(userId).continueWithTask(fetchTask -> {
+                if (fetchTask.isSuccessful() || fetchTask.getException() instanceof UserNotFoundException) {
+                    boolean exists = fetchTask.isSuccessful();
                     Log.d(TAG, "User exists: " + exists);
-                    onSuccessListener.onSuccess(exists);
-                })
-                .addOnFailureListener(e -> {
-                    Log.e(TAG, "Error checking if user exists", e);
-                    onFailureListener.onFailure(e);
-                });
+                    return Tasks.forResult(exists);
+                }
+                Log.e(TAG, "Error checking if user exists", fetchTask.getException());
+                return Tasks.forException(fetchTask.getException());
+            });
+        }), LOOKUP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
     }
 
     /**
-     * Finds a user by their phone number in the Firestore database.
+     * Finds a user by their phone number, from the profile cache if it is fresh,
+     * otherwise from the Firestore database. Concurrent lookups of the same number
+     * share one query.
      *
-     * @param phoneNumber       the phone number to search for
-     * @param onSuccessListener the listener for the successful retrieval
-     * @param onFailureListener the listener for the failed retrieval operation
+     * @param phoneNumber the phone number to search for
+     * @return task with the user, failing if no user has the number
      */
-    public void getUserByPhoneNumber(String phoneNumber, OnSuccessListener<User> onSuccessListener,
-                                     OnFailureListener onFailureListener) {
+    public Task<User> getUserByPhoneNumber(String phoneNumber) {
         Log.d(TAG, "Looking up user by phone number");
 
         // Hash the phone number before querying
         String hashedPhoneNumber = Hash.hashPhoneNumber(phoneNumber);
 
-        db.collection(Constants.KEY_COLLECTION_USERS)
-                .whereEqualTo(Constants.KEY_PHONE_NUMBER, hashedPhoneNumber)
-                .get()
-                .addOnSuccessListener(querySnapshot -> {
-                    if (!querySnapshot.isEmpty()) {
-                        User user = querySnapshot.getDocuments().get(0).toObject(User.class);
-                        if (user != null) {
-                            // Set the user ID from the document ID
-                            user.setUserId(querySnapshot.getDocuments().get(0).getId());
-                            Log.d(TAG, "User found by phone number");
-                            onSuccessListener.onSuccess(user);
-                        } else {
-                            Log.d(TAG, "User document exists but couldn't be converted to User object");
-                            onFailureListener.onFailure(new Exception("User not found"));
-                        }
-                    } else {
-                        Log.d(TAG, "No user found with phone number: " + phoneNumber);
-                        onFailureListener.onFailure(new Exception("User not found"));
-                    }
-                })
-                .addOnFailureListener(e -> {
-                    Log.e(TAG, "Error finding user by phone number", e);
-                    onFailureListener.onFailure(e);
-                });
+        return TaskUtils.withTimeout(getCachedProfileByPhoneHash(hashedPhoneNumber).continueWithTask(cachedTask -> {
+            ProfileStore.Profile cached = cachedTask.getResult();
+            if (isFresh(cached)) {
+                return Tasks.forResult(toUser(cached));
+            }
+            return fetchProfileByPhoneHash(hashedPhoneNumber).continueWith(fetchTask -> {
+                if (!fetchTask.isSuccessful()) {
+                    Log.d(TAG, "No user found with phone number: " + phoneNumber);
+                    throw fetchTask.getException();
+                }
+                Log.d(TAG, "User found by phone number");
+                return toUser(fetchTask.getResult());
+            });
+        }), LOOKUP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
     }
 
-    public void doesPhoneNumberExist(String phoneNumber, OnSuccessListener<Boolean> onSuccess,
-                                     OnFailureListener onFailure) {
+    /**
+     * Checks whether a phone number is registered. Always asks Firestore, since the answer
+     * decides whether a number can be taken, but shares the query with concurrent lookups
+     * of the same number.
+     *
+     * @param phoneNumber the phone number to check
+     * @return task with whether a user has the number
+     */
+    public Task<Boolean> doesPhoneNumberExist(String phoneNumber) {
         // Hash the phone number
         String hashedPhoneNumber = Hash.hashPhoneNumber(phoneNumber);
 
-        db.collection(Constants.KEY_COLLECTION_USERS)
-                .whereEqualTo(Constants.KEY_PHONE_NUMBER, hashedPhoneNumber)
-                .limit(1)
-                .get()
-                .addOnSuccessListener(querySnapshot -> onSuccess.onSuccess(!querySnapshot.isEmpty()))
-                .addOnFailureListener(onFailure);
+        return TaskUtils.withTimeout(fetchProfileByPhoneHash(hashedPhoneNumber).continueWithTask(fetchTask -> {
+            if (fetchTask.isSuccessful() || fetchTask.getException() instanceof UserNotFoundException) {
+                return Tasks.forResult(fetchTask.isSuccessful());
+            }
+            return Tasks.forException(fetchTask.getException());
+        }), LOOKUP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
     }
 
 
@@ -333,5 +553,189 @@ public class UserController {
                 .addOnFailureListener(onFailureListener);
     }
 
+    /**
+     * Looks up a cached profile, in memory first and then on disk.
+     *
+     * @param userId the ID of the user
+     * @return task with the cached profile, or null if there is none
+     */
+    private Task<ProfileStore.Profile> getCachedProfile(String userId) {
+        ProfileStore.Profile cached = profiles.get(userId);
+        if (cached != null || profileStore == null) {
+            return Tasks.forResult(cached);
+        }
+        return Tasks.call(AppExecutors.getInstance().diskIO(), () -> {
+            ProfileStore.Profile stored = profileStore.getProfile(userId);
+            if (stored != null) {
+                profiles.put(userId, stored);
+            }
+            return stored;
+        });
+    }
+
+    /**
+     * Looks up a cached profile by the hash of its phone number, in memory first and then on disk.
+     *
+     * @param phoneHash the hashed phone number
+     * @return task with the cached profile, or null if there is none
+     */
+    private Task<ProfileStore.Profile> getCachedProfileByPhoneHash(String phoneHash) {
+        String userId = userIdsByPhoneHash.get(phoneHash);
+        ProfileStore.Profile cached = userId != null ? profiles.get(userId) : null;
+        // The user may have changed their number since the index entry was made
+        if (cached != null && !phoneHash.equals(cached.data.get(Constants.KEY_PHONE_NUMBER))) {
+            cached = null;
+        }
+        if (cached != null || profileStore == null) {
+            return Tasks.forResult(cached);
+        }
+        return Tasks.call(AppExecutors.getInstance().diskIO(), () -> {
+            ProfileStore.Profile stored = profileStore.getProfileByPhoneHash(phoneHash);
+            if (stored != null) {
+                profiles.put(stored.userId, stored);
+                userIdsByPhoneHash.put(phoneHash, stored.userId);
+            }
+            return stored;
+        });
+    }
+
+    /**
+     * Fetches a user's document from Firestore and caches it. Concurrent fetches of the
+     * same user share one read.
+     *
+     * @param userId the ID of the user
+     * @return task with the fetched profile, failing with UserNotFoundException if there is none
+     */
+    private Task<ProfileStore.Profile> fetchProfile(String userId) {
+        return profileFlights.run(userId, () -> db.collection(USERS_COLLECTION)
+                .document(userId)
+                .get()
+                .continueWith(task -> {
+                    if (!task.isSuccessful()) {
+                        Log.e(TAG, "Error fetching user", task.getException());
+                        throw task.getException();
+                    }
+                    ProfileStore.Profile profile = cacheSnapshot(task.getResult());
+                    if (profile == null) {
+                        Log.d(TAG, "No user found with ID: " + userId);
+                        throw new UserNotFoundException();
+                    }
+                    return profile;
+                }));
+    }
 
-}
\ No newline at end of file
+    /**
+     * Finds the user with a phone number in Firestore and caches their profile. Concurrent
+     * lookups of the same number share one query.
+     *
+     * @param phoneHash the hashed phone number
+     * @return task with the found profile, failing with UserNotFoundException if there is none
+     */
+    private Task<ProfileStore.Profile> fetchProfileByPhoneHash(String phoneHash) {
+        return phoneFlights.run(phoneHash, () -> db.collection(Constants.KEY_COLLECTION_USERS)
+                .whereEqualTo(Constants.KEY_PHONE_NUMBER, phoneHash)
+                .limit(1)
+                .get()
+                .continueWith(task -> {
+                    if (!task.isSuccessful()) {
+                        Log.e(TAG, "Error finding user by phone number", task.getException());
+                        throw task.getException();
+                    }
+                    if (task.getResult().isEmpty()) {
+                        throw new UserNotFoundException();
+                    }
+                    return cacheSnapshot(task.getResult().getDocuments().get(0));
+                }));
+    }
+
+    /**
+     * Puts a fetched user document in both cache tiers, or drops the cached copy if the
+     * document no longer exists.
+     *
+     * @param snapshot the fetched document
+     * @return the cached profile, or null if the user does not exist
+     */
+    private ProfileStore.Profile cacheSnapshot(DocumentSnapshot snapshot) {
+        Map<String, Object> data = snapshot.getData();
+        if (!snapshot.exists() || data == null) {
+            invalidateUser(snapshot.getId());
+            return null;
+        }
+        ProfileStore.Profile profile = new ProfileStore.Profile(snapshot.getId(), data,
+                System.currentTimeMillis());
+        profiles.put(profile.userId, profile);
+        String phoneHash = snapshot.getString(Constants.KEY_PHONE_NUMBER);
+        if (phoneHash != null) {
+            userIdsByPhoneHash.put(phoneHash, profile.userId);
+        }
+        if (profileStore != null) {
+            AppExecutors.getInstance().diskIO().execute(() -> profileStore.saveProfile(profile, phoneHash));
+        }
+        return profile;
+    }
+
+    /**
+     * Drops a user's cached profile from both tiers, so the next lookup reads Firestore.
+     *
+     * @param userId the ID of the user
+     */
+    private void invalidateUser(String userId) {
+        if (userId == null) {
+            return;
+        }
+        profiles.remove(userId);
+        if (profileStore != null) {
+            AppExecutors.getInstance().diskIO().execute(() -> profileStore.deleteProfile(userId));
+        }
+    }
+
+    /**
+     * Adds the fields that point a user document at an uploaded avatar.
+     *
+     * @param fields    the fields to write
+     * @param avatarIds the uploaded avatar
+     */
+    private static void putAvatar(Map<String, Object> fields, AvatarController.AvatarIds avatarIds) {
+        fields.put(Constants.KEY_AVATAR_THUMB_ID, avatarIds.thumbId);
+        fields.put(Constants.KEY_AVATAR_ID, avatarIds.avatarId);
+        fields.put(Constants.KEY_AVATAR_VERSION, FieldValue.increment(1));
+    }
+
+    private static boolean isFresh(ProfileStore.Profile profile) {
+        return profile != null && System.currentTimeMillis() - profile.fetchedAt < PROFILE_TTL_MS;
+    }
+
+    /**
+     * Builds a new User from a cached profile, mapping the same fields Firestore would.
+     * Each call returns its own copy, so callers may change it freely.
+     *
+     * @param profile the cached profile
+     * @return the user
+     */
+    private static User toUser(ProfileStore.Profile profile) {
+        Map<String, Object> data = profile.data;
+        User user = new User();
+        user.setUserId(profile.userId);
+        user.id = profile.userId;
+        user.name = asString(data.get(Constants.KEY_NAME));
+        user.profilePictureUrl = asString(data.get(Constants.KEY_PROFILE_PICTURE));
+        user.setPhoneNumber(asString(data.get(Constants.KEY_PHONE_NUMBER)));
+        user.setStatus(asString(data.get(Constants.KEY_STATUS)));
+        user.setPublicKey(asString(data.get(Constants.KEY_PUBLIC_KEY)));
+        user.token = asString(data.get(Constants.KEY_FCM_TOKEN));
+        user.setCreatedAt(asLong(data.get(Constants.KEY_CREATED_AT), user.getCreatedAt()));
+        user.setLastLoginAt(asLong(data.get(Constants.KEY_LAST_LOGIN), user.getLastLoginAt()));
+        user.setAvatarVersion(asLong(data.get(Constants.KEY_AVATAR_VERSION), 0));
+        user.setAvatarThumbId(asString(data.get(Constants.KEY_AVATAR_THUMB_ID)));
+        user.setAvatarId(asString(data.get(Constants.KEY_AVATAR_ID)));
+        return user;
+    }
+
+    private static String asString(Object value) {
+        return value instanceof String ? (String) value : null;
+    }
+
+    private static long asLong(Object value, long defaultValue) {
+        return value instanceof Number ? ((Number) value).longValue() : defaultValue;
+    }
+}
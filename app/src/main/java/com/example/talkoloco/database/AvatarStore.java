@@ -0,0 +1,96 @@
+package com.example.talkoloco.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Local store for other users' avatars, tagged with the avatar version they were fetched at.
+ * An avatar only has to be downloaded again when the user's avatar version changes.
+ * All methods touch the disk and should be called from a background thread.
+ */
+public class AvatarStore {
+    private static AvatarStore instance;
+    private final LocalDatabase database;
+
+    /**
+     * A stored avatar and the version it belongs to.
+     */
+    public static class Avatar {
+        public final long version;
+        public final String image;
+
+        Avatar(long version, String image) {
+            this.version = version;
+            this.image = image;
+        }
+    }
+
+    private AvatarStore(Context context) {
+        database = LocalDatabase.getInstance(context);
+    }
+
+    /**
+     * Returns instance of AvatarStore.
+     *
+     * @param context Application context
+     * @return AvatarStore instance
+     */
+    public static synchronized AvatarStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new AvatarStore(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Looks up the stored avatars of several users.
+     *
+     * @param userIds the users to look up
+     * @return map of user ID to stored avatar, for the users that have one
+     */
+    public Map<String, Avatar> getAvatars(Collection<String> userIds) {
+        Map<String, Avatar> avatars = new HashMap<>();
+        if (userIds.isEmpty()) {
+            return avatars;
+        }
+        StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < userIds.size(); i++) {
+            placeholders.append(i == 0 ? "?" : ", ?");
+        }
+        SQLiteDatabase db = database.getReadableDatabase();
+        try (Cursor cursor = db.query(LocalDatabase.TABLE_AVATARS, null,
+                LocalDatabase.COLUMN_USER_ID + " IN (" + placeholders + ")",
+                userIds.toArray(new String[0]), null, null, null)) {
+            while (cursor.moveToNext()) {
+                avatars.put(
+                        cursor.getString(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_USER_ID)),
+                        new Avatar(
+                                cursor.getLong(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_AVATAR_VERSION)),
+                                cursor.getString(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_IMAGE))));
+            }
+        }
+        return avatars;
+    }
+
+    /**
+     * Saves a user's avatar, replacing any older version.
+     *
+     * @param userId  the ID of the user
+     * @param version the avatar version the image belongs to
+     * @param image   the Base64 encoded image, or null if the user has no avatar
+     */
+    public void saveAvatar(String userId, long version, String image) {
+        ContentValues values = new ContentValues();
+        values.put(LocalDatabase.COLUMN_USER_ID, userId);
+        values.put(LocalDatabase.COLUMN_AVATAR_VERSION, version);
+        values.put(LocalDatabase.COLUMN_IMAGE, image);
+        database.getWritableDatabase().insertWithOnConflict(LocalDatabase.TABLE_AVATARS, null,
+                values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+}
@@ -0,0 +1,124 @@
+package com.example.talkoloco.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Local store of the phone numbers in the device address book that have been checked
+ * against registered users. Each number is kept by its address book row and the version
+ * of that row it was checked at, so a re-sync only checks numbers that changed.
+ * Only the hash of a number is stored, never the number itself.
+ * All methods touch the disk and should be called from a background thread.
+ */
+public class ContactStore {
+    private static ContactStore instance;
+    private final LocalDatabase database;
+
+    /**
+     * A checked address book number.
+     */
+    public static class Contact {
+        public final long dataId;
+        public final int dataVersion;
+        // Null if the number could not be normalized
+        public final String phoneHash;
+        // Null if the number does not belong to a user
+        public String userId;
+
+        public Contact(long dataId, int dataVersion, String phoneHash) {
+            this.dataId = dataId;
+            this.dataVersion = dataVersion;
+            this.phoneHash = phoneHash;
+        }
+    }
+
+    private ContactStore(Context context) {
+        database = LocalDatabase.getInstance(context);
+    }
+
+    /**
+     * Returns instance of ContactStore.
+     *
+     * @param context Application context
+     * @return ContactStore instance
+     */
+    public static synchronized ContactStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new ContactStore(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the address book rows that have been checked and the version they were checked at.
+     *
+     * @return map of address book row ID to row version
+     */
+    public Map<Long, Integer> getVersions() {
+        Map<Long, Integer> versions = new HashMap<>();
+        SQLiteDatabase db = database.getReadableDatabase();
+        try (Cursor cursor = db.query(LocalDatabase.TABLE_CONTACTS,
+                new String[]{LocalDatabase.COLUMN_DATA_ID, LocalDatabase.COLUMN_DATA_VERSION},
+                null, null, null, null, null)) {
+            while (cursor.moveToNext()) {
+                versions.put(cursor.getLong(0), cursor.getInt(1));
+            }
+        }
+        return versions;
+    }
+
+    /**
+     * Returns the IDs of the users found in the address book.
+     *
+     * @return the registered users' IDs
+     */
+    public Set<String> getRegisteredUserIds() {
+        Set<String> userIds = new HashSet<>();
+        SQLiteDatabase db = database.getReadableDatabase();
+        try (Cursor cursor = db.query(true, LocalDatabase.TABLE_CONTACTS,
+                new String[]{LocalDatabase.COLUMN_USER_ID},
+                LocalDatabase.COLUMN_USER_ID + " IS NOT NULL", null, null, null, null, null)) {
+            while (cursor.moveToNext()) {
+                userIds.add(cursor.getString(0));
+            }
+        }
+        return userIds;
+    }
+
+    /**
+     * Saves checked numbers and forgets address book rows that no longer exist, in one transaction.
+     *
+     * @param contacts       the checked numbers
+     * @param removedDataIds the address book rows that were deleted
+     */
+    public void saveContacts(Collection<Contact> contacts, Collection<Long> removedDataIds) {
+        SQLiteDatabase db = database.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Contact contact : contacts) {
+                ContentValues values = new ContentValues();
+                values.put(LocalDatabase.COLUMN_DATA_ID, contact.dataId);
+                values.put(LocalDatabase.COLUMN_DATA_VERSION, contact.dataVersion);
+                values.put(LocalDatabase.COLUMN_PHONE_HASH, contact.phoneHash);
+                values.put(LocalDatabase.COLUMN_USER_ID, contact.userId);
+                db.insertWithOnConflict(LocalDatabase.TABLE_CONTACTS, null, values,
+                        SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            for (Long dataId : removedDataIds) {
+                db.delete(LocalDatabase.TABLE_CONTACTS, LocalDatabase.COLUMN_DATA_ID + " = ?",
+                        new String[]{String.valueOf(dataId)});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package com.example.talkoloco.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import com.example.talkoloco.utils.LocalStoreCipher;
+
+/**
+ * On-device SQLite database holding data that should be available without the network.
+ * Messages are stored already decrypted so a chat can be drawn straight from disk; their
+ * text, like the Signal protocol records, is encrypted at rest with the device's local store key.
+ */
+public class LocalDatabase extends SQLiteOpenHelper {
+    private static final String TAG = "LocalDatabase";
+    private static final String DATABASE_NAME = "talkoloco.db";
+    private static final int DATABASE_VERSION = 13;
+
+    // messages table
+    static final String TABLE_MESSAGES = "messages";
+    static final String COLUMN_MESSAGE_ID = "message_id";
+    static final String COLUMN_CONVERSATION_ID = "conversation_id";
+    static final String COLUMN_SENDER_ID = "sender_id";
+    static final String COLUMN_RECEIVER_ID = "receiver_id";
+    static final String COLUMN_MESSAGE = "message";
+    static final String COLUMN_MESSAGE_TYPE = "message_type";
+    static final String COLUMN_MEDIA_HASH = "media_hash";
+    static final String COLUMN_THUMBNAIL = "thumbnail";
+    static final String COLUMN_TIMESTAMP = "timestamp";
+    static final String COLUMN_IS_RATCHET = "is_ratchet";
+    static final String COLUMN_SENT_AT = "sent_at";
+
+    // avatars table
+    static final String TABLE_AVATARS = "avatars";
+    static final String COLUMN_USER_ID = "user_id";
+    static final String COLUMN_AVATAR_VERSION = "avatar_version";
+    static final String COLUMN_IMAGE = "image";
+
+    // signal protocol records table
+    static final String TABLE_SIGNAL_RECORDS = "signal_records";
+    static final String COLUMN_RECORD_TYPE = "record_type";
+    static final String COLUMN_RECORD_ID = "record_id";
+    static final String COLUMN_RECORD = "record";
+
+    // outbox table, reusing the message columns above
+    static final String TABLE_OUTBOX = "outbox";
+    static final String COLUMN_SENDER_NAME = "sender_name";
+    static final String COLUMN_SENDER_AVATAR_VERSION = "sender_avatar_version";
+    static final String COLUMN_RECEIVER_NAME = "receiver_name";
+    static final String COLUMN_RECEIVER_AVATAR_VERSION = "receiver_avatar_version";
+    static final String COLUMN_PAYLOAD = "payload";
+    static final String COLUMN_ATTEMPTS = "attempts";
+    static final String COLUMN_IS_FAILED = "is_failed";
+
+    // address book contacts table
+    static final String TABLE_CONTACTS = "contacts";
+    static final String COLUMN_DATA_ID = "data_id";
+    static final String COLUMN_DATA_VERSION = "data_version";
+    static final String COLUMN_PHONE_HASH = "phone_hash";
+
+    // user profiles table, reusing the user and phone hash columns above
+    static final String TABLE_PROFILES = "profiles";
+    static final String COLUMN_DATA = "data";
+    static final String COLUMN_FETCHED_AT = "fetched_at";
+
+    private static LocalDatabase instance;
+    private final Context context;
+
+    private LocalDatabase(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this.context = context;
+    }
+
+    /**
+     * Returns instance of LocalDatabase.
+     *
+     * @param context Application context
+     * @return LocalDatabase instance
+     */
+    public static synchronized LocalDatabase getInstance(Context context) {
+        if (instance == null) {
+            instance = new LocalDatabase(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_MESSAGES + " ("
+                + COLUMN_MESSAGE_ID + " TEXT PRIMARY KEY, "
+                + COLUMN_CONVERSATION_ID + " TEXT NOT NULL, "
+                + COLUMN_SENDER_ID + " TEXT, "
+                + COLUMN_RECEIVER_ID + " TEXT, "
+                + COLUMN_MESSAGE + " BLOB, "
+                + COLUMN_MESSAGE_TYPE + " TEXT, "
+                + COLUMN_MEDIA_HASH + " TEXT, "
+                + COLUMN_THUMBNAIL + " BLOB, "
+                + COLUMN_TIMESTAMP + " INTEGER NOT NULL, "
+                + COLUMN_IS_RATCHET + " INTEGER NOT NULL DEFAULT 1, "
+                + COLUMN_SENT_AT + " INTEGER)");
+        db.execSQL("CREATE INDEX idx_messages_conversation ON " + TABLE_MESSAGES
+                + " (" + COLUMN_CONVERSATION_ID + ", " + COLUMN_TIMESTAMP + ")");
+        createAvatarsTable(db);
+        createSignalRecordsTable(db);
+        createOutboxTable(db);
+        createContactsTable(db);
+        createProfilesTable(db);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            createAvatarsTable(db);
+        }
+        if (oldVersion < 3) {
+            createSignalRecordsTable(db);
+        }
+        if (oldVersion < 4) {
+            encryptStoredMessages(db);
+        }
+        if (oldVersion < 5) {
+            db.execSQL("ALTER TABLE " + TABLE_MESSAGES + " ADD COLUMN " + COLUMN_MEDIA_HASH + " TEXT");
+        }
+        if (oldVersion < 6) {
+            db.execSQL("ALTER TABLE " + TABLE_MESSAGES + " ADD COLUMN " + COLUMN_THUMBNAIL + " BLOB");
+        }
+        if (oldVersion < 7) {
+            createOutboxTable(db);
+        }
+        if (oldVersion < 8) {
+            createContactsTable(db);
+        }
+        if (oldVersion < 9) {
+            createProfilesTable(db);
+        }
+        if (oldVersion < 10) {
+            // Stored messages cannot be told apart anymore, so none of them become evictable
+            db.execSQL("ALTER TABLE " + TABLE_MESSAGES + " ADD COLUMN " + COLUMN_IS_RATCHET
+                    + " INTEGER NOT NULL DEFAULT 1");
+        }
+        if (oldVersion < 11 && oldVersion >= 7) {
+            db.execSQL("ALTER TABLE " + TABLE_OUTBOX + " ADD COLUMN " + COLUMN_ATTEMPTS
+                    + " INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE " + TABLE_OUTBOX + " ADD COLUMN " + COLUMN_IS_FAILED
+                    + " INTEGER NOT NULL DEFAULT 0");
+        }
+        if (oldVersion < 12) {
+            // Stored messages have no server time, so the next sync starts from the newest page
+            db.execSQL("ALTER TABLE " + TABLE_MESSAGES + " ADD COLUMN " + COLUMN_SENT_AT + " INTEGER");
+        }
+        if (oldVersion < 13 && oldVersion >= 3) {
+            encryptSignalRecords(db);
+        }
+    }
+
+    /**
+     * Replaces the plaintext of every stored message with its encrypted form. Without the
+     * local store key the messages are deleted instead, since they could not be read anyway.
+     *
+     * @param db the database being upgraded
+     */
+    private void encryptStoredMessages(SQLiteDatabase db) {
+        LocalStoreCipher cipher = cipherOrNull();
+        if (cipher == null) {
+            db.delete(TABLE_MESSAGES, null, null);
+            return;
+        }
+        try (Cursor cursor = db.query(TABLE_MESSAGES, new String[]{COLUMN_MESSAGE_ID, COLUMN_MESSAGE},
+                COLUMN_MESSAGE + " IS NOT NULL", null, null, null, null)) {
+            while (cursor.moveToNext()) {
+                ContentValues values = new ContentValues();
+                values.put(COLUMN_MESSAGE, cipher.encrypt(cursor.getString(1)));
+                db.update(TABLE_MESSAGES, values, COLUMN_MESSAGE_ID + " = ?",
+                        new String[]{cursor.getString(0)});
+            }
+        }
+    }
+
+    /**
+     * Replaces every stored Signal protocol record with its encrypted form. Without the
+     * local store key the records are deleted instead, and a new identity is made on next use.
+     *
+     * @param db the database being upgraded
+     */
+    private void encryptSignalRecords(SQLiteDatabase db) {
+        LocalStoreCipher cipher = cipherOrNull();
+        if (cipher == null) {
+            db.delete(TABLE_SIGNAL_RECORDS, null, null);
+            return;
+        }
+        try (Cursor cursor = db.query(TABLE_SIGNAL_RECORDS,
+                new String[]{COLUMN_RECORD_TYPE, COLUMN_RECORD_ID, COLUMN_RECORD},
+                null, null, null, null, null)) {
+            while (cursor.moveToNext()) {
+                ContentValues values = new ContentValues();
+                values.put(COLUMN_RECORD, cipher.encryptBytes(cursor.getBlob(2)));
+                db.update(TABLE_SIGNAL_RECORDS, values,
+                        COLUMN_RECORD_TYPE + " = ? AND " + COLUMN_RECORD_ID + " = ?",
+                        new String[]{cursor.getString(0), cursor.getString(1)});
+            }
+        }
+    }
+
+    /**
+     * Returns the local store cipher, or null if the keystore cannot provide its key.
+     *
+     * @return the local store cipher, or null
+     */
+    private LocalStoreCipher cipherOrNull() {
+        try {
+            return LocalStoreCipher.getInstance(context);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Local store key unavailable, dropping data that cannot be encrypted", e);
+            return null;
+        }
+    }
+
+    private void createAvatarsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_AVATARS + " ("
+                + COLUMN_USER_ID + " TEXT PRIMARY KEY, "
+                + COLUMN_AVATAR_VERSION + " INTEGER NOT NULL, "
+                + COLUMN_IMAGE + " TEXT)");
+    }
+
+    private void createSignalRecordsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_SIGNAL_RECORDS + " ("
+                + COLUMN_RECORD_TYPE + " TEXT NOT NULL, "
+                + COLUMN_RECORD_ID + " TEXT NOT NULL, "
+                + COLUMN_RECORD + " BLOB NOT NULL, "
+                + "PRIMARY KEY (" + COLUMN_RECORD_TYPE + ", " + COLUMN_RECORD_ID + "))");
+    }
+
+    private void createOutboxTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_OUTBOX + " ("
+                + COLUMN_MESSAGE_ID + " TEXT PRIMARY KEY, "
+                + COLUMN_CONVERSATION_ID + " TEXT NOT NULL, "
+                + COLUMN_SENDER_ID + " TEXT NOT NULL, "
+                + COLUMN_SENDER_NAME + " TEXT, "
+                + COLUMN_SENDER_AVATAR_VERSION + " INTEGER NOT NULL, "
+                + COLUMN_RECEIVER_ID + " TEXT NOT NULL, "
+                + COLUMN_RECEIVER_NAME + " TEXT, "
+                + COLUMN_RECEIVER_AVATAR_VERSION + " INTEGER NOT NULL, "
+                + COLUMN_PAYLOAD + " TEXT NOT NULL, "
+                + COLUMN_TIMESTAMP + " INTEGER NOT NULL, "
+                + COLUMN_ATTEMPTS + " INTEGER NOT NULL DEFAULT 0, "
+                + COLUMN_IS_FAILED + " INTEGER NOT NULL DEFAULT 0)");
+    }
+
+    private void createContactsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_CONTACTS + " ("
+                + COLUMN_DATA_ID + " INTEGER PRIMARY KEY, "
+                + COLUMN_DATA_VERSION + " INTEGER NOT NULL, "
+                + COLUMN_PHONE_HASH + " TEXT, "
+                + COLUMN_USER_ID + " TEXT)");
+    }
+
+    private void createProfilesTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_PROFILES + " ("
+                + COLUMN_USER_ID + " TEXT PRIMARY KEY, "
+                + COLUMN_PHONE_HASH + " TEXT, "
+                + COLUMN_DATA + " TEXT NOT NULL, "
+                + COLUMN_FETCHED_AT + " INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX idx_profiles_phone_hash ON " + TABLE_PROFILES
+                + " (" + COLUMN_PHONE_HASH + ")");
+    }
+}
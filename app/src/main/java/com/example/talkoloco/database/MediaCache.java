@@ -0,0 +1,83 @@
+package com.example.talkoloco.database;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * On-device cache of downloaded message media, one file per content hash.
+ * Kept in the app's cache directory, which the system may clear when space runs low.
+ * All methods touch the disk and should be called from a background thread.
+ */
+public class MediaCache {
+    private static final String TAG = "MediaCache";
+    private static final String DIRECTORY_NAME = "media";
+
+    private static MediaCache instance;
+    private final File directory;
+
+    private MediaCache(Context context) {
+        directory = new File(context.getCacheDir(), DIRECTORY_NAME);
+    }
+
+    /**
+     * Returns instance of MediaCache.
+     *
+     * @param context Application context
+     * @return MediaCache instance
+     */
+    public static synchronized MediaCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new MediaCache(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Reads cached media.
+     *
+     * @param mediaHash the content hash of the media
+     * @return the media bytes, or null if they are not cached
+     */
+    public byte[] getMedia(String mediaHash) {
+        File file = new File(directory, mediaHash);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            return Files.readAllBytes(file.toPath());
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading cached media", e);
+            return null;
+        }
+    }
+
+    /**
+     * Caches media. The file is written under a temporary name first, so a partly written
+     * file is never read back.
+     *
+     * @param mediaHash the content hash of the media
+     * @param content   the media bytes
+     */
+    public void saveMedia(String mediaHash, byte[] content) {
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.e(TAG, "Could not create media cache directory");
+            return;
+        }
+        File temporary = new File(directory, mediaHash + ".tmp");
+        try (FileOutputStream output = new FileOutputStream(temporary)) {
+            output.write(content);
+        } catch (IOException e) {
+            Log.e(TAG, "Error caching media", e);
+            temporary.delete();
+            return;
+        }
+        if (!temporary.renameTo(new File(directory, mediaHash))) {
+            temporary.delete();
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package com.example.talkoloco.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.example.talkoloco.models.ChatMessages;
+import com.example.talkoloco.utils.LocalStoreCipher;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Local store for decrypted chat messages, grouped by conversation.
+ * Lets ChatActivity render a conversation immediately and only decrypt messages it has not seen before.
+ * Message text is encrypted at rest with a device-bound key. Ratchet messages are kept for good,
+ * since this store holds the only copy of their plaintext. Other messages can be decrypted again
+ * from Firestore, so only the newest of those are kept.
+ * All methods touch the disk and should be called from a background thread.
+ */
+public class MessageStore {
+    private static final String TAG = "MessageStore";
+    // Oldest evictable messages are evicted beyond this many
+    private static final int MAX_EVICTABLE_MESSAGES = 20000;
+    // Evicted on top of the excess, so eviction runs once per this many saves
+    private static final int EVICTION_BATCH = 1000;
+
+    private static MessageStore instance;
+    private final Context context;
+    private final LocalDatabase database;
+    // Stored evictable messages, counted once and then kept up to date; -1 until counted
+    private long evictableCount = -1;
+
+    private MessageStore(Context context) {
+        this.context = context;
+        database = LocalDatabase.getInstance(context);
+    }
+
+    /**
+     * Returns instance of MessageStore.
+     *
+     * @param context Application context
+     * @return MessageStore instance
+     */
+    public static synchronized MessageStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new MessageStore(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Loads the newest stored messages of a conversation.
+     *
+     * @param conversationId the conversation ID
+     * @param limit          maximum number of messages to load
+     * @return list of decrypted messages, oldest first
+     */
+    public List<ChatMessages> getLatestMessages(String conversationId, int limit) {
+        return queryNewestFirst(LocalDatabase.COLUMN_CONVERSATION_ID + " = ?",
+                new String[]{conversationId}, limit);
+    }
+
+    /**
+     * Loads the stored messages of a conversation that are older than the given time.
+     *
+     * @param conversationId the conversation ID
+     * @param beforeMillis   only messages sent before this time are returned
+     * @param limit          maximum number of messages to load
+     * @return list of decrypted messages, oldest first
+     */
+    public List<ChatMessages> getMessagesBefore(String conversationId, long beforeMillis, int limit) {
+        return queryNewestFirst(LocalDatabase.COLUMN_CONVERSATION_ID + " = ? AND "
+                        + LocalDatabase.COLUMN_TIMESTAMP + " < ?",
+                new String[]{conversationId, String.valueOf(beforeMillis)}, limit);
+    }
+
+    /**
+     * Returns the server time of the newest stored message of a conversation that was read
+     * back from Firestore. Messages this device sent are stored before they reach the server
+     * and have no server time, so they never move the cursor past messages still to be synced.
+     *
+     * @param conversationId the conversation ID
+     * @return the newest server time in milliseconds, or null if no synced message is stored
+     */
+    public Long getNewestSentAt(String conversationId) {
+        SQLiteDatabase db = database.getReadableDatabase();
+        try (Cursor cursor = db.query(LocalDatabase.TABLE_MESSAGES,
+                new String[]{"MAX(" + LocalDatabase.COLUMN_SENT_AT + ")"},
+                LocalDatabase.COLUMN_CONVERSATION_ID + " = ?", new String[]{conversationId},
+                null, null, null)) {
+            if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                return cursor.getLong(0);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Looks up stored messages by their Firestore document IDs.
+     *
+     * @param messageIds the IDs to look up
+     * @return map of message ID to decrypted message, for the IDs that are stored
+     */
+    public Map<String, ChatMessages> getMessagesById(Collection<String> messageIds) {
+        Map<String, ChatMessages> messages = new HashMap<>();
+        if (messageIds.isEmpty()) {
+            return messages;
+        }
+        StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < messageIds.size(); i++) {
+            placeholders.append(i == 0 ? "?" : ", ?");
+        }
+        SQLiteDatabase db = database.getReadableDatabase();
+        try (Cursor cursor = db.query(LocalDatabase.TABLE_MESSAGES, null,
+                LocalDatabase.COLUMN_MESSAGE_ID + " IN (" + placeholders + ")",
+                messageIds.toArray(new String[0]), null, null, null)) {
+            while (cursor.moveToNext()) {
+                ChatMessages message = fromCursor(cursor);
+                if (message != null) {
+                    messages.put(message.messageId, message);
+                }
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Runs a query for the newest matching messages and returns them in display order.
+     *
+     * @param selection     WHERE clause of the query
+     * @param selectionArgs arguments of the WHERE clause
+     * @param limit         maximum number of messages to load
+     * @return list of decrypted messages, oldest first
+     */
+    private List<ChatMessages> queryNewestFirst(String selection, String[] selectionArgs, int limit) {
+        List<ChatMessages> messages = new ArrayList<>();
+        SQLiteDatabase db = database.getReadableDatabase();
+        try (Cursor cursor = db.query(LocalDatabase.TABLE_MESSAGES, null, selection, selectionArgs,
+                null, null, LocalDatabase.COLUMN_TIMESTAMP + " DESC", String.valueOf(limit))) {
+            while (cursor.moveToNext()) {
+                ChatMessages message = fromCursor(cursor);
+                if (message != null) {
+                    messages.add(message);
+                }
+            }
+        }
+        Collections.reverse(messages);
+        return messages;
+    }
+
+    /**
+     * Saves several decrypted messages in one transaction, then evicts the oldest evictable
+     * messages if there are more than the limit.
+     *
+     * @param conversationId the conversation ID
+     * @param messages       the decrypted messages, each carrying its Firestore document ID
+     */
+    public void saveMessages(String conversationId, Collection<ChatMessages> messages) {
+        SQLiteDatabase db = database.getWritableDatabase();
+        int savedEvictable = 0;
+        db.beginTransaction();
+        try {
+            for (ChatMessages message : messages) {
+                if (saveMessage(conversationId, message) && !message.isRatchet) {
+                    savedEvictable++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (savedEvictable > 0) {
+            evictOldMessages(savedEvictable);
+        }
+    }
+
+    /**
+     * Saves a decrypted message. Messages that are already stored are left untouched.
+     *
+     * @param conversationId the conversation ID
+     * @param message        the decrypted message, must carry its Firestore document ID
+     * @return true if the message was not stored before
+     */
+    public boolean saveMessage(String conversationId, ChatMessages message) {
+        if (message.messageId == null || message.dateObject == null
+                || (message.message == null && message.mediaHash == null)) {
+            return false;
+        }
+        ContentValues values = new ContentValues();
+        values.put(LocalDatabase.COLUMN_MESSAGE_ID, message.messageId);
+        values.put(LocalDatabase.COLUMN_CONVERSATION_ID, conversationId);
+        values.put(LocalDatabase.COLUMN_SENDER_ID, message.senderId);
+        values.put(LocalDatabase.COLUMN_RECEIVER_ID, message.receiverID);
+        try {
+            values.put(LocalDatabase.COLUMN_MESSAGE, cipher().encrypt(message.message != null ? message.message : ""));
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Not storing message " + message.messageId + ", local store key unavailable", e);
+            return false;
+        }
+        values.put(LocalDatabase.COLUMN_MESSAGE_TYPE, message.messageType);
+        values.put(LocalDatabase.COLUMN_MEDIA_HASH, message.mediaHash);
+        values.put(LocalDatabase.COLUMN_THUMBNAIL, message.thumbnail);
+        values.put(LocalDatabase.COLUMN_TIMESTAMP, message.dateObject.getTime());
+        values.put(LocalDatabase.COLUMN_IS_RATCHET, message.isRatchet ? 1 : 0);
+        if (message.sentAt != null) {
+            values.put(LocalDatabase.COLUMN_SENT_AT, message.sentAt.getTime());
+        }
+        return database.getWritableDatabase().insertWithOnConflict(LocalDatabase.TABLE_MESSAGES, null,
+                values, SQLiteDatabase.CONFLICT_IGNORE) != -1;
+    }
+
+    /**
+     * Deletes the oldest evictable messages across all conversations once more than
+     * {@link #MAX_EVICTABLE_MESSAGES} are stored. The count is taken once and then kept up
+     * to date, so saving a message does not count the whole table.
+     *
+     * @param saved the number of evictable messages just saved
+     */
+    private synchronized void evictOldMessages(int saved) {
+        SQLiteDatabase db = database.getWritableDatabase();
+        if (evictableCount < 0) {
+            try (Cursor cursor = db.query(LocalDatabase.TABLE_MESSAGES, new String[]{"COUNT(*)"},
+                    LocalDatabase.COLUMN_IS_RATCHET + " = 0", null, null, null, null)) {
+                evictableCount = cursor.moveToFirst() ? cursor.getLong(0) : 0;
+            }
+        } else {
+            evictableCount += saved;
+        }
+        if (evictableCount <= MAX_EVICTABLE_MESSAGES) return;
+
+        long excess = evictableCount - MAX_EVICTABLE_MESSAGES + EVICTION_BATCH;
+        int evicted = db.delete(LocalDatabase.TABLE_MESSAGES,
+                LocalDatabase.COLUMN_MESSAGE_ID + " IN (SELECT " + LocalDatabase.COLUMN_MESSAGE_ID
+                        + " FROM " + LocalDatabase.TABLE_MESSAGES
+                        + " WHERE " + LocalDatabase.COLUMN_IS_RATCHET + " = 0"
+                        + " ORDER BY " + LocalDatabase.COLUMN_TIMESTAMP + " ASC LIMIT ?)",
+                new String[]{String.valueOf(excess)});
+        evictableCount -= evicted;
+        Log.d(TAG, "Evicted " + evicted + " old messages");
+    }
+
+    /**
+     * Returns the cipher for message text. Loading it touches the keystore, so it is only
+     * done on first use from a background thread.
+     *
+     * @return the local store cipher
+     */
+    private LocalStoreCipher cipher() {
+        return LocalStoreCipher.getInstance(context);
+    }
+
+    /**
+     * Converts the current cursor row into a message.
+     *
+     * @param cursor cursor positioned on a messages row
+     * @return the message held by the row, or null if its text cannot be decrypted
+     */
+    private ChatMessages fromCursor(Cursor cursor) {
+        byte[] encryptedMessage = cursor.getBlob(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_MESSAGE));
+        if (encryptedMessage == null) {
+            return null;
+        }
+        ChatMessages message = new ChatMessages();
+        message.messageId = cursor.getString(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_MESSAGE_ID));
+        message.senderId = cursor.getString(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_SENDER_ID));
+        message.receiverID = cursor.getString(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_RECEIVER_ID));
+        try {
+            message.message = cipher().decrypt(encryptedMessage);
+        } catch (RuntimeException e) {
+            return null;
+        }
+        message.messageType = cursor.getString(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_MESSAGE_TYPE));
+        message.mediaHash = cursor.getString(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_MEDIA_HASH));
+        message.thumbnail = cursor.getBlob(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_THUMBNAIL));
+        message.dateObject = new Date(cursor.getLong(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_TIMESTAMP)));
+        message.isRatchet = cursor.getInt(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_IS_RATCHET)) != 0;
+        int sentAtIndex = cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_SENT_AT);
+        message.sentAt = cursor.isNull(sentAtIndex) ? null : new Date(cursor.getLong(sentAtIndex));
+        return message;
+    }
+}
@@ -0,0 +1,327 @@
+package com.example.talkoloco.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.example.talkoloco.models.OutboxMessage;
+import com.google.firebase.firestore.Blob;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persistent queue of messages that have been sent on this device but not yet written to
+ * Firestore. Messages stay here until their write is confirmed, so they survive the app
+ * being killed. Messages Firestore keeps rejecting are marked failed and stay here, out of
+ * the way of the messages behind them. Message documents are kept as JSON, with Firestore
+ * blobs and dates tagged so they come back with their original types.
+ * All methods touch the disk and should be called from a background thread.
+ */
+public class Outbox {
+    private static final String TAG = "Outbox";
+    private static final String TYPE_BLOB = "$blob";
+    private static final String TYPE_DATE = "$date";
+
+    private static Outbox instance;
+    private final LocalDatabase database;
+
+    private Outbox(Context context) {
+        database = LocalDatabase.getInstance(context);
+    }
+
+    /**
+     * Returns instance of Outbox.
+     *
+     * @param context Application context
+     * @return Outbox instance
+     */
+    public static synchronized Outbox getInstance(Context context) {
+        if (instance == null) {
+            instance = new Outbox(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Adds a message to the outbox.
+     *
+     * @param message the message to send
+     */
+    public void enqueue(OutboxMessage message) {
+        ContentValues values = new ContentValues();
+        values.put(LocalDatabase.COLUMN_MESSAGE_ID, message.messageId);
+        values.put(LocalDatabase.COLUMN_CONVERSATION_ID, message.conversationId);
+        values.put(LocalDatabase.COLUMN_SENDER_ID, message.senderId);
+        values.put(LocalDatabase.COLUMN_SENDER_NAME, message.senderName);
+        values.put(LocalDatabase.COLUMN_SENDER_AVATAR_VERSION, message.senderAvatarVersion);
+        values.put(LocalDatabase.COLUMN_RECEIVER_ID, message.receiverId);
+        values.put(LocalDatabase.COLUMN_RECEIVER_NAME, message.receiverName);
+        values.put(LocalDatabase.COLUMN_RECEIVER_AVATAR_VERSION, message.receiverAvatarVersion);
+        values.put(LocalDatabase.COLUMN_PAYLOAD, encodeDocument(message.message).toString());
+        values.put(LocalDatabase.COLUMN_TIMESTAMP, message.timestamp.getTime());
+        database.getWritableDatabase().insertWithOnConflict(LocalDatabase.TABLE_OUTBOX, null,
+                values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Loads the oldest messages waiting to be sent, leaving out failed ones.
+     *
+     * @param limit maximum number of messages to load
+     * @return the waiting messages, oldest first
+     */
+    public List<OutboxMessage> getPending(int limit) {
+        List<OutboxMessage> messages = new ArrayList<>();
+        SQLiteDatabase db = database.getReadableDatabase();
+        try (Cursor cursor = db.query(LocalDatabase.TABLE_OUTBOX, null,
+                LocalDatabase.COLUMN_IS_FAILED + " = 0", null,
+                null, null, LocalDatabase.COLUMN_TIMESTAMP + " ASC", String.valueOf(limit))) {
+            while (cursor.moveToNext()) {
+                OutboxMessage message = fromCursor(cursor);
+                if (message != null) {
+                    messages.add(message);
+                }
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Returns the IDs of the messages of a conversation that are still waiting to be sent.
+     *
+     * @param conversationId the conversation ID
+     * @return the IDs of the waiting messages
+     */
+    public Set<String> getPendingIds(String conversationId) {
+        return queryIds(conversationId, false);
+    }
+
+    /**
+     * Returns the IDs of the messages of a conversation that failed to be sent.
+     *
+     * @param conversationId the conversation ID
+     * @return the IDs of the failed messages
+     */
+    public Set<String> getFailedIds(String conversationId) {
+        return queryIds(conversationId, true);
+    }
+
+    /**
+     * Counts a failed attempt to send messages, and marks the messages that have now
+     * failed too often as failed.
+     *
+     * @param messageIds  the IDs of the messages that were not sent
+     * @param maxAttempts the number of attempts after which a message is failed
+     * @return the IDs of the messages that are now failed
+     */
+    public List<String> recordFailedAttempt(Collection<String> messageIds, int maxAttempts) {
+        List<String> failedIds = new ArrayList<>();
+        SQLiteDatabase db = database.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (String messageId : messageIds) {
+                db.execSQL("UPDATE " + LocalDatabase.TABLE_OUTBOX + " SET " + LocalDatabase.COLUMN_ATTEMPTS
+                                + " = " + LocalDatabase.COLUMN_ATTEMPTS + " + 1 WHERE "
+                                + LocalDatabase.COLUMN_MESSAGE_ID + " = ?",
+                        new Object[]{messageId});
+                try (Cursor cursor = db.query(LocalDatabase.TABLE_OUTBOX,
+                        new String[]{LocalDatabase.COLUMN_ATTEMPTS},
+                        LocalDatabase.COLUMN_MESSAGE_ID + " = ?", new String[]{messageId},
+                        null, null, null)) {
+                    if (cursor.moveToFirst() && cursor.getInt(0) >= maxAttempts) {
+                        failedIds.add(messageId);
+                    }
+                }
+            }
+            markFailed(failedIds);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return failedIds;
+    }
+
+    /**
+     * Marks messages as failed, so they are no longer sent but stay in the outbox.
+     *
+     * @param messageIds the IDs of the messages Firestore will not accept
+     */
+    public void markFailed(Collection<String> messageIds) {
+        SQLiteDatabase db = database.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(LocalDatabase.COLUMN_IS_FAILED, 1);
+        db.beginTransaction();
+        try {
+            for (String messageId : messageIds) {
+                db.update(LocalDatabase.TABLE_OUTBOX, values, LocalDatabase.COLUMN_MESSAGE_ID + " = ?",
+                        new String[]{messageId});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Puts a failed message back in line to be sent, with its attempts counted from zero.
+     *
+     * @param messageId the ID of the failed message
+     */
+    public void resetFailed(String messageId) {
+        ContentValues values = new ContentValues();
+        values.put(LocalDatabase.COLUMN_ATTEMPTS, 0);
+        values.put(LocalDatabase.COLUMN_IS_FAILED, 0);
+        database.getWritableDatabase().update(LocalDatabase.TABLE_OUTBOX, values,
+                LocalDatabase.COLUMN_MESSAGE_ID + " = ?", new String[]{messageId});
+    }
+
+    private Set<String> queryIds(String conversationId, boolean isFailed) {
+        Set<String> messageIds = new HashSet<>();
+        SQLiteDatabase db = database.getReadableDatabase();
+        try (Cursor cursor = db.query(LocalDatabase.TABLE_OUTBOX,
+                new String[]{LocalDatabase.COLUMN_MESSAGE_ID},
+                LocalDatabase.COLUMN_CONVERSATION_ID + " = ? AND " + LocalDatabase.COLUMN_IS_FAILED + " = ?",
+                new String[]{conversationId, isFailed ? "1" : "0"},
+                null, null, null)) {
+            while (cursor.moveToNext()) {
+                messageIds.add(cursor.getString(0));
+            }
+        }
+        return messageIds;
+    }
+
+    /**
+     * Removes messages that have been written to Firestore.
+     *
+     * @param messageIds the IDs of the sent messages
+     */
+    public void remove(Collection<String> messageIds) {
+        SQLiteDatabase db = database.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (String messageId : messageIds) {
+                db.delete(LocalDatabase.TABLE_OUTBOX, LocalDatabase.COLUMN_MESSAGE_ID + " = ?",
+                        new String[]{messageId});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Converts the current cursor row into a message.
+     *
+     * @param cursor cursor positioned on an outbox row
+     * @return the message held by the row, or null if its document cannot be read
+     */
+    private OutboxMessage fromCursor(Cursor cursor) {
+        OutboxMessage message = new OutboxMessage();
+        message.messageId = cursor.getString(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_MESSAGE_ID));
+        try {
+            message.message = decodeDocument(new JSONObject(
+                    cursor.getString(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_PAYLOAD))));
+        } catch (JSONException e) {
+            Log.e(TAG, "Error reading outbox message " + message.messageId, e);
+            return null;
+        }
+        message.conversationId = cursor.getString(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_CONVERSATION_ID));
+        message.senderId = cursor.getString(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_SENDER_ID));
+        message.senderName = cursor.getString(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_SENDER_NAME));
+        message.senderAvatarVersion = cursor.getLong(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_SENDER_AVATAR_VERSION));
+        message.receiverId = cursor.getString(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_RECEIVER_ID));
+        message.receiverName = cursor.getString(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_RECEIVER_NAME));
+        message.receiverAvatarVersion = cursor.getLong(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_RECEIVER_AVATAR_VERSION));
+        message.timestamp = new Date(cursor.getLong(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_TIMESTAMP)));
+        return message;
+    }
+
+    /**
+     * Encodes a message document as JSON, tagging blobs and dates.
+     *
+     * @param document the message document
+     * @return the JSON payload
+     */
+    static JSONObject encodeDocument(Map<String, Object> document) {
+        JSONObject json = new JSONObject();
+        try {
+            for (Map.Entry<String, Object> field : document.entrySet()) {
+                json.put(field.getKey(), encodeValue(field.getValue()));
+            }
+        } catch (JSONException e) {
+            throw new RuntimeException("Failed to encode outbox message", e);
+        }
+        return json;
+    }
+
+    private static Object encodeValue(Object value) throws JSONException {
+        if (value instanceof Blob) {
+            return new JSONObject().put(TYPE_BLOB,
+                    Base64.getEncoder().encodeToString(((Blob) value).toBytes()));
+        }
+        if (value instanceof Date) {
+            return new JSONObject().put(TYPE_DATE, ((Date) value).getTime());
+        }
+        if (value instanceof Collection) {
+            JSONArray array = new JSONArray();
+            for (Object element : (Collection<?>) value) {
+                array.put(encodeValue(element));
+            }
+            return array;
+        }
+        return value == null ? JSONObject.NULL : value;
+    }
+
+    /**
+     * Decodes a JSON payload back into a message document.
+     *
+     * @param json the JSON payload
+     * @return the message document
+     * @throws JSONException if the payload is malformed
+     */
+    static Map<String, Object> decodeDocument(JSONObject json) throws JSONException {
+        Map<String, Object> document = new HashMap<>();
+        Iterator<String> keys = json.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            document.put(key, decodeValue(json.get(key)));
+        }
+        return document;
+    }
+
+    private static Object decodeValue(Object value) throws JSONException {
+        if (value instanceof JSONObject) {
+            JSONObject tagged = (JSONObject) value;
+            if (tagged.has(TYPE_BLOB)) {
+                return Blob.fromBytes(Base64.getDecoder().decode(tagged.getString(TYPE_BLOB)));
+            }
+            if (tagged.has(TYPE_DATE)) {
+                return new Date(tagged.getLong(TYPE_DATE));
+            }
+            return decodeDocument(tagged);
+        }
+        if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            List<Object> list = new ArrayList<>();
+            for (int i = 0; i < array.length(); i++) {
+                list.add(decodeValue(array.get(i)));
+            }
+            return list;
+        }
+        return value == JSONObject.NULL ? null : value;
+    }
+}
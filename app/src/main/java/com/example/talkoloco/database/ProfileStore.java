@@ -0,0 +1,139 @@
+package com.example.talkoloco.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Local store of other users' profile documents, the disk tier of the profile cache.
+ * Each profile is kept with the time it was fetched, so callers can tell whether it is
+ * still fresh. Only plain fields (text, numbers, booleans) of a document are kept.
+ * All methods touch the disk and should be called from a background thread.
+ */
+public class ProfileStore {
+    private static final String TAG = "ProfileStore";
+    private static ProfileStore instance;
+    private final LocalDatabase database;
+
+    /**
+     * A stored profile document and when it was fetched.
+     */
+    public static class Profile {
+        public final String userId;
+        public final Map<String, Object> data;
+        public final long fetchedAt;
+
+        public Profile(String userId, Map<String, Object> data, long fetchedAt) {
+            this.userId = userId;
+            this.data = data;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+    private ProfileStore(Context context) {
+        database = LocalDatabase.getInstance(context);
+    }
+
+    /**
+     * Returns instance of ProfileStore.
+     *
+     * @param context Application context
+     * @return ProfileStore instance
+     */
+    public static synchronized ProfileStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new ProfileStore(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Looks up a stored profile by user.
+     *
+     * @param userId the ID of the user
+     * @return the stored profile, or null if there is none
+     */
+    public Profile getProfile(String userId) {
+        return queryProfile(LocalDatabase.COLUMN_USER_ID + " = ?", userId);
+    }
+
+    /**
+     * Looks up a stored profile by the hash of its phone number.
+     *
+     * @param phoneHash the hashed phone number
+     * @return the stored profile, or null if there is none
+     */
+    public Profile getProfileByPhoneHash(String phoneHash) {
+        return queryProfile(LocalDatabase.COLUMN_PHONE_HASH + " = ?", phoneHash);
+    }
+
+    /**
+     * Saves a profile, replacing any older copy.
+     *
+     * @param profile   the profile to save
+     * @param phoneHash the hashed phone number of the profile, if known
+     */
+    public void saveProfile(Profile profile, String phoneHash) {
+        JSONObject json = new JSONObject();
+        try {
+            for (Map.Entry<String, Object> field : profile.data.entrySet()) {
+                Object value = field.getValue();
+                if (value instanceof String || value instanceof Number || value instanceof Boolean) {
+                    json.put(field.getKey(), value);
+                }
+            }
+        } catch (JSONException e) {
+            throw new RuntimeException("Failed to encode profile", e);
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(LocalDatabase.COLUMN_USER_ID, profile.userId);
+        values.put(LocalDatabase.COLUMN_PHONE_HASH, phoneHash);
+        values.put(LocalDatabase.COLUMN_DATA, json.toString());
+        values.put(LocalDatabase.COLUMN_FETCHED_AT, profile.fetchedAt);
+        database.getWritableDatabase().insertWithOnConflict(LocalDatabase.TABLE_PROFILES, null,
+                values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Forgets a stored profile.
+     *
+     * @param userId the ID of the user
+     */
+    public void deleteProfile(String userId) {
+        database.getWritableDatabase().delete(LocalDatabase.TABLE_PROFILES,
+                LocalDatabase.COLUMN_USER_ID + " = ?", new String[]{userId});
+    }
+
+    private Profile queryProfile(String selection, String argument) {
+        SQLiteDatabase db = database.getReadableDatabase();
+        try (Cursor cursor = db.query(LocalDatabase.TABLE_PROFILES,
+                new String[]{LocalDatabase.COLUMN_USER_ID, LocalDatabase.COLUMN_DATA,
+                        LocalDatabase.COLUMN_FETCHED_AT},
+                selection, new String[]{argument}, null, null, null, "1")) {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            JSONObject json = new JSONObject(cursor.getString(1));
+            Map<String, Object> data = new HashMap<>();
+            Iterator<String> keys = json.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                data.put(key, json.get(key));
+            }
+            return new Profile(cursor.getString(0), data, cursor.getLong(2));
+        } catch (JSONException e) {
+            Log.e(TAG, "Error reading stored profile", e);
+            return null;
+        }
+    }
+}
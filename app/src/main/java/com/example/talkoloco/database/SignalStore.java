@@ -0,0 +1,229 @@
+package com.example.talkoloco.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.example.talkoloco.utils.LocalStoreCipher;
+
+import org.signal.libsignal.protocol.IdentityKey;
+import org.signal.libsignal.protocol.IdentityKeyPair;
+import org.signal.libsignal.protocol.SignalProtocolAddress;
+import org.signal.libsignal.protocol.state.KyberPreKeyRecord;
+import org.signal.libsignal.protocol.state.PreKeyRecord;
+import org.signal.libsignal.protocol.state.SessionRecord;
+import org.signal.libsignal.protocol.state.SignedPreKeyRecord;
+import org.signal.libsignal.protocol.state.impl.InMemorySignalProtocolStore;
+
+/**
+ * Signal protocol store that keeps its records in the local database.
+ * Records are loaded into memory once and every change is written through to disk,
+ * so ratchet state survives process death. Records are encrypted at rest with the device's
+ * local store key, since they hold the private keys and ratchet state.
+ */
+public class SignalStore extends InMemorySignalProtocolStore {
+    private static final String TAG = "SignalStore";
+
+    // record types
+    private static final String TYPE_LOCAL_IDENTITY = "local_identity";
+    private static final String TYPE_IDENTITY = "identity";
+    private static final String TYPE_PRE_KEY = "pre_key";
+    private static final String TYPE_SIGNED_PRE_KEY = "signed_pre_key";
+    private static final String TYPE_KYBER_PRE_KEY = "kyber_pre_key";
+    private static final String TYPE_SESSION = "session";
+
+    private final Context context;
+    private final LocalDatabase database;
+
+    /**
+     * Creates the store for the given local identity and loads all saved records.
+     *
+     * @param context         Application context
+     * @param identityKeyPair the local identity key pair
+     * @param registrationId  the local registration ID
+     */
+    public SignalStore(Context context, IdentityKeyPair identityKeyPair, int registrationId) {
+        super(identityKeyPair, registrationId);
+        this.context = context;
+        database = LocalDatabase.getInstance(context);
+        loadRecords();
+    }
+
+    /**
+     * Reads the local identity key pair, if one was generated before.
+     *
+     * @param context Application context
+     * @return the stored identity key pair, or null if there is none
+     */
+    public static IdentityKeyPair loadLocalIdentity(Context context) {
+        SQLiteDatabase db = LocalDatabase.getInstance(context).getReadableDatabase();
+        try (Cursor cursor = db.query(LocalDatabase.TABLE_SIGNAL_RECORDS,
+                new String[]{LocalDatabase.COLUMN_RECORD},
+                LocalDatabase.COLUMN_RECORD_TYPE + " = ?", new String[]{TYPE_LOCAL_IDENTITY},
+                null, null, null)) {
+            if (cursor.moveToFirst()) {
+                return new IdentityKeyPair(LocalStoreCipher.getInstance(context).decryptBytes(cursor.getBlob(0)));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error loading local identity", e);
+        }
+        return null;
+    }
+
+    /**
+     * Saves the local identity key pair.
+     *
+     * @param context         Application context
+     * @param identityKeyPair the identity key pair to save
+     */
+    public static void saveLocalIdentity(Context context, IdentityKeyPair identityKeyPair) {
+        write(context, TYPE_LOCAL_IDENTITY, "0", identityKeyPair.serialize());
+    }
+
+    /**
+     * Deletes every record, including the local identity, so a new identity is generated
+     * on next use.
+     *
+     * @param context Application context
+     */
+    public static void deleteAll(Context context) {
+        LocalDatabase.getInstance(context).getWritableDatabase()
+                .delete(LocalDatabase.TABLE_SIGNAL_RECORDS, null, null);
+    }
+
+    /**
+     * Remembers the identity key of a remote user so it is trusted again after a restart.
+     *
+     * @param address     the remote address
+     * @param identityKey the remote identity key
+     */
+    public void rememberIdentity(SignalProtocolAddress address, IdentityKey identityKey) {
+        super.saveIdentity(address, identityKey);
+        write(context, TYPE_IDENTITY, address.getName(), identityKey.serialize());
+    }
+
+    @Override
+    public void storePreKey(int preKeyId, PreKeyRecord record) {
+        super.storePreKey(preKeyId, record);
+        write(context, TYPE_PRE_KEY, String.valueOf(preKeyId), record.serialize());
+    }
+
+    @Override
+    public void removePreKey(int preKeyId) {
+        super.removePreKey(preKeyId);
+        delete(TYPE_PRE_KEY, String.valueOf(preKeyId));
+    }
+
+    @Override
+    public void storeSignedPreKey(int signedPreKeyId, SignedPreKeyRecord record) {
+        super.storeSignedPreKey(signedPreKeyId, record);
+        write(context, TYPE_SIGNED_PRE_KEY, String.valueOf(signedPreKeyId), record.serialize());
+    }
+
+    @Override
+    public void removeSignedPreKey(int signedPreKeyId) {
+        super.removeSignedPreKey(signedPreKeyId);
+        delete(TYPE_SIGNED_PRE_KEY, String.valueOf(signedPreKeyId));
+    }
+
+    @Override
+    public void storeKyberPreKey(int kyberPreKeyId, KyberPreKeyRecord record) {
+        super.storeKyberPreKey(kyberPreKeyId, record);
+        write(context, TYPE_KYBER_PRE_KEY, String.valueOf(kyberPreKeyId), record.serialize());
+    }
+
+    /**
+     * Deletes a Kyber pre key from disk. The in-memory store cannot drop Kyber pre keys,
+     * so the key stays usable until the store is loaded again.
+     *
+     * @param kyberPreKeyId the ID of the Kyber pre key
+     */
+    public void removeKyberPreKey(int kyberPreKeyId) {
+        delete(TYPE_KYBER_PRE_KEY, String.valueOf(kyberPreKeyId));
+    }
+
+    @Override
+    public void storeSession(SignalProtocolAddress address, SessionRecord record) {
+        super.storeSession(address, record);
+        write(context, TYPE_SESSION, address.getName(), record.serialize());
+    }
+
+    @Override
+    public void deleteSession(SignalProtocolAddress address) {
+        super.deleteSession(address);
+        delete(TYPE_SESSION, address.getName());
+    }
+
+    /**
+     * Loads every saved record into the in-memory store without writing it back.
+     * Remote users always use the first device ID.
+     */
+    private void loadRecords() {
+        SQLiteDatabase db = database.getReadableDatabase();
+        LocalStoreCipher cipher;
+        try {
+            cipher = LocalStoreCipher.getInstance(context);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Local store key unavailable, starting without saved records", e);
+            return;
+        }
+        try (Cursor cursor = db.query(LocalDatabase.TABLE_SIGNAL_RECORDS, null, null, null,
+                null, null, null)) {
+            while (cursor.moveToNext()) {
+                String type = cursor.getString(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_RECORD_TYPE));
+                String id = cursor.getString(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_RECORD_ID));
+                try {
+                    byte[] record = cipher.decryptBytes(
+                            cursor.getBlob(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_RECORD)));
+                    switch (type) {
+                        case TYPE_IDENTITY:
+                            super.saveIdentity(new SignalProtocolAddress(id, 1), new IdentityKey(record, 0));
+                            break;
+                        case TYPE_PRE_KEY:
+                            super.storePreKey(Integer.parseInt(id), new PreKeyRecord(record));
+                            break;
+                        case TYPE_SIGNED_PRE_KEY:
+                            super.storeSignedPreKey(Integer.parseInt(id), new SignedPreKeyRecord(record));
+                            break;
+                        case TYPE_KYBER_PRE_KEY:
+                            super.storeKyberPreKey(Integer.parseInt(id), new KyberPreKeyRecord(record));
+                            break;
+                        case TYPE_SESSION:
+                            super.storeSession(new SignalProtocolAddress(id, 1), new SessionRecord(record));
+                            break;
+                        default:
+                            break;
+                    }
+                } catch (Exception e) {
+                    Log.e(TAG, "Skipping unreadable " + type + " record " + id, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a record through to disk. Without the local store key the record is only kept
+     * in memory, for the rest of this process.
+     */
+    private static void write(Context context, String type, String id, byte[] record) {
+        ContentValues values = new ContentValues();
+        values.put(LocalDatabase.COLUMN_RECORD_TYPE, type);
+        values.put(LocalDatabase.COLUMN_RECORD_ID, id);
+        try {
+            values.put(LocalDatabase.COLUMN_RECORD, LocalStoreCipher.getInstance(context).encryptBytes(record));
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Not saving " + type + " record " + id + ", local store key unavailable", e);
+            return;
+        }
+        LocalDatabase.getInstance(context).getWritableDatabase().insertWithOnConflict(LocalDatabase.TABLE_SIGNAL_RECORDS, null,
+                values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    private void delete(String type, String id) {
+        database.getWritableDatabase().delete(LocalDatabase.TABLE_SIGNAL_RECORDS,
+                LocalDatabase.COLUMN_RECORD_TYPE + " = ? AND " + LocalDatabase.COLUMN_RECORD_ID + " = ?",
+                new String[]{type, id});
+    }
+}
@@ -4,32 +4,53 @@ import android.util.Log;
 
 import androidx.annotation.NonNull;
 
+import com.example.talkoloco.controllers.UserController;
+import com.example.talkoloco.utils.Constants;
+import com.example.talkoloco.utils.MessageSync;
+import com.example.talkoloco.utils.PreferenceManager;
 import com.google.firebase.messaging.FirebaseMessagingService;
 import com.google.firebase.messaging.RemoteMessage;
 
+import java.util.Map;
+
 public class MessagingService extends FirebaseMessagingService {
 
     /**
      * Called when a new FCM token is generated for this app instance.
-     * Logs the new token for debugging purposes.
+     * Stores the token on the signed in user's document so messages can be pushed here.
      *
      * @param token The new FCM token generated for this app
      */
     @Override
     public void onNewToken(@NonNull String token) {
         super.onNewToken(token);
-        Log.d("FCM", "Token:" +token);
+        PreferenceManager preferenceManager = new PreferenceManager(getApplicationContext());
+        String userId = preferenceManager.getString(Constants.KEY_USER_ID);
+        if (userId != null) {
+            UserController.getInstance().updateFcmToken(userId, token);
+            preferenceManager.putString(Constants.KEY_FCM_TOKEN, token);
+        }
     }
 
     /**
      * Called when a new FCM message is received.
-     * Logs the message body for debugging purposes.
+     * Data messages about a new chat message sync that conversation into the local store,
+     * decrypting the new messages before the user opens the app. This runs on a background
+     * thread, so the sync can block until it is done.
      *
-     * @param message The FCM message received containing notification data
+     * @param message The FCM message received
      */
     @Override
     public void onMessageReceived(@NonNull RemoteMessage message) {
         super.onMessageReceived(message);
-        Log.d("FCM", "460 Message: " +message.getNotification().getBody());
+        if (message.getNotification() != null) {
+            Log.d("FCM", "Message: " + message.getNotification().getBody());
+        }
+
+        Map<String, String> data = message.getData();
+        if (Constants.PUSH_TYPE_MESSAGE.equals(data.get(Constants.KEY_PUSH_TYPE))) {
+            MessageSync.getInstance(getApplicationContext())
+                    .syncConversation(data.get(Constants.KEY_CONVERSATION_ID));
+        }
     }
 }
@@ -0,0 +1,13 @@
+package com.example.talkoloco.listeners;
+
+import com.example.talkoloco.models.ChatMessages;
+
+public interface IdentityListener {
+    /**
+     * Called on the main thread when a contact's identity changed and the new one was trusted.
+     *
+     * @param notice the notice stored in the contact's conversation
+     */
+    void onIdentityChanged(ChatMessages notice);
+
+}
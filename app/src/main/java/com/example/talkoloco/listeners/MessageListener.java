@@ -0,0 +1,13 @@
+package com.example.talkoloco.listeners;
+
+import com.example.talkoloco.models.ChatMessages;
+
+public interface MessageListener {
+    /**
+     * Called when a message that failed to be sent is tapped, to send it again.
+     *
+     * @param message the failed message
+     */
+    void onFailedMessageClicked(ChatMessages message);
+
+}
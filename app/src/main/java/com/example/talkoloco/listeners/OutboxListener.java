@@ -0,0 +1,16 @@
+package com.example.talkoloco.listeners;
+
+import java.util.List;
+
+public interface OutboxListener {
+    void onMessagesSent(List<String> messageIds);
+
+    /**
+     * Called for messages Firestore will not accept, which stay unsent.
+     *
+     * @param messageIds the IDs of the failed messages
+     */
+    default void onMessagesFailed(List<String> messageIds) {
+    }
+
+}
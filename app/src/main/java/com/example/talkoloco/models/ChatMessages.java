@@ -4,11 +4,25 @@ import java.util.Date;
 
 public class ChatMessages {
     // Informational objects of the chat
+    public String messageId;
+    public String messageType;
+    // Content hash of the image in the conversation's media, for image messages
+    public String mediaHash;
+    // Tiny JPEG preview of the image, sent inline with image messages
+    public byte[] thumbnail;
     public String senderId;
     public String receiverID;
     public String message;
     public String dateTime;
     public Date dateObject;
+    // Server time the message reached Firestore; null until read back from Firestore
+    public Date sentAt;
+    // True while the message waits in this device's outbox
+    public boolean isPending;
+    // True if the outbox gave up sending the message
+    public boolean isFailed;
+    // True if the text came over a ratchet session, so it cannot be decrypted again
+    public boolean isRatchet;
 
     // Empty constructor for Firebase
     public ChatMessages() {
@@ -41,6 +55,36 @@ public class ChatMessages {
         return dateTime != null ? dateTime : "";
     }
 
+    /**
+     * Returns a copy of this message marked as failed to send.
+     *
+     * @return the copy
+     */
+    public ChatMessages withFailed() {
+        ChatMessages copy = withPending(false);
+        copy.isFailed = true;
+        return copy;
+    }
+
+    /**
+     * Returns a copy of this message with the given sending state. List diffing compares
+     * the old and new objects, so a changed message has to be a new object.
+     *
+     * @param isPending whether the message still waits to be sent
+     * @return the copy
+     */
+    public ChatMessages withPending(boolean isPending) {
+        ChatMessages copy = new ChatMessages(senderId, receiverID, message, dateTime, dateObject);
+        copy.messageId = messageId;
+        copy.messageType = messageType;
+        copy.mediaHash = mediaHash;
+        copy.thumbnail = thumbnail;
+        copy.sentAt = sentAt;
+        copy.isPending = isPending;
+        copy.isRatchet = isRatchet;
+        return copy;
+    }
+
    /* public Date getDateObject() {
         return dateObject != null ? dateObject : new Date();
     }
@@ -0,0 +1,58 @@
+package com.example.talkoloco.models;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A one-on-one conversation between two users.
+ * The document ID is built from the two sorted user IDs so both participants
+ * always resolve the same conversation, and its messages live in a subcollection.
+ */
+public class Conversation {
+    public String id;
+    public List<String> participants;
+    public boolean legacyMigrated;
+
+    // Empty constructor for Firebase
+    public Conversation() {
+        // Required for Firebase
+    }
+
+    /**
+     * Creates the conversation between two users.
+     *
+     * @param firstUserId  ID of one participant
+     * @param secondUserId ID of the other participant
+     */
+    public Conversation(String firstUserId, String secondUserId) {
+        this.id = idFor(firstUserId, secondUserId);
+        this.participants = firstUserId.compareTo(secondUserId) < 0
+                ? Arrays.asList(firstUserId, secondUserId)
+                : Arrays.asList(secondUserId, firstUserId);
+    }
+
+    /**
+     * Builds the conversation ID of two users, independent of who sent a message.
+     *
+     * @param firstUserId  ID of one participant
+     * @param secondUserId ID of the other participant
+     * @return conversation ID made of the two sorted user IDs
+     */
+    public static String idFor(String firstUserId, String secondUserId) {
+        return firstUserId.compareTo(secondUserId) < 0
+                ? firstUserId + "_" + secondUserId
+                : secondUserId + "_" + firstUserId;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public List<String> getParticipants() {
+        return participants;
+    }
+
+    public boolean isLegacyMigrated() {
+        return legacyMigrated;
+    }
+}
@@ -0,0 +1,53 @@
+package com.example.talkoloco.models;
+
+import java.util.Date;
+
+/**
+ * Summary of one conversation as shown in a user's chat list.
+ * Stored under users/{userId}/inbox/{conversationId} so the home screen can be built
+ * from a single small query. Message contents are end-to-end encrypted, so only the
+ * type of the last message is kept here, never its text.
+ */
+public class InboxEntry {
+    public String conversationId;
+    public String peerId;
+    public String peerName;
+    public long peerAvatarVersion;
+    public String lastSenderId;
+    public String lastMessageType;
+    public Date timestamp;
+    public long unreadCount;
+
+    // Empty constructor for Firebase
+    public InboxEntry() {
+        // Required for Firebase
+    }
+
+    public String getPeerId() {
+        return peerId;
+    }
+
+    public String getPeerName() {
+        return peerName;
+    }
+
+    public long getPeerAvatarVersion() {
+        return peerAvatarVersion;
+    }
+
+    public String getLastSenderId() {
+        return lastSenderId;
+    }
+
+    public String getLastMessageType() {
+        return lastMessageType;
+    }
+
+    public Date getTimestamp() {
+        return timestamp;
+    }
+
+    public long getUnreadCount() {
+        return unreadCount;
+    }
+}
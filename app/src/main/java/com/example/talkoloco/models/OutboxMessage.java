@@ -0,0 +1,27 @@
+package com.example.talkoloco.models;
+
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * A message waiting in the outbox until it is written to Firestore.
+ * Holds the ready to write message document along with what is needed to update
+ * both participants' inbox summaries.
+ */
+public class OutboxMessage {
+    public String messageId;
+    public String conversationId;
+    public String senderId;
+    public String senderName;
+    public long senderAvatarVersion;
+    public String receiverId;
+    public String receiverName;
+    public long receiverAvatarVersion;
+    // The message document data, already encrypted
+    public Map<String, Object> message;
+    public Date timestamp;
+
+    // Empty constructor
+    public OutboxMessage() {
+    }
+}
@@ -15,6 +15,9 @@ public class User implements Serializable {
     private String phoneNumber_display;
     private String phoneNumber_hash;
     private String publicKey;
+    private long avatarVersion;
+    private String avatarThumbId;
+    private String avatarId;
 
     public String image, token, id;
 
@@ -204,5 +207,58 @@ public class User implements Serializable {
     public void setPublicKey(String publicKey) {
         this.publicKey = publicKey;
     }
-}
 
+    /**
+     * Returns the version of the user's avatar, increased every time it changes.
+     *
+     * @return the avatar version of the user
+     */
+    public long getAvatarVersion() {
+        return avatarVersion;
+    }
+
+    /**
+     * Sets the version of the user's avatar.
+     *
+     * @param avatarVersion the avatar version of the user
+     */
+    public void setAvatarVersion(long avatarVersion) {
+        this.avatarVersion = avatarVersion;
+    }
+
+    /**
+     * Returns the ID of the avatar thumbnail document, named after its content hash.
+     *
+     * @return the avatar thumbnail ID, or null if the user has no separate avatar
+     */
+    public String getAvatarThumbId() {
+        return avatarThumbId;
+    }
+
+    /**
+     * Sets the ID of the avatar thumbnail document.
+     *
+     * @param avatarThumbId the avatar thumbnail ID
+     */
+    public void setAvatarThumbId(String avatarThumbId) {
+        this.avatarThumbId = avatarThumbId;
+    }
+
+    /**
+     * Returns the ID of the full size avatar document, named after its content hash.
+     *
+     * @return the avatar ID, or null if the user has no separate avatar
+     */
+    public String getAvatarId() {
+        return avatarId;
+    }
+
+    /**
+     * Sets the ID of the full size avatar document.
+     *
+     * @param avatarId the avatar ID
+     */
+    public void setAvatarId(String avatarId) {
+        this.avatarId = avatarId;
+    }
+}
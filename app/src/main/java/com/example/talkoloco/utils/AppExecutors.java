@@ -0,0 +1,56 @@
+package com.example.talkoloco.utils;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Shared thread pools used throughout the application.
+ * Keeps disk access off the UI thread and provides a way to post results back to it.
+ */
+public class AppExecutors {
+    private static AppExecutors instance;
+
+    private final ExecutorService diskIO;
+    private final Executor mainThread;
+
+    private AppExecutors() {
+        // single thread so reads always observe earlier writes
+        diskIO = Executors.newSingleThreadExecutor();
+        Handler mainHandler = new Handler(Looper.getMainLooper());
+        mainThread = mainHandler::post;
+    }
+
+    /**
+     * Returns instance of AppExecutors.
+     *
+     * @return AppExecutors instance
+     */
+    public static synchronized AppExecutors getInstance() {
+        if (instance == null) {
+            instance = new AppExecutors();
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the executor used for local database and file access.
+     *
+     * @return single threaded disk executor
+     */
+    public ExecutorService diskIO() {
+        return diskIO;
+    }
+
+    /**
+     * Returns an executor that runs tasks on the UI thread.
+     *
+     * @return main thread executor
+     */
+    public Executor mainThread() {
+        return mainThread;
+    }
+}
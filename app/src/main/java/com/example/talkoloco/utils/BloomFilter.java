@@ -0,0 +1,100 @@
+package com.example.talkoloco.utils;
+
+/**
+ * A bloom filter over keys that are already uniformly distributed, such as SHA-256 digests.
+ * The bit positions are taken straight from the key bytes, so checking a key does not hash
+ * it again. A filter can answer "definitely not added" or "probably added", never "added".
+ */
+public class BloomFilter {
+    private final byte[] bits;
+    private final int hashCount;
+
+    /**
+     * Creates a filter over existing bits.
+     *
+     * @param bits      the filter bits; kept, not copied
+     * @param hashCount the number of bits set per key
+     */
+    public BloomFilter(byte[] bits, int hashCount) {
+        if (bits.length == 0 || hashCount <= 0) {
+            throw new IllegalArgumentException("Filter must have bits and at least one hash");
+        }
+        this.bits = bits;
+        this.hashCount = hashCount;
+    }
+
+    /**
+     * Creates an empty filter.
+     *
+     * @param size      the number of bytes of bits
+     * @param hashCount the number of bits set per key
+     */
+    public BloomFilter(int size, int hashCount) {
+        this(new byte[size], hashCount);
+    }
+
+    /**
+     * Adds a key to the filter.
+     *
+     * @param key a digest of at least 8 bytes
+     * @return true if any bit changed, false if the key was probably added already
+     */
+    public boolean put(byte[] key) {
+        boolean changed = false;
+        for (int i = 0; i < hashCount; i++) {
+            int position = position(key, i);
+            byte mask = (byte) (1 << (position & 7));
+            if ((bits[position >>> 3] & mask) == 0) {
+                bits[position >>> 3] |= mask;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Checks whether a key may have been added to the filter.
+     *
+     * @param key a digest of at least 8 bytes
+     * @return false if the key was definitely not added, true if it probably was
+     */
+    public boolean mightContain(byte[] key) {
+        for (int i = 0; i < hashCount; i++) {
+            int position = position(key, i);
+            if ((bits[position >>> 3] & (1 << (position & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the filter bits; the array is shared, not copied.
+     *
+     * @return the filter bits
+     */
+    public byte[] getBits() {
+        return bits;
+    }
+
+    public int getHashCount() {
+        return hashCount;
+    }
+
+    /**
+     * Double hashing: the i-th position is h1 + i * h2, with h1 and h2 read from the key.
+     */
+    private int position(byte[] key, int i) {
+        int h1 = readInt(key, 0);
+        int h2 = readInt(key, 4);
+        long bitCount = (long) bits.length * 8;
+        return (int) Math.floorMod(h1 + (long) i * h2, bitCount);
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 24)
+                | ((bytes[offset + 1] & 0xff) << 16)
+                | ((bytes[offset + 2] & 0xff) << 8)
+                | (bytes[offset + 3] & 0xff);
+    }
+}
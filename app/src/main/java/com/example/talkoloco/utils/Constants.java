@@ -9,6 +9,14 @@ public class Constants {
     // firebase collections
     public static final String KEY_COLLECTION_USERS = "users";
     public static final String KEY_COLLECTION_CHAT = "chats";
+    public static final String KEY_COLLECTION_CONVERSATIONS = "conversations";
+    public static final String KEY_COLLECTION_MESSAGES = "messages";
+    public static final String KEY_COLLECTION_INBOX = "inbox";
+    public static final String KEY_COLLECTION_MEDIA = "media";
+    public static final String KEY_COLLECTION_CHUNKS = "chunks";
+    public static final String KEY_COLLECTION_AVATARS = "avatars";
+    // Firestore allows at most this many values in a whereIn filter
+    public static final int MAX_WHERE_IN_VALUES = 30;
 
     // user fields
     public static final String KEY_USER_ID = "userId";
@@ -17,31 +25,100 @@ public class Constants {
     public static final String KEY_PROFILE_PICTURE = "profilePictureUrl";
     public static final String KEY_STATUS = "status";
     public static final String KEY_FCM_TOKEN = "fcmToken";
+    public static final String KEY_CONTACTS_FULL_SYNC_AT = "contactsFullSyncAt";
     public static final String KEY_CREATED_AT = "createdAt";
     public static final String KEY_LAST_LOGIN = "lastLoginAt";
+    public static final String KEY_AVATAR_VERSION = "avatarVersion";
+    public static final String KEY_AVATAR_THUMB_ID = "avatarThumbId";
+    public static final String KEY_AVATAR_ID = "avatarId";
+    public static final String KEY_AVATAR_DATA = "data";
 
     // chat fields
-    public static final String KEY_USER = "user";
     public static final String KEY_SENDER_ID = "senderId";
     public static final String KEY_RECEIVER_ID = "receiverId";
     public static final String KEY_MESSAGE = "message";
     public static final String KEY_TIMESTAMP = "timestamp";
+    // Server time a message reached Firestore, which readers resume from
+    public static final String KEY_SENT_AT = "sentAt";
     public static final String KEY_IMAGE = "profilePictureUrl";
 
+    // conversation fields
+    public static final String KEY_PARTICIPANTS = "participants";
+    public static final String KEY_LEGACY_MIGRATED = "legacyMigrated";
+
+    // inbox fields
+    public static final String KEY_PEER_ID = "peerId";
+    public static final String KEY_PEER_NAME = "peerName";
+    public static final String KEY_PEER_AVATAR_VERSION = "peerAvatarVersion";
+    public static final String KEY_LAST_SENDER_ID = "lastSenderId";
+    public static final String KEY_LAST_MESSAGE_TYPE = "lastMessageType";
+    public static final String KEY_UNREAD_COUNT = "unreadCount";
+
+    // media fields
+    public static final String KEY_MEDIA_HASH = "mediaHash";
+    public static final String KEY_MEDIA_SIZE = "mediaSize";
+    public static final String KEY_THUMBNAIL = "thumbnail";
+    public static final String KEY_CHUNK_COUNT = "chunkCount";
+    public static final String KEY_CHUNK_INDEX = "index";
+    public static final String KEY_CHUNK_DATA = "data";
+
+    // FCM data message fields
+    public static final String KEY_PUSH_TYPE = "type";
+    public static final String KEY_CONVERSATION_ID = "conversationId";
+    public static final String PUSH_TYPE_MESSAGE = "message";
+
 
     // shared preferences
     public static final String KEY_PREFERENCE_NAME = "talkolocoPrefs";
     public static final String KEY_IS_SIGNED_IN = "isSignedIn";
+    public static final String KEY_INBOX_BACKFILLED = "inboxBackfilled";
+
+    // device-bound preferences, kept when the user signs out
+    public static final String KEY_DEVICE_PREFERENCE_NAME = "talkolocoDevicePrefs";
+    public static final String KEY_WRAPPED_LOCAL_STORE_KEY = "wrappedLocalStoreKey";
 
     // New constants for encryption
     public static final String KEY_PUBLIC_KEY = "publicKey";
     public static final String KEY_ENCRYPTED_MESSAGE = "encryptedMessage";
+    public static final String KEY_MESSAGE_ENVELOPE = "envelope";
     public static final String KEY_ENCRYPTED_AES_KEY = "encryptedAESKey";
     public static final String KEY_ENCRYPTED_AES_KEY_RECIPIENT = "encryptedAESKeyRecipient";
     public static final String KEY_ENCRYPTED_AES_KEY_SENDER = "encryptedAESKeySender";
     public static final String KEY_MESSAGE_TYPE = "messageType";
     public static final String MESSAGE_TYPE_TEXT = "text";
     public static final String MESSAGE_TYPE_IMAGE = "image";
+    // Shown only on this device, never written to Firestore
+    public static final String MESSAGE_TYPE_IDENTITY_CHANGED = "identityChanged";
+
+    // signal protocol sessions
+    public static final String KEY_COLLECTION_SIGNAL = "signal";
+    public static final String KEY_COLLECTION_SIGNAL_PRE_KEYS = "signalPreKeys";
+    public static final String KEY_SIGNAL_BUNDLE = "bundle";
+    public static final String KEY_REGISTRATION_ID = "registrationId";
+    public static final String KEY_IDENTITY_KEY = "identityKey";
+    public static final String KEY_SIGNED_PRE_KEY_ID = "signedPreKeyId";
+    public static final String KEY_SIGNED_PRE_KEY = "signedPreKey";
+    public static final String KEY_SIGNED_PRE_KEY_SIGNATURE = "signedPreKeySignature";
+    public static final String KEY_KYBER_PRE_KEY_ID = "kyberPreKeyId";
+    public static final String KEY_KYBER_PRE_KEY = "kyberPreKey";
+    public static final String KEY_KYBER_PRE_KEY_SIGNATURE = "kyberPreKeySignature";
+    public static final String KEY_PRE_KEY = "preKey";
+    public static final String KEY_SIGNAL_MESSAGE = "signalMessage";
+    public static final String KEY_SIGNAL_MESSAGE_TYPE = "signalMessageType";
+    public static final String KEY_SIGNAL_REGISTRATION_ID = "signalRegistrationId";
+    public static final String KEY_SIGNAL_NEXT_PRE_KEY_ID = "signalNextPreKeyId";
+    public static final String KEY_SIGNAL_SIGNED_PRE_KEY_ID = "signalSignedPreKeyId";
+    public static final String KEY_SIGNAL_BUNDLE_PUBLISHED = "signalBundlePublished";
+    public static final String KEY_SIGNAL_OWNER_ID = "signalOwnerId";
+
+    // registered number filter
+    public static final String KEY_COLLECTION_REGISTRY = "registry";
+    public static final String KEY_COLLECTION_REGISTRY_ADDITIONS = "additions";
+    public static final String REGISTRY_PHONE_NUMBERS = "phoneNumbers";
+    public static final String KEY_FILTER_BITS = "bits";
+    public static final String KEY_FILTER_HASH_COUNT = "hashCount";
+    public static final String KEY_FILTER_VERSION = "version";
+    public static final String KEY_REGISTRY_SELF_REGISTERED_AT = "registrySelfRegisteredAt";
 
 
 
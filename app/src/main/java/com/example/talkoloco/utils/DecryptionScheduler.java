@@ -0,0 +1,103 @@
+package com.example.talkoloco.utils;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Runs message decryption off the main thread.
+ * Work for messages on screen is taken before the rest of the backlog, which is decrypted
+ * in parallel. Work that has to keep its order, such as ratchet messages, runs on a single
+ * ordered lane. Results are handed back on the main thread one by one as they finish.
+ * Work that must not be lost, such as storing a plaintext, belongs in the work itself,
+ * since results are dropped once the scheduler is cancelled.
+ */
+public class DecryptionScheduler {
+    private static final int POOL_SIZE = Math.max(2, Runtime.getRuntime().availableProcessors() - 1);
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final ThreadPoolExecutor parallelExecutor;
+    private final ExecutorService orderedExecutor;
+    private final AtomicLong sequence = new AtomicLong();
+    private volatile boolean isCancelled = false;
+
+    /**
+     * Queued work, ordered by priority and then by submission order.
+     */
+    private static class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+        private final boolean isVisible;
+        private final long sequence;
+        private final Runnable work;
+
+        PrioritizedTask(boolean isVisible, long sequence, Runnable work) {
+            this.isVisible = isVisible;
+            this.sequence = sequence;
+            this.work = work;
+        }
+
+        @Override
+        public void run() {
+            work.run();
+        }
+
+        @Override
+        public int compareTo(PrioritizedTask other) {
+            if (isVisible != other.isVisible) {
+                return isVisible ? -1 : 1;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    public DecryptionScheduler() {
+        parallelExecutor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new PriorityBlockingQueue<>());
+        parallelExecutor.allowCoreThreadTimeOut(true);
+        orderedExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    /**
+     * Schedules decryption work.
+     *
+     * @param isVisible true if the result is on screen and should be produced first
+     * @param isOrdered true if the work must run after all ordered work submitted before it
+     * @param work      the decryption, run on a background thread
+     * @param onResult  receives the result on the main thread, unless cancelled
+     * @param <T>       the result type
+     */
+    public <T> void submit(boolean isVisible, boolean isOrdered, Supplier<T> work, Consumer<T> onResult) {
+        if (isCancelled) return;
+        Runnable task = () -> {
+            if (isCancelled) return;
+            T result = work.get();
+            AppExecutors.getInstance().mainThread().execute(() -> {
+                if (!isCancelled) {
+                    onResult.accept(result);
+                }
+            });
+        };
+
+        if (isOrdered) {
+            orderedExecutor.execute(task);
+        } else {
+            parallelExecutor.execute(new PrioritizedTask(isVisible, sequence.getAndIncrement(), task));
+        }
+    }
+
+    /**
+     * Drops all queued work and stops delivering results. Work already running is left to
+     * finish without interruption, so whatever it stores is not lost halfway. The scheduler
+     * cannot be used after this.
+     */
+    public void cancel() {
+        isCancelled = true;
+        // Queued work sees the flag and returns at once
+        parallelExecutor.shutdown();
+        orderedExecutor.shutdown();
+    }
+}
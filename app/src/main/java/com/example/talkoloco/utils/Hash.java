@@ -7,8 +7,9 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 /**
- * Utility class for handling phone number hashing operations.
- * Implements SHA-256 hashing for secure phone number storage and comparison.
+ * Utility class for handling hashing operations.
+ * Implements SHA-256 hashing for secure phone number storage and comparison,
+ * and for addressing media by its content.
  */
 public class Hash {
 
@@ -30,6 +31,28 @@ public class Hash {
         }
     }
 
+    /**
+     * Hashes binary content using SHA-256 and encodes it as lowercase hex, which is safe
+     * to use as a document ID or file name.
+     *
+     * @param content The bytes to hash
+     * @return hex encoded SHA-256 hash of the content
+     * @throws RuntimeException if hashing algorithm is not available
+     */
+    public static String hashContent(byte[] content) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(content);
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Hashing failed", e);
+        }
+    }
+
     /**
      * Debug utility to log original and hashed phone numbers.
      * Should only be used during development/testing.
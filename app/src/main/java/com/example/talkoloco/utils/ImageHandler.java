@@ -3,6 +3,8 @@ package com.example.talkoloco.utils;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
 import android.net.Uri;
 import android.util.Base64;
 import android.util.Log;
@@ -21,6 +23,9 @@ public class ImageHandler {
     private static final int MAX_IMAGE_DIMENSION = 800;
     // JPEG compression quality for processed images
     private static final int COMPRESSION_QUALITY = 75;
+    // Maximum dimension and quality of the inline previews of image messages
+    private static final int THUMBNAIL_DIMENSION = 48;
+    private static final int THUMBNAIL_QUALITY = 40;
 
     /**
      * Processes and encodes an image URI to a Base64 string.
@@ -32,25 +37,183 @@ public class ImageHandler {
      * @throws IOException if image processing fails
      */
     public static String encodeImage(Context context, Uri imageUri) throws IOException {
-        // Open input stream from URI
-        InputStream inputStream = context.getContentResolver().openInputStream(imageUri);
-        Bitmap bitmap = BitmapFactory.decodeStream(inputStream);
+        return Base64.encodeToString(compressImage(context, imageUri), Base64.DEFAULT);
+    }
+
+    /**
+     * Processes an image URI into compressed JPEG bytes.
+     * The image is decoded subsampled close to its final size, so memory use depends on
+     * the output size rather than the size of the source image.
+     *
+     * @param context The context to use for content resolution
+     * @param imageUri The URI of the image to process
+     * @return JPEG bytes of the processed image
+     * @throws IOException if image processing fails
+     */
+    public static byte[] compressImage(Context context, Uri imageUri) throws IOException {
+        // First pass: read the dimensions only
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream inputStream = context.getContentResolver().openInputStream(imageUri)) {
+            BitmapFactory.decodeStream(inputStream, null, options);
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Failed to read image dimensions");
+        }
+
+        // Second pass: decode at the largest power of two reduction that stays above the target size
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight);
+        options.inJustDecodeBounds = false;
+        Bitmap bitmap;
+        try (InputStream inputStream = context.getContentResolver().openInputStream(imageUri)) {
+            bitmap = BitmapFactory.decodeStream(inputStream, null, options);
+        }
 
         if (bitmap == null) {
             throw new IOException("Failed to decode image");
         }
 
-        // Scale the image down if it's too large
+        // Scale the rest of the way down if it's still too large, then turn it upright
         bitmap = scaleBitmap(bitmap);
+        bitmap = applyExifOrientation(bitmap, readExifOrientation(context, imageUri));
 
-        // Convert to Base64 with compression
+        // Compress to JPEG
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         bitmap.compress(Bitmap.CompressFormat.JPEG, COMPRESSION_QUALITY, baos);
-        byte[] imageBytes = baos.toByteArray();
 
         // Clean up resources
         bitmap.recycle();
-        return Base64.encodeToString(imageBytes, Base64.DEFAULT);
+        return baos.toByteArray();
+    }
+
+    /**
+     * Creates a tiny, low quality preview of a compressed image, small enough to be sent
+     * inline with a message and shown while the full image is fetched.
+     *
+     * @param imageBytes JPEG bytes of the processed image
+     * @return JPEG bytes of the preview, usually one or two kilobytes
+     * @throws IOException if the image cannot be decoded
+     */
+    public static byte[] createThumbnail(byte[] imageBytes) throws IOException {
+        return createThumbnail(imageBytes, THUMBNAIL_DIMENSION, THUMBNAIL_QUALITY);
+    }
+
+    /**
+     * Creates a downscaled copy of a compressed image.
+     *
+     * @param imageBytes JPEG bytes of the processed image
+     * @param dimension  the largest width or height of the copy
+     * @param quality    the JPEG quality of the copy
+     * @return JPEG bytes of the copy
+     * @throws IOException if the image cannot be decoded
+     */
+    public static byte[] createThumbnail(byte[] imageBytes, int dimension, int quality) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(imageBytes, 0, imageBytes.length, options);
+
+        int inSampleSize = 1;
+        while (Math.max(options.outWidth, options.outHeight) / (inSampleSize * 2) >= dimension) {
+            inSampleSize *= 2;
+        }
+        options.inSampleSize = inSampleSize;
+        options.inJustDecodeBounds = false;
+        Bitmap bitmap = BitmapFactory.decodeByteArray(imageBytes, 0, imageBytes.length, options);
+        if (bitmap == null) {
+            throw new IOException("Failed to decode image");
+        }
+
+        float ratio = Math.min(1f, (float) dimension / Math.max(bitmap.getWidth(), bitmap.getHeight()));
+        Bitmap thumbnail = Bitmap.createScaledBitmap(bitmap,
+                Math.max(1, Math.round(bitmap.getWidth() * ratio)),
+                Math.max(1, Math.round(bitmap.getHeight() * ratio)), true);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        thumbnail.compress(Bitmap.CompressFormat.JPEG, quality, baos);
+        if (thumbnail != bitmap) {
+            thumbnail.recycle();
+        }
+        bitmap.recycle();
+        return baos.toByteArray();
+    }
+
+    /**
+     * Calculates the largest power of two sample size that keeps both dimensions at or
+     * above the maximum image dimension, leaving the final scaling to {@link #scaleBitmap}.
+     *
+     * @param width  The width of the source image
+     * @param height The height of the source image
+     * @return the sample size to decode with
+     */
+    private static int calculateInSampleSize(int width, int height) {
+        int inSampleSize = 1;
+        int longestSide = Math.max(width, height);
+        while (longestSide / (inSampleSize * 2) >= MAX_IMAGE_DIMENSION) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    /**
+     * Reads the EXIF orientation of an image.
+     *
+     * @param context  The context to use for content resolution
+     * @param imageUri The URI of the image
+     * @return the EXIF orientation, or normal orientation if it cannot be read
+     */
+    private static int readExifOrientation(Context context, Uri imageUri) {
+        try (InputStream inputStream = context.getContentResolver().openInputStream(imageUri)) {
+            if (inputStream == null) return ExifInterface.ORIENTATION_NORMAL;
+            return new ExifInterface(inputStream).getAttributeInt(
+                    ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read image orientation", e);
+            return ExifInterface.ORIENTATION_NORMAL;
+        }
+    }
+
+    /**
+     * Rotates and mirrors a bitmap so it is upright according to its EXIF orientation.
+     *
+     * @param bitmap      The decoded bitmap
+     * @param orientation The EXIF orientation of the source image
+     * @return the upright bitmap, or the original bitmap if no change is needed
+     */
+    private static Bitmap applyExifOrientation(Bitmap bitmap, int orientation) {
+        Matrix matrix = new Matrix();
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.setScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.setRotate(180);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.setScale(1, -1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.setRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.setRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.setRotate(-90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.setRotate(-90);
+                break;
+            default:
+                return bitmap;
+        }
+
+        Bitmap upright = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+        if (upright != bitmap) {
+            bitmap.recycle();
+        }
+        return upright;
     }
 
     /**
@@ -77,7 +240,12 @@ public class ImageHandler {
         int newWidth = Math.round(width * ratio);
         int newHeight = Math.round(height * ratio);
 
-        return Bitmap.createScaledBitmap(original, newWidth, newHeight, true);
+        Bitmap scaled = Bitmap.createScaledBitmap(original, newWidth, newHeight, true);
+        if (scaled != original) {
+            // Free the subsampled decode right away instead of waiting for the collector
+            original.recycle();
+        }
+        return scaled;
     }
 
     /**
@@ -0,0 +1,188 @@
+package com.example.talkoloco.utils;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import com.example.talkoloco.R;
+import com.example.talkoloco.controllers.MediaController;
+import com.example.talkoloco.database.MediaCache;
+import com.google.android.gms.tasks.Tasks;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loads encoded images and message media into image views without blocking the main thread.
+ * Decoded bitmaps are kept in a memory cache sized in bytes, so scrolling back to an image
+ * does not decode it again. A view that is recycled before its image is ready has its
+ * request cancelled. All methods must be called from the main thread.
+ */
+public class ImageLoader {
+    private static final String TAG = "ImageLoader";
+    // Loads may wait on the network for media, so there are more threads than cores
+    private static final int DECODE_THREADS = 4;
+    // Share of the app's memory used for decoded bitmaps
+    private static final int CACHE_MEMORY_FRACTION = 8;
+    private static final String THUMBNAIL_KEY_SUFFIX = "_thumbnail";
+
+    private static ImageLoader instance;
+
+    private final LruCache<String, Bitmap> memoryCache;
+    private final ExecutorService decodeExecutor = Executors.newFixedThreadPool(DECODE_THREADS);
+    private final Map<ImageView, Future<?>> pendingRequests = new WeakHashMap<>();
+    private final Map<ImageView, String> requestedKeys = new WeakHashMap<>();
+
+    private ImageLoader() {
+        int cacheSize = (int) (Runtime.getRuntime().maxMemory() / CACHE_MEMORY_FRACTION);
+        memoryCache = new LruCache<String, Bitmap>(cacheSize) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+    }
+
+    /**
+     * Returns instance of ImageLoader.
+     *
+     * @return ImageLoader instance
+     */
+    public static synchronized ImageLoader getInstance() {
+        if (instance == null) {
+            instance = new ImageLoader();
+        }
+        return instance;
+    }
+
+    /**
+     * Shows an encoded image in a view. A cached bitmap is shown at once; otherwise a
+     * placeholder is shown while the image is decoded in the background.
+     *
+     * @param imageView    the view to show the image in
+     * @param key          a key identifying the image, such as its message ID
+     * @param encodedImage the Base64 encoded image
+     */
+    public void load(ImageView imageView, String key, String encodedImage) {
+        load(imageView, key, null, () -> ImageHandler.decodeImage(encodedImage));
+    }
+
+    /**
+     * Shows message media in a view. The media is read from the on-device media cache, or
+     * downloaded from the conversation and cached when it is not there yet. The message's
+     * inline preview, if any, is shown until then.
+     *
+     * @param imageView      the view to show the image in
+     * @param conversationId the conversation the media belongs to
+     * @param mediaHash      the content hash of the media
+     * @param thumbnail      JPEG bytes of the inline preview, or null
+     */
+    public void loadMedia(ImageView imageView, String conversationId, String mediaHash, byte[] thumbnail) {
+        Context context = imageView.getContext().getApplicationContext();
+        load(imageView, mediaHash, getThumbnail(mediaHash, thumbnail), () -> {
+            MediaCache mediaCache = MediaCache.getInstance(context);
+            byte[] content = mediaCache.getMedia(mediaHash);
+            if (content == null) {
+                content = Tasks.await(MediaController.getInstance().downloadMedia(conversationId, mediaHash));
+                mediaCache.saveMedia(mediaHash, content);
+            }
+            return BitmapFactory.decodeByteArray(content, 0, content.length);
+        });
+    }
+
+    /**
+     * Decodes the inline preview of an image. Previews are only a few kilobytes, so they
+     * are decoded right away and kept in the memory cache like full images.
+     *
+     * @param mediaHash the content hash of the full image
+     * @param thumbnail JPEG bytes of the preview, or null
+     * @return the preview bitmap, or null if there is none
+     */
+    private Bitmap getThumbnail(String mediaHash, byte[] thumbnail) {
+        if (thumbnail == null) {
+            return null;
+        }
+        String key = mediaHash + THUMBNAIL_KEY_SUFFIX;
+        Bitmap bitmap = memoryCache.get(key);
+        if (bitmap == null) {
+            bitmap = BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length);
+            if (bitmap != null) {
+                memoryCache.put(key, bitmap);
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Shows a cached bitmap, or a placeholder while the bitmap is produced in the background.
+     *
+     * @param imageView   the view to show the image in
+     * @param key         a key identifying the image
+     * @param placeholder bitmap to show meanwhile, or null for the default placeholder
+     * @param source      produces the bitmap, or null if it is unavailable
+     */
+    private void load(ImageView imageView, String key, Bitmap placeholder, Callable<Bitmap> source) {
+        if (key.equals(requestedKeys.get(imageView)) && pendingRequests.containsKey(imageView)) {
+            return;
+        }
+        cancel(imageView);
+        requestedKeys.put(imageView, key);
+
+        Bitmap cached = memoryCache.get(key);
+        if (cached != null) {
+            imageView.setImageBitmap(cached);
+            return;
+        }
+
+        if (placeholder != null) {
+            imageView.setImageBitmap(placeholder);
+        } else {
+            imageView.setImageResource(R.drawable.image_placeholder);
+        }
+        Future<?> request = decodeExecutor.submit(() -> {
+            Bitmap bitmap;
+            try {
+                bitmap = source.call();
+            } catch (InterruptedException e) {
+                // Cancelled because the view was recycled
+                return;
+            } catch (Exception e) {
+                Log.e(TAG, "Error loading image " + key, e);
+                bitmap = null;
+            }
+            Bitmap loaded = bitmap;
+            AppExecutors.getInstance().mainThread().execute(() -> {
+                if (loaded != null) {
+                    memoryCache.put(key, loaded);
+                }
+                // The view may have been recycled for another image meanwhile
+                if (!key.equals(requestedKeys.get(imageView))) return;
+                pendingRequests.remove(imageView);
+                if (loaded != null) {
+                    imageView.setImageBitmap(loaded);
+                }
+            });
+        });
+        pendingRequests.put(imageView, request);
+    }
+
+    /**
+     * Cancels the pending request of a view, if any, and forgets which image it showed.
+     *
+     * @param imageView the view being recycled
+     */
+    public void cancel(ImageView imageView) {
+        Future<?> request = pendingRequests.remove(imageView);
+        if (request != null) {
+            request.cancel(true);
+        }
+        requestedKeys.remove(imageView);
+    }
+}
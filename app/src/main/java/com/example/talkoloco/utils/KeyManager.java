@@ -5,6 +5,7 @@ import android.security.keystore.KeyGenParameterSpec;
 import android.security.keystore.KeyProperties;
 import android.util.Base64;
 import android.util.Log;
+import android.util.LruCache;
 
 import java.security.KeyFactory;
 import java.security.KeyPair;
@@ -12,6 +13,7 @@ import java.security.KeyPairGenerator;
 import java.security.KeyStore;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
@@ -19,23 +21,41 @@ import java.security.spec.X509EncodedKeySpec;
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 /**
  * Manages encryption and key operations for secure message exchange.
  * Handles RSA key pair generation, AES key generation, and message encryption/decryption.
+ * New messages are sealed into a binary AES-GCM {@link MessageEnvelope}; the older
+ * AES-CBC string format can still be decrypted.
  */
 public class KeyManager {
     private static final String TAG = "KeyManager";
 
     // Cryptographic constants
     private static final String RSA_ALIAS = "UserRSAKey";
-    private static final String AES_TRANSFORMATION = "AES/CBC/PKCS5Padding";  // For encryption/decryption
+    private static final String AES_TRANSFORMATION = "AES/CBC/PKCS5Padding";  // For legacy messages
+    private static final String AES_GCM_TRANSFORMATION = "AES/GCM/NoPadding";  // For message envelopes
+    private static final int GCM_IV_LENGTH = 12;
+    private static final int GCM_TAG_LENGTH_BITS = 128;
     private static final String AES_ALGORITHM = "AES";  // For key generation
     private static final String RSA_ALGORITHM = "RSA/ECB/PKCS1Padding";
     private static final int RSA_KEY_SIZE = 2048;
     private static final int AES_KEY_SIZE = 128;
+    // Number of parsed contact public keys kept in memory
+    private static final int PUBLIC_KEY_CACHE_SIZE = 64;
+
+    // Parsed keys and cipher objects are shared by all instances, since parsing a key or
+    // looking up a cipher costs far more than the encryption of a single message
+    private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+    private static final LruCache<String, PublicKey> PUBLIC_KEYS = new LruCache<>(PUBLIC_KEY_CACHE_SIZE);
+    private static final ThreadLocal<Cipher> AES_CIPHER = ThreadLocal.withInitial(() -> newCipher(AES_TRANSFORMATION));
+    private static final ThreadLocal<Cipher> AES_GCM_CIPHER = ThreadLocal.withInitial(() -> newCipher(AES_GCM_TRANSFORMATION));
+    private static final ThreadLocal<Cipher> RSA_CIPHER = ThreadLocal.withInitial(() -> newCipher(RSA_ALGORITHM));
+    private static String cachedPrivateKeyString;
+    private static PrivateKey cachedPrivateKey;
 
     private final Context context;
     private final PreferenceManager preferenceManager;
@@ -98,6 +118,7 @@ public class KeyManager {
 
     /**
      * Retrieves the private key from preferences and converts it to a PrivateKey object.
+     * The parsed key is reused for as long as the stored key does not change.
      *
      * @return PrivateKey object for decryption
      * @throws RuntimeException if private key is missing or invalid
@@ -105,22 +126,59 @@ public class KeyManager {
     private PrivateKey getPrivateKey() {
         try {
             String privateKeyString = preferenceManager.getString("PRIVATE_KEY");
-            Log.d(TAG, "Retrieved private key from preferences: " + (privateKeyString != null));
-
             if (privateKeyString == null) {
                 throw new RuntimeException("Private key not found");
             }
 
-            byte[] privateKeyBytes = Base64.decode(privateKeyString, Base64.NO_WRAP);
-            KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-            PKCS8EncodedKeySpec keySpec = new PKCS8EncodedKeySpec(privateKeyBytes);
-            return keyFactory.generatePrivate(keySpec);
+            synchronized (KeyManager.class) {
+                if (!privateKeyString.equals(cachedPrivateKeyString)) {
+                    byte[] privateKeyBytes = Base64.decode(privateKeyString, Base64.NO_WRAP);
+                    KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+                    PKCS8EncodedKeySpec keySpec = new PKCS8EncodedKeySpec(privateKeyBytes);
+                    cachedPrivateKey = keyFactory.generatePrivate(keySpec);
+                    cachedPrivateKeyString = privateKeyString;
+                }
+                return cachedPrivateKey;
+            }
         } catch (Exception e) {
             Log.e(TAG, "Error getting private key", e);
             throw new RuntimeException("Failed to get private key", e);
         }
     }
 
+    /**
+     * Converts a Base64 encoded public key to a PublicKey object, reusing keys parsed before.
+     *
+     * @param publicKeyString public key as Base64 string
+     * @return PublicKey object for encryption
+     * @throws Exception if the key is invalid
+     */
+    private static PublicKey getPublicKey(String publicKeyString) throws Exception {
+        PublicKey publicKey = PUBLIC_KEYS.get(publicKeyString);
+        if (publicKey == null) {
+            byte[] publicKeyBytes = Base64.decode(publicKeyString, Base64.NO_WRAP);
+            X509EncodedKeySpec publicKeySpec = new X509EncodedKeySpec(publicKeyBytes);
+            KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+            publicKey = keyFactory.generatePublic(publicKeySpec);
+            PUBLIC_KEYS.put(publicKeyString, publicKey);
+        }
+        return publicKey;
+    }
+
+    /**
+     * Creates a cipher for one thread's use.
+     *
+     * @param transformation the cipher transformation
+     * @return the cipher
+     */
+    private static Cipher newCipher(String transformation) {
+        try {
+            return Cipher.getInstance(transformation);
+        } catch (Exception e) {
+            throw new RuntimeException("Cipher not available: " + transformation, e);
+        }
+    }
+
     /**
      * Generates a new AES key for message encryption.
      *
@@ -131,7 +189,7 @@ public class KeyManager {
         try {
             // Use just "AES" for key generation
             KeyGenerator keyGen = KeyGenerator.getInstance(AES_ALGORITHM);
-            keyGen.init(AES_KEY_SIZE, new SecureRandom());
+            keyGen.init(AES_KEY_SIZE, SECURE_RANDOM);
             return keyGen.generateKey();
         } catch (Exception e) {
             Log.e(TAG, "Error generating AES key", e);
@@ -139,6 +197,66 @@ public class KeyManager {
         }
     }
 
+    /**
+     * Seals a message into a binary envelope. The message is encrypted with AES-GCM under
+     * a new AES key, and that key is wrapped with both participants' public keys.
+     *
+     * @param message                  Message to encrypt
+     * @param recipientPublicKeyString Recipient's public key as Base64 string
+     * @param senderPublicKeyString    Sender's public key as Base64 string
+     * @return the envelope bytes
+     * @throws RuntimeException if encryption fails
+     */
+    public byte[] encryptEnvelope(String message, String recipientPublicKeyString, String senderPublicKeyString) {
+        try {
+            SecretKey aesKey = generateAESKey();
+            byte[] iv = new byte[GCM_IV_LENGTH];
+            SECURE_RANDOM.nextBytes(iv);
+            byte[] header = MessageEnvelope.header(iv,
+                    wrapKey(aesKey, recipientPublicKeyString),
+                    wrapKey(aesKey, senderPublicKeyString));
+
+            Cipher cipher = AES_GCM_CIPHER.get();
+            cipher.init(Cipher.ENCRYPT_MODE, aesKey, new GCMParameterSpec(GCM_TAG_LENGTH_BITS, iv));
+            cipher.updateAAD(header);
+            byte[] plaintext = message.getBytes(StandardCharsets.UTF_8);
+
+            // Encrypt straight into the envelope after the header
+            byte[] envelope = new byte[header.length + cipher.getOutputSize(plaintext.length)];
+            System.arraycopy(header, 0, envelope, 0, header.length);
+            cipher.doFinal(plaintext, 0, plaintext.length, envelope, header.length);
+            return envelope;
+        } catch (Exception e) {
+            Log.e(TAG, "Error encrypting message envelope", e);
+            throw new RuntimeException("Failed to encrypt message envelope", e);
+        }
+    }
+
+    /**
+     * Opens a message envelope with the private key.
+     *
+     * @param envelopeBytes the envelope bytes
+     * @param asSender      true to use the key wrapped for the sender, false for the recipient
+     * @return Decrypted message string
+     * @throws RuntimeException if the envelope is invalid or decryption fails
+     */
+    public String decryptEnvelope(byte[] envelopeBytes, boolean asSender) {
+        try {
+            MessageEnvelope envelope = MessageEnvelope.parse(envelopeBytes);
+            SecretKey aesKey = unwrapKey(asSender ? envelope.senderKey : envelope.recipientKey);
+
+            Cipher cipher = AES_GCM_CIPHER.get();
+            cipher.init(Cipher.DECRYPT_MODE, aesKey, new GCMParameterSpec(GCM_TAG_LENGTH_BITS, envelope.iv));
+            cipher.updateAAD(envelope.encoded, 0, envelope.headerLength);
+            byte[] plaintext = cipher.doFinal(envelope.encoded, envelope.headerLength,
+                    envelope.encoded.length - envelope.headerLength);
+            return new String(plaintext, StandardCharsets.UTF_8);
+        } catch (Exception e) {
+            Log.e(TAG, "Error decrypting message envelope", e);
+            throw new RuntimeException("Failed to decrypt message envelope", e);
+        }
+    }
+
     /**
      * Encrypts a message using AES encryption with a random IV.
      *
@@ -151,12 +269,11 @@ public class KeyManager {
         try {
             // Create and initialize IV
             byte[] iv = new byte[16];
-            SecureRandom random = new SecureRandom();
-            random.nextBytes(iv);
+            SECURE_RANDOM.nextBytes(iv);
             IvParameterSpec ivSpec = new IvParameterSpec(iv);
 
             // Initialize cipher for encryption
-            Cipher cipher = Cipher.getInstance(AES_TRANSFORMATION);
+            Cipher cipher = AES_CIPHER.get();
             cipher.init(Cipher.ENCRYPT_MODE, aesKey, ivSpec);
 
             // Perform encryption
@@ -194,7 +311,7 @@ public class KeyManager {
 
             // Initialize cipher for decryption
             IvParameterSpec ivSpec = new IvParameterSpec(iv);
-            Cipher cipher = Cipher.getInstance(AES_TRANSFORMATION);
+            Cipher cipher = AES_CIPHER.get();
             cipher.init(Cipher.DECRYPT_MODE, aesKey, ivSpec);
 
             // Perform decryption
@@ -218,17 +335,7 @@ public class KeyManager {
         try {
             Log.d(TAG, "Encrypting AES key with recipient's public key");
 
-            // Convert public key string to PublicKey object
-            byte[] publicKeyBytes = Base64.decode(recipientPublicKeyString, Base64.NO_WRAP);
-            X509EncodedKeySpec publicKeySpec = new X509EncodedKeySpec(publicKeyBytes);
-            KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-            PublicKey publicKey = keyFactory.generatePublic(publicKeySpec);
-
-            // Encrypt AES key with RSA
-            Cipher cipher = Cipher.getInstance(RSA_ALGORITHM);
-            cipher.init(Cipher.ENCRYPT_MODE, publicKey);
-            byte[] encryptedKey = cipher.doFinal(aesKey.getEncoded());
-            return Base64.encodeToString(encryptedKey, Base64.NO_WRAP);
+            return Base64.encodeToString(wrapKey(aesKey, recipientPublicKeyString), Base64.NO_WRAP);
         } catch (Exception e) {
             Log.e(TAG, "Error encrypting AES key", e);
             throw new RuntimeException("Failed to encrypt AES key", e);
@@ -246,26 +353,37 @@ public class KeyManager {
         try {
             Log.d(TAG, "Decrypting AES key");
 
-            // Retrieve and verify private key
-            String privateKeyString = preferenceManager.getString("PRIVATE_KEY");
-            if (privateKeyString == null) {
-                throw new RuntimeException("Private key not found");
-            }
-
-            // Convert private key string to PrivateKey object
-            byte[] privateKeyBytes = Base64.decode(privateKeyString, Base64.NO_WRAP);
-            PKCS8EncodedKeySpec privateKeySpec = new PKCS8EncodedKeySpec(privateKeyBytes);
-            KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-            PrivateKey privateKey = keyFactory.generatePrivate(privateKeySpec);
-
-            // Decrypt AES key
-            Cipher cipher = Cipher.getInstance(RSA_ALGORITHM);
-            cipher.init(Cipher.DECRYPT_MODE, privateKey);
-            byte[] decryptedKey = cipher.doFinal(Base64.decode(encryptedKeyString, Base64.NO_WRAP));
-            return new SecretKeySpec(decryptedKey, "AES");
+            return unwrapKey(Base64.decode(encryptedKeyString, Base64.NO_WRAP));
         } catch (Exception e) {
             Log.e(TAG, "Error decrypting AES key", e);
             throw new RuntimeException("Failed to decrypt AES key", e);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Encrypts an AES key with an RSA public key.
+     *
+     * @param aesKey          AES key to encrypt
+     * @param publicKeyString public key as Base64 string
+     * @return the encrypted key
+     * @throws Exception if encryption fails
+     */
+    private byte[] wrapKey(SecretKey aesKey, String publicKeyString) throws Exception {
+        Cipher cipher = RSA_CIPHER.get();
+        cipher.init(Cipher.ENCRYPT_MODE, getPublicKey(publicKeyString));
+        return cipher.doFinal(aesKey.getEncoded());
+    }
+
+    /**
+     * Decrypts an RSA encrypted AES key with the private key.
+     *
+     * @param wrappedKey the encrypted key
+     * @return the AES key
+     * @throws Exception if decryption fails
+     */
+    private SecretKey unwrapKey(byte[] wrappedKey) throws Exception {
+        Cipher cipher = RSA_CIPHER.get();
+        cipher.init(Cipher.DECRYPT_MODE, getPrivateKey());
+        return new SecretKeySpec(cipher.doFinal(wrappedKey), AES_ALGORITHM);
+    }
+}
@@ -0,0 +1,133 @@
+package com.example.talkoloco.utils;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.lifecycle.DefaultLifecycleObserver;
+import androidx.lifecycle.Lifecycle;
+import androidx.lifecycle.LifecycleOwner;
+
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.EventListener;
+import com.google.firebase.firestore.ListenerRegistration;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.QuerySnapshot;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the snapshot listeners of a screen attached only while the screen is started.
+ * Listeners are detached in onStop and forgotten in onDestroy. For each listener the newest
+ * server time it has seen is remembered as a cursor, so on onStart it is attached again to a
+ * query for the documents from the cursor on, instead of replaying everything it saw before.
+ * The cursor comes from the server-assigned sentAt field rather than the client timestamp,
+ * since a document can reach Firestore long after the time its sender put on it.
+ */
+public class ListenerRegistry implements DefaultLifecycleObserver {
+    private static final String TAG = "ListenerRegistry";
+
+    /**
+     * Builds the query a listener is attached to.
+     */
+    public interface QueryFactory {
+        /**
+         * @param cursor the newest sentAt seen so far, or null on the first attach
+         * @return the query to listen to
+         */
+        Query create(Date cursor);
+    }
+
+    private static class Entry {
+        final QueryFactory queryFactory;
+        final EventListener<QuerySnapshot> listener;
+        Date cursor;
+        ListenerRegistration registration;
+
+        Entry(QueryFactory queryFactory, EventListener<QuerySnapshot> listener) {
+            this.queryFactory = queryFactory;
+            this.listener = listener;
+        }
+    }
+
+    private final Lifecycle lifecycle;
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    /**
+     * Creates a registry bound to the lifecycle of a screen.
+     *
+     * @param owner the activity or fragment owning the listeners
+     */
+    public ListenerRegistry(LifecycleOwner owner) {
+        lifecycle = owner.getLifecycle();
+        lifecycle.addObserver(this);
+    }
+
+    /**
+     * Registers a listener, replacing any listener registered under the same key. It is
+     * attached right away if the screen is started, and otherwise on the next onStart.
+     *
+     * @param key          identifies the listener
+     * @param queryFactory builds the query from the listener's cursor
+     * @param listener     receives the snapshots
+     */
+    public void register(String key, QueryFactory queryFactory, EventListener<QuerySnapshot> listener) {
+        Entry previous = entries.remove(key);
+        if (previous != null) {
+            detach(previous);
+        }
+        Entry entry = new Entry(queryFactory, listener);
+        entries.put(key, entry);
+        if (lifecycle.getCurrentState().isAtLeast(Lifecycle.State.STARTED)) {
+            attach(entry);
+        }
+    }
+
+    private void attach(Entry entry) {
+        if (entry.registration != null) return;
+        entry.registration = entry.queryFactory.create(entry.cursor).addSnapshotListener((value, error) -> {
+            if (value != null) {
+                for (DocumentSnapshot document : value.getDocuments()) {
+                    // Null while the server has not assigned it, for writes still pending
+                    Date sentAt = document.getDate(Constants.KEY_SENT_AT);
+                    if (sentAt != null && (entry.cursor == null || sentAt.after(entry.cursor))) {
+                        entry.cursor = sentAt;
+                    }
+                }
+            }
+            entry.listener.onEvent(value, error);
+        });
+    }
+
+    private void detach(Entry entry) {
+        if (entry.registration != null) {
+            entry.registration.remove();
+            entry.registration = null;
+        }
+    }
+
+    @Override
+    public void onStart(@NonNull LifecycleOwner owner) {
+        for (Entry entry : entries.values()) {
+            attach(entry);
+        }
+    }
+
+    @Override
+    public void onStop(@NonNull LifecycleOwner owner) {
+        for (Entry entry : entries.values()) {
+            detach(entry);
+        }
+        Log.d(TAG, "Detached " + entries.size() + " listeners");
+    }
+
+    @Override
+    public void onDestroy(@NonNull LifecycleOwner owner) {
+        for (Entry entry : entries.values()) {
+            detach(entry);
+        }
+        entries.clear();
+        owner.getLifecycle().removeObserver(this);
+    }
+}
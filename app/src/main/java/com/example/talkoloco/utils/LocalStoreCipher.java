@@ -0,0 +1,229 @@
+package com.example.talkoloco.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.util.Base64;
+import android.util.Log;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts data kept on this device, such as decrypted messages and Signal protocol records
+ * in the local database.
+ * Data is encrypted with AES-GCM under a random store key. The store key itself is only
+ * kept wrapped by a key that never leaves the Android Keystore, so it is unwrapped once
+ * per process and the per-message work stays in memory. If the keystore has lost or
+ * invalidated its key, both keys are created anew and data stored before cannot be read.
+ */
+public class LocalStoreCipher {
+    private static final String TAG = "LocalStoreCipher";
+
+    private static final String KEYSTORE_PROVIDER = "AndroidKeyStore";
+    private static final String DEVICE_KEY_ALIAS = "LocalStoreDeviceKey";
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int KEY_SIZE = 256;
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_LENGTH_BITS = 128;
+
+    private static LocalStoreCipher instance;
+
+    private final SecretKey storeKey;
+    private final SecureRandom secureRandom = new SecureRandom();
+    private final ThreadLocal<Cipher> cipher = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (Exception e) {
+            throw new RuntimeException("Cipher not available: " + TRANSFORMATION, e);
+        }
+    });
+
+    private LocalStoreCipher(Context context) {
+        storeKey = loadStoreKey(context);
+    }
+
+    /**
+     * Returns instance of LocalStoreCipher.
+     *
+     * @param context Application context
+     * @return LocalStoreCipher instance
+     * @throws RuntimeException if the keystore cannot provide a store key at all
+     */
+    public static synchronized LocalStoreCipher getInstance(Context context) {
+        if (instance == null) {
+            instance = new LocalStoreCipher(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Encrypts a string for storage on this device.
+     *
+     * @param plaintext the string to encrypt
+     * @return IV followed by the ciphertext
+     * @throws RuntimeException if encryption fails
+     */
+    public byte[] encrypt(String plaintext) {
+        return encryptBytes(plaintext.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Encrypts bytes for storage on this device.
+     *
+     * @param plaintext the bytes to encrypt
+     * @return IV followed by the ciphertext
+     * @throws RuntimeException if encryption fails
+     */
+    public byte[] encryptBytes(byte[] plaintext) {
+        try {
+            byte[] iv = new byte[IV_LENGTH];
+            secureRandom.nextBytes(iv);
+            Cipher encryptCipher = cipher.get();
+            encryptCipher.init(Cipher.ENCRYPT_MODE, storeKey, new GCMParameterSpec(TAG_LENGTH_BITS, iv));
+            byte[] ciphertext = encryptCipher.doFinal(plaintext);
+
+            byte[] combined = new byte[IV_LENGTH + ciphertext.length];
+            System.arraycopy(iv, 0, combined, 0, IV_LENGTH);
+            System.arraycopy(ciphertext, 0, combined, IV_LENGTH, ciphertext.length);
+            return combined;
+        } catch (Exception e) {
+            Log.e(TAG, "Error encrypting local data", e);
+            throw new RuntimeException("Failed to encrypt local data", e);
+        }
+    }
+
+    /**
+     * Decrypts a string encrypted by {@link #encrypt(String)}.
+     *
+     * @param combined IV followed by the ciphertext
+     * @return the decrypted string
+     * @throws RuntimeException if decryption fails
+     */
+    public String decrypt(byte[] combined) {
+        return new String(decryptBytes(combined), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decrypts bytes encrypted by {@link #encryptBytes(byte[])}.
+     *
+     * @param combined IV followed by the ciphertext
+     * @return the decrypted bytes
+     * @throws RuntimeException if decryption fails
+     */
+    public byte[] decryptBytes(byte[] combined) {
+        try {
+            Cipher decryptCipher = cipher.get();
+            decryptCipher.init(Cipher.DECRYPT_MODE, storeKey, new GCMParameterSpec(TAG_LENGTH_BITS, combined, 0, IV_LENGTH));
+            return decryptCipher.doFinal(combined, IV_LENGTH, combined.length - IV_LENGTH);
+        } catch (Exception e) {
+            Log.e(TAG, "Error decrypting local data", e);
+            throw new RuntimeException("Failed to decrypt local data", e);
+        }
+    }
+
+    /**
+     * Unwraps the store key with the device key, generating and wrapping a new store key
+     * the first time, or when the stored one can no longer be unwrapped. The wrapped key
+     * lives in device preferences, which survive sign out.
+     *
+     * @param context Application context
+     * @return the store key
+     */
+    private SecretKey loadStoreKey(Context context) {
+        SharedPreferences devicePreferences = context.getSharedPreferences(
+                Constants.KEY_DEVICE_PREFERENCE_NAME, Context.MODE_PRIVATE);
+        String wrappedKey = devicePreferences.getString(Constants.KEY_WRAPPED_LOCAL_STORE_KEY, null);
+        if (wrappedKey != null) {
+            try {
+                byte[] combined = Base64.decode(wrappedKey, Base64.NO_WRAP);
+                Cipher unwrapCipher = Cipher.getInstance(TRANSFORMATION);
+                unwrapCipher.init(Cipher.DECRYPT_MODE, getDeviceKey(),
+                        new GCMParameterSpec(TAG_LENGTH_BITS, combined, 0, IV_LENGTH));
+                byte[] keyBytes = unwrapCipher.doFinal(combined, IV_LENGTH, combined.length - IV_LENGTH);
+                return new SecretKeySpec(keyBytes, KeyProperties.KEY_ALGORITHM_AES);
+            } catch (Exception e) {
+                // Such as after the lock screen was removed or the app data was restored elsewhere
+                Log.e(TAG, "Local store key cannot be unwrapped, data stored before is lost", e);
+                deleteDeviceKey();
+            }
+        }
+        return createStoreKey(devicePreferences);
+    }
+
+    /**
+     * Generates a new store key and keeps it wrapped with the device key.
+     *
+     * @param devicePreferences the device preferences holding the wrapped key
+     * @return the store key
+     */
+    private SecretKey createStoreKey(SharedPreferences devicePreferences) {
+        try {
+            SecretKey deviceKey = getDeviceKey();
+            Cipher wrapCipher = Cipher.getInstance(TRANSFORMATION);
+
+            Log.d(TAG, "Generating new local store key");
+            byte[] keyBytes = new byte[KEY_SIZE / 8];
+            secureRandom.nextBytes(keyBytes);
+
+            // The keystore picks the IV for keys it holds
+            wrapCipher.init(Cipher.ENCRYPT_MODE, deviceKey);
+            byte[] iv = wrapCipher.getIV();
+            byte[] wrapped = wrapCipher.doFinal(keyBytes);
+            byte[] combined = new byte[iv.length + wrapped.length];
+            System.arraycopy(iv, 0, combined, 0, iv.length);
+            System.arraycopy(wrapped, 0, combined, iv.length, wrapped.length);
+            devicePreferences.edit()
+                    .putString(Constants.KEY_WRAPPED_LOCAL_STORE_KEY, Base64.encodeToString(combined, Base64.NO_WRAP))
+                    .commit();
+            return new SecretKeySpec(keyBytes, KeyProperties.KEY_ALGORITHM_AES);
+        } catch (Exception e) {
+            Log.e(TAG, "Error creating local store key", e);
+            throw new RuntimeException("Failed to create local store key", e);
+        }
+    }
+
+    /**
+     * Removes the device key from the Android Keystore, so a new one is generated.
+     */
+    private static void deleteDeviceKey() {
+        try {
+            KeyStore keyStore = KeyStore.getInstance(KEYSTORE_PROVIDER);
+            keyStore.load(null);
+            keyStore.deleteEntry(DEVICE_KEY_ALIAS);
+        } catch (Exception e) {
+            Log.e(TAG, "Error deleting device key", e);
+        }
+    }
+
+    /**
+     * Returns the device key from the Android Keystore, generating it if needed.
+     *
+     * @return the device key
+     * @throws Exception if the keystore is unavailable
+     */
+    private static SecretKey getDeviceKey() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance(KEYSTORE_PROVIDER);
+        keyStore.load(null);
+        if (keyStore.containsAlias(DEVICE_KEY_ALIAS)) {
+            return (SecretKey) keyStore.getKey(DEVICE_KEY_ALIAS, null);
+        }
+
+        KeyGenerator keyGenerator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEYSTORE_PROVIDER);
+        keyGenerator.init(new KeyGenParameterSpec.Builder(DEVICE_KEY_ALIAS,
+                KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .setKeySize(KEY_SIZE)
+                .build());
+        return keyGenerator.generateKey();
+    }
+}
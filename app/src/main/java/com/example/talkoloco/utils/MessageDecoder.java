@@ -0,0 +1,174 @@
+package com.example.talkoloco.utils;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.example.talkoloco.database.MessageStore;
+import com.example.talkoloco.models.ChatMessages;
+import com.google.firebase.firestore.Blob;
+import com.google.firebase.firestore.DocumentSnapshot;
+
+import java.util.Collections;
+import java.util.function.Supplier;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Turns message documents into displayable messages, decrypting their text with the key
+ * material of this device. Shared by the chat screen and background sync, so a message
+ * decrypted by either ends up the same in the local store.
+ */
+public class MessageDecoder {
+    private static final String TAG = "MessageDecoder";
+    public static final String DECRYPTION_FAILED_MESSAGE = "[Error: Could not decrypt message]";
+
+    private static MessageDecoder instance;
+    private final KeyManager keyManager;
+    private final SignalSessionManager signalSessionManager;
+    private final MessageStore messageStore;
+    // Held while a ratchet message is looked up, decrypted and stored
+    private final Object ratchetLock = new Object();
+
+    private MessageDecoder(Context context) {
+        keyManager = new KeyManager(context);
+        signalSessionManager = SignalSessionManager.getInstance(context);
+        messageStore = MessageStore.getInstance(context);
+    }
+
+    /**
+     * Decrypts and stores a ratchet message unless it is stored already. A ratchet message
+     * can only be decrypted once, and the chat screen and background sync may both get to
+     * it, so the lookup, decryption and storing happen under one lock; whoever comes second
+     * gets the stored copy. Touches the disk, so it must be called from a background thread.
+     *
+     * @param conversationId the conversation the message belongs to
+     * @param document       the ratchet message document
+     * @param decode         decodes the document, such as with {@link #decode}
+     * @return the stored message, or the newly decoded one
+     */
+    public ChatMessages decodeOnce(String conversationId, DocumentSnapshot document,
+                                   Supplier<ChatMessages> decode) {
+        synchronized (ratchetLock) {
+            ChatMessages stored = messageStore.getMessagesById(
+                    Collections.singletonList(document.getId())).get(document.getId());
+            if (stored != null) {
+                return stored;
+            }
+            ChatMessages message = decode.get();
+            if (!DECRYPTION_FAILED_MESSAGE.equals(message.message)) {
+                messageStore.saveMessages(conversationId, Collections.singletonList(message));
+            }
+            return message;
+        }
+    }
+
+    /**
+     * Returns instance of MessageDecoder.
+     *
+     * @param context Application context
+     * @return MessageDecoder instance
+     */
+    public static synchronized MessageDecoder getInstance(Context context) {
+        if (instance == null) {
+            instance = new MessageDecoder(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Builds a message from a message document.
+     *
+     * For ratchet messages:
+     * - Decrypts received messages with the session shared with the sender
+     * - Own messages cannot be decrypted; their plaintext is kept when sending
+     * For other text messages:
+     * - Opens the message envelope, or the older separate fields, using the
+     *   appropriate AES key (sender's or receiver's)
+     * - Handles decryption failures gracefully
+     * For images:
+     * - Processes them without encryption
+     *
+     * Ratchet messages of one sender must be decoded in the order they were sent.
+     *
+     * @param document      the Firestore message document
+     * @param currentUserId the ID of the signed in user
+     * @return the decoded message, with {@link #DECRYPTION_FAILED_MESSAGE} as its text on failure
+     */
+    public ChatMessages decode(DocumentSnapshot document, String currentUserId) {
+        ChatMessages chatMessage = new ChatMessages();
+        chatMessage.messageId = document.getId();
+        chatMessage.senderId = document.getString(Constants.KEY_SENDER_ID);
+        chatMessage.receiverID = document.getString(Constants.KEY_RECEIVER_ID);
+
+        String messageType = document.getString(Constants.KEY_MESSAGE_TYPE);
+        chatMessage.messageType = messageType;
+        boolean isOwnMessage = currentUserId != null && currentUserId.equals(chatMessage.senderId);
+
+        if (messageType != null && messageType.equals(Constants.MESSAGE_TYPE_IMAGE)) {
+            // Process image messages without encryption; older ones carry the encoded image
+            chatMessage.mediaHash = document.getString(Constants.KEY_MEDIA_HASH);
+            Blob thumbnail = document.getBlob(Constants.KEY_THUMBNAIL);
+            chatMessage.thumbnail = thumbnail != null ? thumbnail.toBytes() : null;
+            chatMessage.message = document.getString(Constants.KEY_MESSAGE);
+        } else if (document.contains(Constants.KEY_SIGNAL_MESSAGE)) {
+            chatMessage.isRatchet = true;
+            chatMessage.message = isOwnMessage
+                    ? DECRYPTION_FAILED_MESSAGE
+                    : decodeSignalMessage(document, chatMessage.senderId);
+        } else if (document.contains(Constants.KEY_MESSAGE_ENVELOPE)) {
+            try {
+                Blob envelope = document.getBlob(Constants.KEY_MESSAGE_ENVELOPE);
+                chatMessage.message = keyManager.decryptEnvelope(envelope.toBytes(), isOwnMessage);
+            } catch (Exception e) {
+                Log.e(TAG, "Error decrypting message", e);
+                chatMessage.message = DECRYPTION_FAILED_MESSAGE;
+            }
+        } else {
+            // Handle text message - with encryption
+            String encryptedMessage = document.getString(Constants.KEY_ENCRYPTED_MESSAGE);
+            try {
+                // Determine which encryption key to use based on message direction
+                String encryptedAESKey;
+                if (isOwnMessage) {
+                    // We're the sender, use sender's key
+                    encryptedAESKey = document.getString(Constants.KEY_ENCRYPTED_AES_KEY_SENDER);
+                } else {
+                    // We're the receiver, use recipient's key
+                    encryptedAESKey = document.getString(Constants.KEY_ENCRYPTED_AES_KEY_RECIPIENT);
+                }
+
+                // Decrypt the message using the appropriate key
+                SecretKey aesKey = keyManager.decryptAESKey(encryptedAESKey);
+                chatMessage.message = keyManager.decryptMessage(encryptedMessage, aesKey);
+            } catch (Exception e) {
+                Log.e(TAG, "Error decrypting message", e);
+                chatMessage.message = DECRYPTION_FAILED_MESSAGE;
+            }
+        }
+
+        chatMessage.dateObject = document.getDate(Constants.KEY_TIMESTAMP);
+        chatMessage.sentAt = document.getDate(Constants.KEY_SENT_AT);
+        return chatMessage;
+    }
+
+    /**
+     * Decrypts a message encrypted with a Double Ratchet session. A ratchet message can only
+     * be decrypted once, by its receiver, so the result must be kept in the local store.
+     *
+     * @param document the Firestore message document
+     * @param senderId the ID of the sending user
+     * @return the message text
+     */
+    private String decodeSignalMessage(DocumentSnapshot document, String senderId) {
+        try {
+            Long messageType = document.getLong(Constants.KEY_SIGNAL_MESSAGE_TYPE);
+            return signalSessionManager.decrypt(senderId,
+                    document.getString(Constants.KEY_SIGNAL_MESSAGE),
+                    messageType != null ? messageType : 0,
+                    document.getDate(Constants.KEY_TIMESTAMP));
+        } catch (Exception e) {
+            Log.e(TAG, "Error decrypting ratchet message", e);
+            return DECRYPTION_FAILED_MESSAGE;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.talkoloco.utils;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Binary layout of an encrypted text message, stored in a single Firestore Blob field.
+ *
+ * Version 1 layout:
+ * - version (1 byte)
+ * - IV length (1 byte) and IV
+ * - recipient's wrapped key length (2 bytes) and wrapped key
+ * - sender's wrapped key length (2 bytes) and wrapped key
+ * - AES-GCM ciphertext with its tag, up to the end
+ *
+ * Everything before the ciphertext is the header, which is authenticated along with it.
+ */
+public class MessageEnvelope {
+    public static final int VERSION_1 = 1;
+
+    final byte[] iv;
+    final byte[] recipientKey;
+    final byte[] senderKey;
+    // The ciphertext is read in place from the encoded bytes, after the header
+    final byte[] encoded;
+    final int headerLength;
+
+    private MessageEnvelope(byte[] iv, byte[] recipientKey, byte[] senderKey, byte[] encoded, int headerLength) {
+        this.iv = iv;
+        this.recipientKey = recipientKey;
+        this.senderKey = senderKey;
+        this.encoded = encoded;
+        this.headerLength = headerLength;
+    }
+
+    /**
+     * Writes the header of a version 1 envelope. The ciphertext is appended separately
+     * once it has been computed over the header.
+     *
+     * @param iv           the AES-GCM IV
+     * @param recipientKey the message key wrapped for the recipient
+     * @param senderKey    the message key wrapped for the sender
+     * @return the header bytes
+     */
+    public static byte[] header(byte[] iv, byte[] recipientKey, byte[] senderKey) {
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 1 + iv.length + 2 + recipientKey.length
+                + 2 + senderKey.length);
+        buffer.put((byte) VERSION_1);
+        buffer.put((byte) iv.length).put(iv);
+        buffer.putShort((short) recipientKey.length).put(recipientKey);
+        buffer.putShort((short) senderKey.length).put(senderKey);
+        return buffer.array();
+    }
+
+    /**
+     * Parses an envelope.
+     *
+     * @param encoded the envelope bytes
+     * @return the parsed envelope
+     * @throws IllegalArgumentException if the bytes are not a supported envelope
+     */
+    public static MessageEnvelope parse(byte[] encoded) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(encoded);
+            int version = buffer.get() & 0xFF;
+            if (version != VERSION_1) {
+                throw new IllegalArgumentException("Unsupported envelope version " + version);
+            }
+            byte[] iv = new byte[buffer.get() & 0xFF];
+            buffer.get(iv);
+            byte[] recipientKey = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(recipientKey);
+            byte[] senderKey = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(senderKey);
+            return new MessageEnvelope(iv, recipientKey, senderKey, encoded, buffer.position());
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated envelope", e);
+        }
+    }
+}
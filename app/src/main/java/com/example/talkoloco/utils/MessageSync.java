@@ -0,0 +1,129 @@
+package com.example.talkoloco.utils;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.example.talkoloco.controllers.ConversationController;
+import com.example.talkoloco.database.MessageStore;
+import com.example.talkoloco.models.ChatMessages;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.QuerySnapshot;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Brings the local store of a conversation up to date without a snapshot listener.
+ * Woken by a push, it fetches only the messages the server received since the newest synced
+ * one, decrypts them and stores them, so the chat opens without decrypting anything.
+ * The cursor is the server-assigned sentAt, since client clocks can be off and this device's
+ * own unsent messages are stored ahead of the server.
+ * A conversation that is open on screen is left to its own listener. Since a ratchet
+ * message can only be decrypted once, ratchet messages are decrypted through
+ * {@link MessageDecoder#decodeOnce}, so a chat opened during a sync never decrypts them again.
+ */
+public class MessageSync {
+    private static final String TAG = "MessageSync";
+    // Newest messages fetched per sync; older gaps are filled in by paging in the chat
+    private static final int SYNC_PAGE_SIZE = 30;
+    private static final long FETCH_TIMEOUT_SECONDS = 10;
+
+    private static MessageSync instance;
+    private final MessageStore messageStore;
+    private final MessageDecoder messageDecoder;
+    private final PreferenceManager preferenceManager;
+    private volatile String openConversationId;
+
+    private MessageSync(Context context) {
+        messageStore = MessageStore.getInstance(context);
+        messageDecoder = MessageDecoder.getInstance(context);
+        preferenceManager = new PreferenceManager(context);
+    }
+
+    /**
+     * Returns instance of MessageSync.
+     *
+     * @param context Application context
+     * @return MessageSync instance
+     */
+    public static synchronized MessageSync getInstance(Context context) {
+        if (instance == null) {
+            instance = new MessageSync(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Records the conversation shown on screen, which is not synced in the background.
+     *
+     * @param conversationId the open conversation, or null when none is open
+     */
+    public void setOpenConversation(String conversationId) {
+        openConversationId = conversationId;
+    }
+
+    /**
+     * Fetches, decrypts and stores the new messages of a conversation. Blocks until done,
+     * so it must be called from a background thread.
+     *
+     * @param conversationId the conversation to sync
+     */
+    public void syncConversation(String conversationId) {
+        String currentUserId = preferenceManager.getString(Constants.KEY_USER_ID);
+        if (currentUserId == null || conversationId == null
+                || conversationId.equals(openConversationId)) {
+            return;
+        }
+
+        Query query = ConversationController.getInstance().getMessages(conversationId)
+                .orderBy(Constants.KEY_SENT_AT, Query.Direction.ASCENDING);
+        Long newestSentAt = messageStore.getNewestSentAt(conversationId);
+        if (newestSentAt != null) {
+            // Inclusive, since several messages can share a server time; stored ones are skipped
+            query = query.whereGreaterThanOrEqualTo(Constants.KEY_SENT_AT, new Date(newestSentAt));
+        }
+
+        List<DocumentSnapshot> documents;
+        try {
+            QuerySnapshot snapshot = Tasks.await(query.limitToLast(SYNC_PAGE_SIZE).get(),
+                    FETCH_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            documents = snapshot.getDocuments();
+        } catch (Exception e) {
+            Log.e(TAG, "Error fetching new messages of " + conversationId, e);
+            return;
+        }
+
+        List<String> documentIds = new ArrayList<>();
+        for (DocumentSnapshot document : documents) {
+            documentIds.add(document.getId());
+        }
+        Map<String, ChatMessages> storedMessages = messageStore.getMessagesById(documentIds);
+
+        // Decrypted oldest first, as the ratchet requires
+        List<ChatMessages> decryptedMessages = new ArrayList<>();
+        int syncedCount = 0;
+        for (DocumentSnapshot document : documents) {
+            if (conversationId.equals(openConversationId)) break;
+            if (storedMessages.containsKey(document.getId())) continue;
+            if (document.contains(Constants.KEY_SIGNAL_MESSAGE)) {
+                // Stored right away, the chat may have opened and be about to get to it
+                messageDecoder.decodeOnce(conversationId, document,
+                        () -> messageDecoder.decode(document, currentUserId));
+                syncedCount++;
+                continue;
+            }
+            ChatMessages message = messageDecoder.decode(document, currentUserId);
+            if (!MessageDecoder.DECRYPTION_FAILED_MESSAGE.equals(message.message)) {
+                decryptedMessages.add(message);
+            }
+        }
+        messageStore.saveMessages(conversationId, decryptedMessages);
+        syncedCount += decryptedMessages.size();
+        Log.d(TAG, "Synced " + syncedCount + " messages of " + conversationId);
+    }
+}
@@ -76,6 +76,27 @@ public class PhoneNumberFormatter {
         return stripped.length() == 11 && stripped.startsWith("+1");
     }
 
+    /**
+     * normalizes a phone number from any source, such as the address book, to the form
+     * registered numbers are hashed in: "+1XXXXXXXXXX".
+     *
+     * @param phoneNumber the phone number in any format
+     * @return the normalized phone number, or null if it is not a valid number
+     */
+    public static String normalize(String phoneNumber) {
+        if (phoneNumber == null) {
+            return null;
+        }
+        String digits = phoneNumber.replaceAll("[^\\d]", "");
+        if (digits.length() == 10) {
+            return "+1" + digits;
+        }
+        if (digits.length() == 11 && digits.startsWith("1")) {
+            return "+" + digits;
+        }
+        return null;
+    }
+
     /**
      * ensures that the given phone number has the country code prefix.
      *
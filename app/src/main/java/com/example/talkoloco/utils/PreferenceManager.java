@@ -62,6 +62,28 @@ public class PreferenceManager {
         return sharedPrefrences.getString(key, null);
     }
 
+    /**
+     * Stores a long value in the shared preferences.
+     *
+     * @param key   The key for the preference.
+     * @param value The long value to store.
+     */
+    public void putLong(String key, long value) {
+        SharedPreferences.Editor editor = sharedPrefrences.edit();
+        editor.putLong(key, value);
+        editor.apply();
+    }
+
+    /**
+     * Retrieves a long value from the shared preferences.
+     *
+     * @param key The key for the preference.
+     * @return The long value associated with the key, or 0 if not found.
+     */
+    public long getLong(String key) {
+        return sharedPrefrences.getLong(key, 0);
+    }
+
     /**
      * Clears all values in the shared preferences.
      */
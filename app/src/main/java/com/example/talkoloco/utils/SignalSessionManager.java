@@ -0,0 +1,601 @@
+package com.example.talkoloco.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+import android.util.Log;
+
+import com.example.talkoloco.R;
+import com.example.talkoloco.database.MessageStore;
+import com.example.talkoloco.database.SignalStore;
+import com.example.talkoloco.listeners.IdentityListener;
+import com.example.talkoloco.models.ChatMessages;
+import com.example.talkoloco.models.Conversation;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.AggregateSource;
+import com.google.firebase.firestore.CollectionReference;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.QuerySnapshot;
+import com.google.firebase.firestore.WriteBatch;
+
+import org.signal.libsignal.protocol.IdentityKey;
+import org.signal.libsignal.protocol.IdentityKeyPair;
+import org.signal.libsignal.protocol.SessionBuilder;
+import org.signal.libsignal.protocol.SessionCipher;
+import org.signal.libsignal.protocol.SignalProtocolAddress;
+import org.signal.libsignal.protocol.ecc.Curve;
+import org.signal.libsignal.protocol.ecc.ECKeyPair;
+import org.signal.libsignal.protocol.ecc.ECPublicKey;
+import org.signal.libsignal.protocol.kem.KEMKeyPair;
+import org.signal.libsignal.protocol.kem.KEMKeyType;
+import org.signal.libsignal.protocol.kem.KEMPublicKey;
+import org.signal.libsignal.protocol.message.CiphertextMessage;
+import org.signal.libsignal.protocol.message.PreKeySignalMessage;
+import org.signal.libsignal.protocol.message.SignalMessage;
+import org.signal.libsignal.protocol.state.KyberPreKeyRecord;
+import org.signal.libsignal.protocol.state.PreKeyBundle;
+import org.signal.libsignal.protocol.state.PreKeyRecord;
+import org.signal.libsignal.protocol.state.SignedPreKeyRecord;
+import org.signal.libsignal.protocol.util.KeyHelper;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Manages Signal protocol sessions between users.
+ * A session is set up once per contact with X3DH from the contact's published key bundle;
+ * after that every message is encrypted with the Double Ratchet, which only needs
+ * symmetric operations, instead of RSA key wrapping.
+ * All key state lives on the device: records in the local database, and the registration ID,
+ * pre key counters and publish flag in device preferences, which survive sign out. The state
+ * belongs to one account and is dropped when a different account signs in.
+ * Each published bundle gets new signed and Kyber pre key IDs, and the keys it replaces are
+ * kept for a grace period, so a peer holding an older bundle can still start a session.
+ * When a contact's identity changes, a notice is stored in the conversation before the new
+ * identity is trusted, so the change is never silent.
+ */
+public class SignalSessionManager {
+    private static final String TAG = "SignalSessionManager";
+
+    // Each user has a single device
+    private static final int DEVICE_ID = 1;
+    // ID of the signed and Kyber pre keys published before their IDs were counted
+    private static final int FIRST_SIGNED_PRE_KEY_ID = 1;
+    // Replaced signed and Kyber pre keys are kept until the new ones are this old
+    private static final long REPLACED_PRE_KEY_GRACE_MS = TimeUnit.DAYS.toMillis(30);
+    // One-time pre keys published at once, and the count below which more are published
+    private static final int PRE_KEY_BATCH_SIZE = 50;
+    private static final int MIN_PUBLISHED_PRE_KEYS = 10;
+    private static final long BUNDLE_TIMEOUT_SECONDS = 15;
+
+    private static SignalSessionManager instance;
+
+    private final Context context;
+    private final PreferenceManager preferenceManager;
+    private final SharedPreferences devicePreferences;
+    private final FirebaseFirestore db;
+    private SignalStore store;
+    // Peers whose session was checked against their published identity in this process
+    private final Set<String> verifiedPeers = new HashSet<>();
+    // One registration at a time, so overlapping calls do not publish two bundles
+    private final SingleFlight<String, Void> registrations = new SingleFlight<>();
+    private final Set<IdentityListener> identityListeners = new LinkedHashSet<>();
+
+    private SignalSessionManager(Context context) {
+        this.context = context;
+        this.preferenceManager = new PreferenceManager(context);
+        this.devicePreferences = context.getSharedPreferences(
+                Constants.KEY_DEVICE_PREFERENCE_NAME, Context.MODE_PRIVATE);
+        this.db = FirebaseFirestore.getInstance();
+    }
+
+    /**
+     * Returns instance of SignalSessionManager.
+     *
+     * @param context Application context
+     * @return SignalSessionManager instance
+     */
+    public static synchronized SignalSessionManager getInstance(Context context) {
+        if (instance == null) {
+            instance = new SignalSessionManager(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    public void addIdentityListener(IdentityListener listener) {
+        synchronized (identityListeners) {
+            identityListeners.add(listener);
+        }
+    }
+
+    public void removeIdentityListener(IdentityListener listener) {
+        synchronized (identityListeners) {
+            identityListeners.remove(listener);
+        }
+    }
+
+    /**
+     * Makes sure this device has a Signal identity and that its key bundle is published,
+     * topping up one-time pre keys when other users have used most of them.
+     * Runs in the background. A call made while a registration is in flight joins it.
+     *
+     * @param userId the ID of the signed in user
+     */
+    public void ensureRegistered(String userId) {
+        registrations.run(userId, () -> Tasks.call(AppExecutors.getInstance().diskIO(), () -> {
+                    // Resolves an account change first, which clears the publish flag
+                    getStore();
+                    if (!devicePreferences.getBoolean(Constants.KEY_SIGNAL_BUNDLE_PUBLISHED, false)) {
+                        return publishBundle(userId);
+                    }
+                    removeReplacedPreKeys();
+                    return topUpPreKeys(userId);
+                }).continueWithTask(task -> task.getResult()))
+                .addOnFailureListener(e -> Log.e(TAG, "Error registering signal keys", e));
+    }
+
+    /**
+     * Makes sure there is a session with a peer that matches the peer's published identity,
+     * building one from the peer's published key bundle if needed. An existing session is
+     * checked against the bundle once per process, and rebuilt if the peer has a new
+     * identity, such as after a reinstall. Fails if the peer has not published a bundle yet,
+     * or while a session cannot be built, so callers fall back to RSA.
+     *
+     * @param peerId the ID of the other user
+     * @return task completing once a usable session exists
+     */
+    public Task<Void> prepareSession(String peerId) {
+        SignalProtocolAddress address = addressOf(peerId);
+        synchronized (this) {
+            if (verifiedPeers.contains(peerId) && getStore().containsSession(address)) {
+                return Tasks.forResult(null);
+            }
+        }
+
+        return bundleOf(peerId).get()
+                .continueWithTask(bundleTask -> {
+                    synchronized (this) {
+                        if (!bundleTask.isSuccessful() && getStore().containsSession(address)) {
+                            // Offline, keep using the session until it can be checked
+                            return Tasks.forResult(null);
+                        }
+                    }
+                    DocumentSnapshot bundle = bundleTask.getResult();
+                    if (bundle == null || !bundle.exists()) {
+                        throw new IllegalStateException("No signal key bundle published for " + peerId);
+                    }
+                    IdentityKey publishedIdentity = identityOf(bundle);
+                    synchronized (this) {
+                        if (getStore().containsSession(address)
+                                && publishedIdentity.equals(getStore().getIdentity(address))) {
+                            verifiedPeers.add(peerId);
+                            return Tasks.forResult(null);
+                        }
+                    }
+                    return claimPreKey(peerId).continueWith(AppExecutors.getInstance().diskIO(), preKeyTask -> {
+                        buildSession(address, bundle, preKeyTask.getResult());
+                        synchronized (this) {
+                            verifiedPeers.add(peerId);
+                        }
+                        return null;
+                    });
+                });
+    }
+
+    /**
+     * Encrypts a text message for a peer with the current ratchet key.
+     *
+     * @param peerId    the ID of the receiving user
+     * @param plaintext the message text
+     * @return message document fields holding the encrypted message
+     * @throws Exception if there is no session or encryption fails
+     */
+    public synchronized Map<String, Object> encrypt(String peerId, String plaintext) throws Exception {
+        CiphertextMessage ciphertext = new SessionCipher(getStore(), addressOf(peerId))
+                .encrypt(plaintext.getBytes(StandardCharsets.UTF_8));
+
+        Map<String, Object> fields = new HashMap<>();
+        fields.put(Constants.KEY_SIGNAL_MESSAGE, Base64.encodeToString(ciphertext.serialize(), Base64.NO_WRAP));
+        fields.put(Constants.KEY_SIGNAL_MESSAGE_TYPE, ciphertext.getType());
+        return fields;
+    }
+
+    /**
+     * Decrypts a message received from a peer. Each message can only be decrypted once,
+     * so callers must keep the plaintext.
+     *
+     * @param peerId        the ID of the sending user
+     * @param signalMessage the Base64 encoded Signal message
+     * @param messageType   the Signal message type
+     * @param sentAt        the time the message was sent, or null if unknown
+     * @return the message text
+     * @throws Exception if the message cannot be decrypted
+     */
+    public String decrypt(String peerId, String signalMessage, long messageType, Date sentAt) throws Exception {
+        SignalProtocolAddress address = addressOf(peerId);
+        byte[] serialized = Base64.decode(signalMessage, Base64.NO_WRAP);
+
+        byte[] plaintext;
+        if (messageType == CiphertextMessage.PREKEY_TYPE) {
+            // First message of a session started by the peer
+            PreKeySignalMessage preKeyMessage = new PreKeySignalMessage(serialized);
+            IdentityKey storedIdentity;
+            synchronized (this) {
+                storedIdentity = getStore().getIdentity(address);
+            }
+            if (storedIdentity != null && !storedIdentity.equals(preKeyMessage.getIdentityKey())) {
+                acceptNewIdentity(peerId, preKeyMessage.getIdentityKey(), sentAt);
+            }
+            synchronized (this) {
+                plaintext = new SessionCipher(getStore(), address).decrypt(preKeyMessage);
+                getStore().rememberIdentity(address, preKeyMessage.getIdentityKey());
+            }
+        } else {
+            synchronized (this) {
+                plaintext = new SessionCipher(getStore(), address).decrypt(new SignalMessage(serialized));
+            }
+        }
+        return new String(plaintext, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Trusts a peer's new identity, which a peer gets when it reinstalls, if the peer has
+     * published it in its key bundle, after noting the change in the conversation. Blocks on
+     * the bundle, so it must not run on the main thread. It runs outside the lock, so other
+     * sessions are not held up meanwhile.
+     *
+     * @param peerId      the ID of the other user
+     * @param newIdentity the identity the peer's message was sent with
+     * @param sentAt      the time the message was sent, or null if unknown
+     * @throws Exception if the bundle cannot be read or does not hold the new identity
+     */
+    private void acceptNewIdentity(String peerId, IdentityKey newIdentity, Date sentAt) throws Exception {
+        DocumentSnapshot bundle = Tasks.await(bundleOf(peerId).get(), BUNDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        if (!bundle.exists() || !newIdentity.equals(identityOf(bundle))) {
+            throw new IllegalStateException("New identity of " + peerId + " is not the published one");
+        }
+        noteIdentityChange(peerId, sentAt);
+        synchronized (this) {
+            Log.d(TAG, "Identity of " + peerId + " changed, trusting the published one");
+            getStore().rememberIdentity(addressOf(peerId), newIdentity);
+            verifiedPeers.remove(peerId);
+        }
+    }
+
+    /**
+     * Stores a notice in the conversation with a peer that the peer's identity changed,
+     * just before the given time so it is shown ahead of the first message under the new
+     * identity, and hands it to the identity listeners.
+     *
+     * @param peerId the ID of the other user
+     * @param before the time of the first message under the new identity, or null for now
+     */
+    private void noteIdentityChange(String peerId, Date before) {
+        String userId = preferenceManager.getString(Constants.KEY_USER_ID);
+        if (userId == null) return;
+
+        ChatMessages notice = new ChatMessages();
+        long time = (before != null ? before.getTime() : System.currentTimeMillis()) - 1;
+        notice.messageId = "identity_" + peerId + "_" + time;
+        notice.messageType = Constants.MESSAGE_TYPE_IDENTITY_CHANGED;
+        notice.senderId = peerId;
+        notice.receiverID = userId;
+        notice.message = context.getString(R.string.identity_changed);
+        notice.dateObject = new Date(time);
+        // Never evicted, since it cannot be fetched again
+        notice.isRatchet = true;
+        MessageStore.getInstance(context).saveMessages(Conversation.idFor(userId, peerId),
+                Collections.singletonList(notice));
+
+        AppExecutors.getInstance().mainThread().execute(() -> {
+            synchronized (identityListeners) {
+                for (IdentityListener listener : identityListeners) {
+                    listener.onIdentityChanged(notice);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the protocol store of the signed in account, creating the local identity on
+     * first use. If a different account signed in since the store was made, the old
+     * account's keys and sessions are dropped first.
+     *
+     * @return the protocol store
+     */
+    private synchronized SignalStore getStore() {
+        String userId = preferenceManager.getString(Constants.KEY_USER_ID);
+        String ownerId = devicePreferences.getString(Constants.KEY_SIGNAL_OWNER_ID, null);
+        if (store != null && (userId == null || userId.equals(ownerId))) {
+            return store;
+        }
+
+        moveLegacyState(userId);
+        ownerId = devicePreferences.getString(Constants.KEY_SIGNAL_OWNER_ID, null);
+        if (userId != null && ownerId != null && !userId.equals(ownerId)) {
+            Log.d(TAG, "Signed in account changed, dropping signal state");
+            SignalStore.deleteAll(context);
+            verifiedPeers.clear();
+            devicePreferences.edit()
+                    .remove(Constants.KEY_SIGNAL_REGISTRATION_ID)
+                    .remove(Constants.KEY_SIGNAL_NEXT_PRE_KEY_ID)
+                    .remove(Constants.KEY_SIGNAL_SIGNED_PRE_KEY_ID)
+                    .remove(Constants.KEY_SIGNAL_BUNDLE_PUBLISHED)
+                    .apply();
+        }
+        if (userId != null) {
+            devicePreferences.edit().putString(Constants.KEY_SIGNAL_OWNER_ID, userId).apply();
+        }
+
+        IdentityKeyPair identityKeyPair = SignalStore.loadLocalIdentity(context);
+        int registrationId = (int) devicePreferences.getLong(Constants.KEY_SIGNAL_REGISTRATION_ID, 0);
+        if (identityKeyPair == null || registrationId == 0) {
+            Log.d(TAG, "Generating new signal identity");
+            identityKeyPair = IdentityKeyPair.generate();
+            registrationId = KeyHelper.generateRegistrationId(false);
+            SignalStore.saveLocalIdentity(context, identityKeyPair);
+            devicePreferences.edit()
+                    .putLong(Constants.KEY_SIGNAL_REGISTRATION_ID, registrationId)
+                    .putBoolean(Constants.KEY_SIGNAL_BUNDLE_PUBLISHED, false)
+                    .apply();
+        }
+        store = new SignalStore(context, identityKeyPair, registrationId);
+        return store;
+    }
+
+    /**
+     * Moves the registration ID, pre key counter and publish flag out of the user
+     * preferences, where earlier versions kept them and sign out wiped them.
+     *
+     * @param userId the ID of the signed in user, who owns the moved state
+     */
+    private void moveLegacyState(String userId) {
+        long registrationId = preferenceManager.getLong(Constants.KEY_SIGNAL_REGISTRATION_ID);
+        if (registrationId == 0 || devicePreferences.contains(Constants.KEY_SIGNAL_REGISTRATION_ID)) {
+            return;
+        }
+        SharedPreferences.Editor editor = devicePreferences.edit()
+                .putLong(Constants.KEY_SIGNAL_REGISTRATION_ID, registrationId)
+                .putLong(Constants.KEY_SIGNAL_NEXT_PRE_KEY_ID,
+                        preferenceManager.getLong(Constants.KEY_SIGNAL_NEXT_PRE_KEY_ID))
+                .putBoolean(Constants.KEY_SIGNAL_BUNDLE_PUBLISHED,
+                        preferenceManager.getBoolean(Constants.KEY_SIGNAL_BUNDLE_PUBLISHED));
+        if (userId != null) {
+            editor.putString(Constants.KEY_SIGNAL_OWNER_ID, userId);
+        }
+        editor.apply();
+    }
+
+    /**
+     * Generates the signed and Kyber pre keys under new IDs, publishes the key bundle and a
+     * first batch of one-time pre keys, replacing any one-time pre keys published before.
+     * The signed and Kyber pre keys of earlier bundles are kept until they expire.
+     *
+     * @param userId the ID of the signed in user
+     * @return task completing once the bundle is published
+     * @throws Exception if key generation or reading the published pre keys fails
+     */
+    private Task<Void> publishBundle(String userId) throws Exception {
+        Map<String, Object> bundle = new HashMap<>();
+        synchronized (this) {
+            SignalStore signalStore = getStore();
+            IdentityKeyPair identityKeyPair = signalStore.getIdentityKeyPair();
+            long now = System.currentTimeMillis();
+            int signedPreKeyId = (int) devicePreferences.getLong(
+                    Constants.KEY_SIGNAL_SIGNED_PRE_KEY_ID, FIRST_SIGNED_PRE_KEY_ID) + 1;
+            // Counted before use, so a key is never generated twice under one ID
+            devicePreferences.edit().putLong(Constants.KEY_SIGNAL_SIGNED_PRE_KEY_ID, signedPreKeyId).apply();
+
+            ECKeyPair signedPreKeyPair = Curve.generateKeyPair();
+            byte[] signedPreKeySignature = Curve.calculateSignature(identityKeyPair.getPrivateKey(),
+                    signedPreKeyPair.getPublicKey().serialize());
+            signalStore.storeSignedPreKey(signedPreKeyId,
+                    new SignedPreKeyRecord(signedPreKeyId, now, signedPreKeyPair, signedPreKeySignature));
+
+            KEMKeyPair kyberPreKeyPair = KEMKeyPair.generate(KEMKeyType.KYBER_1024);
+            byte[] kyberPreKeySignature = Curve.calculateSignature(identityKeyPair.getPrivateKey(),
+                    kyberPreKeyPair.getPublicKey().serialize());
+            signalStore.storeKyberPreKey(signedPreKeyId,
+                    new KyberPreKeyRecord(signedPreKeyId, now, kyberPreKeyPair, kyberPreKeySignature));
+
+            bundle.put(Constants.KEY_REGISTRATION_ID, signalStore.getLocalRegistrationId());
+            bundle.put(Constants.KEY_IDENTITY_KEY, encode(identityKeyPair.getPublicKey().serialize()));
+            bundle.put(Constants.KEY_SIGNED_PRE_KEY_ID, signedPreKeyId);
+            bundle.put(Constants.KEY_SIGNED_PRE_KEY, encode(signedPreKeyPair.getPublicKey().serialize()));
+            bundle.put(Constants.KEY_SIGNED_PRE_KEY_SIGNATURE, encode(signedPreKeySignature));
+            bundle.put(Constants.KEY_KYBER_PRE_KEY_ID, signedPreKeyId);
+            bundle.put(Constants.KEY_KYBER_PRE_KEY, encode(kyberPreKeyPair.getPublicKey().serialize()));
+            bundle.put(Constants.KEY_KYBER_PRE_KEY_SIGNATURE, encode(kyberPreKeySignature));
+        }
+
+        // Pre keys left from an earlier identity could no longer be used to reach this one
+        QuerySnapshot stalePreKeys = Tasks.await(preKeysOf(userId).get(), BUNDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        WriteBatch batch = db.batch();
+        for (DocumentSnapshot stalePreKey : stalePreKeys.getDocuments()) {
+            batch.delete(stalePreKey.getReference());
+        }
+        batch.set(bundleOf(userId), bundle);
+        addPreKeys(userId, batch);
+        return batch.commit()
+                .addOnSuccessListener(aVoid -> {
+                    Log.d(TAG, "Signal key bundle published");
+                    devicePreferences.edit().putBoolean(Constants.KEY_SIGNAL_BUNDLE_PUBLISHED, true).apply();
+                });
+    }
+
+    /**
+     * Publishes more one-time pre keys when few of them are left.
+     *
+     * @param userId the ID of the signed in user
+     * @return task completing once enough pre keys are published
+     */
+    private Task<Void> topUpPreKeys(String userId) {
+        return preKeysOf(userId).count().get(AggregateSource.SERVER)
+                .onSuccessTask(AppExecutors.getInstance().diskIO(), snapshot -> {
+                    if (snapshot.getCount() >= MIN_PUBLISHED_PRE_KEYS) return Tasks.forResult(null);
+                    Log.d(TAG, "Publishing more one-time pre keys");
+                    WriteBatch batch = db.batch();
+                    addPreKeys(userId, batch);
+                    return batch.commit();
+                });
+    }
+
+    /**
+     * Deletes the signed and Kyber pre keys of earlier bundles once the published ones are
+     * older than the grace period, by which time peers have fetched the new bundle.
+     */
+    private synchronized void removeReplacedPreKeys() {
+        SignalStore signalStore = getStore();
+        int signedPreKeyId = (int) devicePreferences.getLong(
+                Constants.KEY_SIGNAL_SIGNED_PRE_KEY_ID, FIRST_SIGNED_PRE_KEY_ID);
+        long graceEnd;
+        try {
+            graceEnd = signalStore.loadSignedPreKey(signedPreKeyId).getTimestamp() + REPLACED_PRE_KEY_GRACE_MS;
+        } catch (Exception e) {
+            Log.w(TAG, "Published signed pre key " + signedPreKeyId + " is missing", e);
+            return;
+        }
+        if (System.currentTimeMillis() < graceEnd) return;
+
+        for (SignedPreKeyRecord record : signalStore.loadSignedPreKeys()) {
+            if (record.getId() != signedPreKeyId) {
+                signalStore.removeSignedPreKey(record.getId());
+            }
+        }
+        for (KyberPreKeyRecord record : signalStore.loadKyberPreKeys()) {
+            if (record.getId() != signedPreKeyId) {
+                signalStore.removeKyberPreKey(record.getId());
+            }
+        }
+    }
+
+    /**
+     * Generates a batch of one-time pre keys, stores their private parts and adds their
+     * public parts to a write batch.
+     *
+     * @param userId the ID of the signed in user
+     * @param batch  the batch to add the public pre keys to
+     */
+    private synchronized void addPreKeys(String userId, WriteBatch batch) {
+        SignalStore signalStore = getStore();
+        int firstId = (int) Math.max(1, devicePreferences.getLong(Constants.KEY_SIGNAL_NEXT_PRE_KEY_ID, 0));
+        for (int preKeyId = firstId; preKeyId < firstId + PRE_KEY_BATCH_SIZE; preKeyId++) {
+            ECKeyPair preKeyPair = Curve.generateKeyPair();
+            signalStore.storePreKey(preKeyId, new PreKeyRecord(preKeyId, preKeyPair));
+
+            Map<String, Object> preKey = new HashMap<>();
+            preKey.put(Constants.KEY_PRE_KEY, encode(preKeyPair.getPublicKey().serialize()));
+            batch.set(preKeysOf(userId).document(String.valueOf(preKeyId)), preKey);
+        }
+        devicePreferences.edit().putLong(Constants.KEY_SIGNAL_NEXT_PRE_KEY_ID, firstId + PRE_KEY_BATCH_SIZE).apply();
+    }
+
+    /**
+     * Takes one of a peer's one-time pre keys, removing it so no one else uses it.
+     *
+     * @param peerId the ID of the other user
+     * @return task resolving to the claimed pre key, or null if none is left
+     */
+    private Task<DocumentSnapshot> claimPreKey(String peerId) {
+        return preKeysOf(peerId).limit(1).get()
+                .continueWithTask(queryTask -> {
+                    if (queryTask.getResult().isEmpty()) {
+                        return Tasks.forResult(null);
+                    }
+                    DocumentReference preKeyReference = queryTask.getResult().getDocuments().get(0).getReference();
+                    return db.runTransaction(transaction -> {
+                        DocumentSnapshot preKey = transaction.get(preKeyReference);
+                        if (!preKey.exists()) {
+                            // Claimed by someone else in the meantime
+                            return null;
+                        }
+                        transaction.delete(preKeyReference);
+                        return preKey;
+                    });
+                });
+    }
+
+    /**
+     * Runs X3DH against a peer's published key bundle and stores the resulting session.
+     *
+     * @param address the peer's address
+     * @param bundle  the peer's key bundle document
+     * @param preKey  a claimed one-time pre key document, or null if none was available
+     * @throws Exception if the bundle is invalid or the peer's identity is not trusted
+     */
+    private synchronized void buildSession(SignalProtocolAddress address, DocumentSnapshot bundle,
+                                           DocumentSnapshot preKey) throws Exception {
+        int preKeyId = -1;
+        ECPublicKey preKeyPublic = null;
+        if (preKey != null) {
+            preKeyId = Integer.parseInt(preKey.getId());
+            preKeyPublic = Curve.decodePoint(decode(preKey.getString(Constants.KEY_PRE_KEY)), 0);
+        }
+
+        IdentityKey identityKey = identityOf(bundle);
+        PreKeyBundle preKeyBundle = new PreKeyBundle(
+                bundle.getLong(Constants.KEY_REGISTRATION_ID).intValue(),
+                DEVICE_ID,
+                preKeyId,
+                preKeyPublic,
+                bundle.getLong(Constants.KEY_SIGNED_PRE_KEY_ID).intValue(),
+                Curve.decodePoint(decode(bundle.getString(Constants.KEY_SIGNED_PRE_KEY)), 0),
+                decode(bundle.getString(Constants.KEY_SIGNED_PRE_KEY_SIGNATURE)),
+                identityKey,
+                bundle.getLong(Constants.KEY_KYBER_PRE_KEY_ID).intValue(),
+                new KEMPublicKey(decode(bundle.getString(Constants.KEY_KYBER_PRE_KEY))),
+                decode(bundle.getString(Constants.KEY_KYBER_PRE_KEY_SIGNATURE)));
+
+        SignalStore signalStore = getStore();
+        IdentityKey storedIdentity = signalStore.getIdentity(address);
+        if (storedIdentity != null && !storedIdentity.equals(identityKey)) {
+            // The bundle is what the peer publishes now, so its identity replaces the old one
+            Log.d(TAG, "Identity of " + address.getName() + " changed, rebuilding the session");
+            noteIdentityChange(address.getName(), null);
+            signalStore.deleteSession(address);
+        }
+        // Trusted before processing, which rejects identities that differ from the stored one
+        signalStore.rememberIdentity(address, identityKey);
+        new SessionBuilder(signalStore, address).process(preKeyBundle);
+        Log.d(TAG, "Signal session created with " + address.getName());
+    }
+
+    private DocumentReference bundleOf(String userId) {
+        return db.collection(Constants.KEY_COLLECTION_USERS)
+                .document(userId)
+                .collection(Constants.KEY_COLLECTION_SIGNAL)
+                .document(Constants.KEY_SIGNAL_BUNDLE);
+    }
+
+    private static IdentityKey identityOf(DocumentSnapshot bundle) throws Exception {
+        return new IdentityKey(decode(bundle.getString(Constants.KEY_IDENTITY_KEY)), 0);
+    }
+
+    private CollectionReference preKeysOf(String userId) {
+        return db.collection(Constants.KEY_COLLECTION_USERS)
+                .document(userId)
+                .collection(Constants.KEY_COLLECTION_SIGNAL_PRE_KEYS);
+    }
+
+    private static SignalProtocolAddress addressOf(String userId) {
+        return new SignalProtocolAddress(userId, DEVICE_ID);
+    }
+
+    private static String encode(byte[] bytes) {
+        return Base64.encodeToString(bytes, Base64.NO_WRAP);
+    }
+
+    private static byte[] decode(String encoded) {
+        return Base64.decode(encoded, Base64.NO_WRAP);
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.talkoloco.utils;
+
+import com.google.android.gms.tasks.Task;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Collapses concurrent identical requests into one. While a request for a key is in flight,
+ * every other request for that key gets the same task instead of starting its own.
+ * Once the task completes, the next request for the key starts a new one.
+ *
+ * @param <K> the type of the request key
+ * @param <T> the type of the request result
+ */
+public class SingleFlight<K, T> {
+    private final Map<K, Task<T>> inFlight = new HashMap<>();
+
+    /**
+     * Returns the in-flight task for a key, or starts one.
+     *
+     * @param key    identifies the request
+     * @param loader starts the request if none is in flight
+     * @return the task shared by all concurrent requests for the key
+     */
+    public Task<T> run(K key, Supplier<Task<T>> loader) {
+        Task<T> task;
+        synchronized (inFlight) {
+            Task<T> existing = inFlight.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            task = loader.get();
+            if (task.isComplete()) {
+                return task;
+            }
+            inFlight.put(key, task);
+        }
+        task.addOnCompleteListener(Runnable::run, done -> {
+            synchronized (inFlight) {
+                if (inFlight.get(key) == task) {
+                    inFlight.remove(key);
+                }
+            }
+        });
+        return task;
+    }
+}
@@ -0,0 +1,167 @@
+package com.example.talkoloco.utils;
+
+import com.example.talkoloco.models.ChatMessages;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The messages of a conversation kept in timestamp order. Messages arrive from the local
+ * store, older pages and the live listener in any order; each one is placed with a binary
+ * search instead of sorting the whole list again. Messages with the same timestamp are
+ * ordered by ID, so every device shows them the same way. A message is only added once.
+ * Not thread safe, meant to be used from the main thread.
+ */
+public class SortedMessageBuffer {
+    private final List<ChatMessages> messages = new ArrayList<>();
+    private final Map<String, ChatMessages> messagesById = new HashMap<>();
+
+    /**
+     * Adds a message at its place in the order.
+     *
+     * @param message the message to add, which must have a timestamp
+     * @return the position the message was added at, or -1 if it is already in the buffer
+     *         or has no timestamp
+     */
+    public int insert(ChatMessages message) {
+        if (message.dateObject == null) {
+            return -1;
+        }
+        if (message.messageId != null) {
+            if (messagesById.containsKey(message.messageId)) {
+                return -1;
+            }
+            messagesById.put(message.messageId, message);
+        }
+        int position = findInsertionPosition(message);
+        messages.add(position, message);
+        return position;
+    }
+
+    /**
+     * Replaces a message with an updated copy that has the same ID and timestamp.
+     *
+     * @param message the updated message
+     * @return the position of the message, or -1 if it is not in the buffer
+     */
+    public int replace(ChatMessages message) {
+        ChatMessages current = messagesById.get(message.messageId);
+        if (current == null) {
+            return -1;
+        }
+        // The current message sorts just before where an equal message would be inserted
+        int position = findInsertionPosition(current) - 1;
+        messages.set(position, message);
+        messagesById.put(message.messageId, message);
+        return position;
+    }
+
+    /**
+     * Looks up a message by its ID.
+     *
+     * @param messageId the message ID
+     * @return the message, or null if it is not in the buffer
+     */
+    public ChatMessages getById(String messageId) {
+        return messagesById.get(messageId);
+    }
+
+    /**
+     * Adds several messages at their places in the order.
+     *
+     * @param newMessages the messages to add
+     * @return the number of messages added
+     */
+    public int insertAll(Collection<ChatMessages> newMessages) {
+        int added = 0;
+        for (ChatMessages message : newMessages) {
+            if (insert(message) >= 0) {
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Finds the position after every message that comes before or at the same point
+     * as the given one. New messages usually belong at the end, which is checked first.
+     *
+     * @param message the message to place
+     * @return the position to add the message at
+     */
+    private int findInsertionPosition(ChatMessages message) {
+        int size = messages.size();
+        if (size == 0 || compare(messages.get(size - 1), message) <= 0) {
+            return size;
+        }
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compare(messages.get(middle), message) <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static int compare(ChatMessages first, ChatMessages second) {
+        int byDate = first.dateObject.compareTo(second.dateObject);
+        if (byDate != 0) {
+            return byDate;
+        }
+        String firstId = first.messageId != null ? first.messageId : "";
+        String secondId = second.messageId != null ? second.messageId : "";
+        return firstId.compareTo(secondId);
+    }
+
+    public ChatMessages get(int position) {
+        return messages.get(position);
+    }
+
+    /**
+     * Returns the timestamp of the oldest message.
+     *
+     * @return the oldest timestamp, or null if the buffer is empty
+     */
+    public Date getOldestDate() {
+        return messages.isEmpty() ? null : messages.get(0).dateObject;
+    }
+
+    /**
+     * Returns the timestamp of the newest message.
+     *
+     * @return the newest timestamp, or null if the buffer is empty
+     */
+    public Date getNewestDate() {
+        return messages.isEmpty() ? null : messages.get(messages.size() - 1).dateObject;
+    }
+
+    public int size() {
+        return messages.size();
+    }
+
+    public boolean isEmpty() {
+        return messages.isEmpty();
+    }
+
+    public void clear() {
+        messages.clear();
+        messagesById.clear();
+    }
+
+    /**
+     * Returns a copy of the messages in order, for handing to the adapter.
+     *
+     * @return the messages, oldest first
+     */
+    public List<ChatMessages> snapshot() {
+        return new ArrayList<>(messages);
+    }
+}
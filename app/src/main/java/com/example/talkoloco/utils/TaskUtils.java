@@ -0,0 +1,72 @@
+package com.example.talkoloco.utils;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.google.android.gms.tasks.CancellationToken;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Helpers that give a caller its own view of a task, with a timeout or cancellation.
+ * The returned task settles early, but the task it wraps keeps running, so a task
+ * shared by several callers is never cut short by one of them.
+ */
+public class TaskUtils {
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+
+    private TaskUtils() {
+    }
+
+    /**
+     * Returns a task that fails with a TimeoutException if the given one has not
+     * completed in time.
+     *
+     * @param task    the task to wait for
+     * @param timeout how long to wait
+     * @param unit    the unit of the timeout
+     * @return a task with the outcome of the given one, or a timeout
+     */
+    public static <T> Task<T> withTimeout(Task<T> task, long timeout, TimeUnit unit) {
+        if (task.isComplete()) {
+            return task;
+        }
+        TaskCompletionSource<T> source = new TaskCompletionSource<>();
+        Runnable onTimeout = () -> source.trySetException(
+                new TimeoutException("Timed out after " + unit.toMillis(timeout) + " ms"));
+        MAIN_HANDLER.postDelayed(onTimeout, unit.toMillis(timeout));
+        task.addOnCompleteListener(Runnable::run, done -> {
+            MAIN_HANDLER.removeCallbacks(onTimeout);
+            settle(source, done);
+        });
+        return source.getTask();
+    }
+
+    /**
+     * Returns a task that is canceled as soon as the token is, for callers that stop
+     * caring about the result, such as a screen that is closed.
+     *
+     * @param task  the task to wait for
+     * @param token cancels the returned task
+     * @return a task with the outcome of the given one, unless canceled first
+     */
+    public static <T> Task<T> withCancellation(Task<T> task, CancellationToken token) {
+        TaskCompletionSource<T> source = new TaskCompletionSource<>(token);
+        task.addOnCompleteListener(Runnable::run, done -> settle(source, done));
+        return source.getTask();
+    }
+
+    private static <T> void settle(TaskCompletionSource<T> source, Task<T> done) {
+        if (done.isSuccessful()) {
+            source.trySetResult(done.getResult());
+        } else if (done.isCanceled()) {
+            source.trySetException(new CancellationException("Task was canceled"));
+        } else {
+            source.trySetException(done.getException());
+        }
+    }
+}
@@ -15,18 +15,44 @@ import android.widget.Toast;
 
 import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
+import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.lifecycle.Lifecycle;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
 import com.example.talkoloco.adapters.ChatAdapter;
+import com.example.talkoloco.controllers.AvatarController;
+import com.example.talkoloco.controllers.ConversationController;
+import com.example.talkoloco.controllers.MediaController;
+import com.example.talkoloco.controllers.OutboxController;
+import com.example.talkoloco.controllers.UserController;
+import com.example.talkoloco.database.MediaCache;
+import com.example.talkoloco.database.MessageStore;
+import com.example.talkoloco.database.Outbox;
 import com.example.talkoloco.databinding.ActivityChatBinding;
+import com.example.talkoloco.listeners.IdentityListener;
+import com.example.talkoloco.listeners.OutboxListener;
 import com.example.talkoloco.models.ChatMessages;
+import com.example.talkoloco.models.Conversation;
+import com.example.talkoloco.models.OutboxMessage;
 import com.example.talkoloco.models.User;
+import com.example.talkoloco.utils.AppExecutors;
 import com.example.talkoloco.utils.Constants;
+import com.example.talkoloco.utils.DecryptionScheduler;
 import com.example.talkoloco.utils.ImageHandler;
+import com.example.talkoloco.utils.ListenerRegistry;
+import com.example.talkoloco.utils.MessageDecoder;
+import com.example.talkoloco.utils.MessageSync;
 import com.example.talkoloco.utils.PreferenceManager;
+import com.example.talkoloco.utils.SignalSessionManager;
+import com.example.talkoloco.utils.SortedMessageBuffer;
+import com.google.firebase.firestore.Blob;
 import com.google.firebase.firestore.DocumentChange;
+import com.google.firebase.firestore.DocumentSnapshot;
 import com.google.firebase.firestore.EventListener;
 import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.Query;
 import com.google.firebase.firestore.QuerySnapshot;
 
 import java.text.SimpleDateFormat;
@@ -34,10 +60,12 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
-import javax.crypto.SecretKey;
 import com.example.talkoloco.utils.KeyManager;
 
 /**
@@ -50,11 +78,35 @@ public class ChatActivity extends AppCompatActivity {
     private ActivityChatBinding binding;
     private User receiverUser;
     private Uri selectedImageUri;
-    private List<ChatMessages> chatMessages;
+    private SortedMessageBuffer chatMessages;
     private ChatAdapter chatAdapter;
     private PreferenceManager preferenceManager;
     private KeyManager keyManager;
+    private SignalSessionManager signalSessionManager;
+    private DecryptionScheduler decryptionScheduler;
+    private MessageDecoder messageDecoder;
+    private ListenerRegistry listenerRegistry;
     private FirebaseFirestore database;
+    private MessageStore messageStore;
+    private ConversationController conversationController;
+    private MediaController mediaController;
+    private OutboxController outboxController;
+    private String conversationId;
+    // IDs of messages already shown, so snapshot replays are not decrypted again
+    private final Set<String> knownMessageIds = new HashSet<>();
+    // Paging state for older history
+    private boolean isLoadingOlderMessages = false;
+    private boolean hasReachedStartOfHistory = false;
+    // Reset whenever the listener is detached, so each attach checks its first snapshot
+    private boolean hasReceivedFirstSnapshot = false;
+
+    private static final String MESSAGES_LISTENER = "messages";
+    // Number of messages loaded at once, both initially and per older page
+    private static final int PAGE_SIZE = 30;
+    // Older messages are requested when the first visible item is this close to the top
+    private static final int PREFETCH_DISTANCE = 5;
+    // Messages assumed to be on screen before the list has been laid out
+    private static final int DEFAULT_VISIBLE_MESSAGES = 12;
 
     // Launcher for handling image selection from gallery
     private final ActivityResultLauncher<Intent> imagePickerLauncher = registerForActivityResult(
@@ -80,41 +132,91 @@ public class ChatActivity extends AppCompatActivity {
         // Initialize core components
         preferenceManager = new PreferenceManager(getApplicationContext());
         keyManager = new KeyManager(getApplicationContext());
+        signalSessionManager = SignalSessionManager.getInstance(getApplicationContext());
+        decryptionScheduler = new DecryptionScheduler();
+        messageDecoder = MessageDecoder.getInstance(getApplicationContext());
         database = FirebaseFirestore.getInstance();
-
+        messageStore = MessageStore.getInstance(getApplicationContext());
+        conversationController = ConversationController.getInstance();
+        mediaController = MediaController.getInstance();
+        outboxController = OutboxController.getInstance(getApplicationContext());
+        outboxController.addListener(outboxListener);
+        signalSessionManager.addIdentityListener(identityListener);
+
+        // Validate receiver user data, only the ID is passed in the Intent
+        String receiverId = getIntent().getStringExtra(Constants.KEY_USER_ID);
+        if (receiverId == null) {
+            Log.e(TAG, "Receiver user ID is null");
+            Toast.makeText(this, "Error: No user data received", Toast.LENGTH_SHORT).show();
+            finish();
+            return;
+        }
 
         // Verify user authentication state
         String currentUserId = preferenceManager.getString(Constants.KEY_USER_ID);
         Log.d(TAG, "Current user ID from preferences: " + currentUserId);
 
-        // Attempt to recover user session if ID is missing
+        // Attempt to recover user session if ID is missing, and open the chat after it
         if (currentUserId == null || currentUserId.isEmpty()) {
-            retrieveCurrentUserFromFirestore();
+            retrieveCurrentUserFromFirestore(() -> loadReceiver(receiverId));
+        } else {
+            loadReceiver(receiverId);
         }
+    }
 
-        // Validate receiver user data
-        receiverUser = (User) getIntent().getSerializableExtra(Constants.KEY_USER);
-        if (receiverUser == null) {
-            Log.e(TAG, "Receiver user is null");
-            Toast.makeText(this, "Error: No user data received", Toast.LENGTH_SHORT).show();
-            finish();
+    /**
+     * Finds the receiver of this chat and opens the chat with them.
+     *
+     * @param receiverId the ID of the receiver
+     */
+    private void loadReceiver(String receiverId) {
+        User shownUser = UserController.getInstance().peekUser(receiverId);
+        if (shownUser != null) {
+            openChat(shownUser);
             return;
         }
+        // Not in memory, such as when the process was restarted while this screen was open
+        UserController.getInstance().getUserById(receiverId)
+                .addOnSuccessListener(this, this::openChat)
+                .addOnFailureListener(this, e -> {
+                    Log.e(TAG, "Error loading receiver user", e);
+                    Toast.makeText(this, "Error: No user data received", Toast.LENGTH_SHORT).show();
+                    finish();
+                });
+    }
 
+    /**
+     * Sets up the chat interface for the receiver. This is the only place the chat is
+     * initialized, and it runs once the receiver and the current user are both known.
+     *
+     * @param user The user this conversation is with
+     */
+    private void openChat(User user) {
+        if (receiverUser != null || isFinishing() || isDestroyed()) return;
+        receiverUser = user;
         Log.d(TAG, "Received user: " + receiverUser.name + ", ID: " + receiverUser.id);
 
+        // Listeners only start once there is a conversation to listen to
+        listenerRegistry = new ListenerRegistry(this);
+
         // Setup chat interface
         loadReceiverDetails();
         setListeners();
         init();
-        listenMessages();
+
+        // The receiver may have been loaded after onStart, which found no conversation yet
+        if (getLifecycle().getCurrentState().isAtLeast(Lifecycle.State.STARTED)) {
+            MessageSync.getInstance(getApplicationContext()).setOpenConversation(conversationId);
+        }
     }
 
     /**
      * Attempts to recover user session by querying Firestore with stored phone number.
      * Redirects to login if recovery fails.
+     *
+     * @param onRestored run once the user ID is restored
      */
-    private void retrieveCurrentUserFromFirestore() {
+    private void retrieveCurrentUserFromFirestore(Runnable onRestored) {
         // Get the current user's phone number
         String phoneNumber = preferenceManager.getString(Constants.KEY_PHONE_NUMBER);
 
@@ -123,7 +225,7 @@ public class ChatActivity extends AppCompatActivity {
                     .collection(Constants.KEY_COLLECTION_USERS)
                     .whereEqualTo(Constants.KEY_PHONE_NUMBER, phoneNumber)
                     .get()
-                    .addOnSuccessListener(querySnapshot -> {
+                    .addOnSuccessListener(this, querySnapshot -> {
                         if (!querySnapshot.isEmpty()) {
                             // Restore user session
                             String userId = querySnapshot.getDocuments().get(0).getId();
@@ -132,9 +234,8 @@ public class ChatActivity extends AppCompatActivity {
                             // Save it to preferences
                             preferenceManager.putString(Constants.KEY_USER_ID, userId);
 
-                            // Restart the chat initialization
-                            init();
-                            listenMessages();
+                            // Continue opening the chat
+                            onRestored.run();
                         } else {
                             Log.e(TAG, "No user found with phone number: " + phoneNumber);
                             Toast.makeText(ChatActivity.this,
@@ -143,7 +244,7 @@ public class ChatActivity extends AppCompatActivity {
                             redirectToLogin();
                         }
                     })
-                    .addOnFailureListener(e -> {
+                    .addOnFailureListener(this, e -> {
                         Log.e(TAG, "Error retrieving user details", e);
                         Toast.makeText(ChatActivity.this,
                                 "Error retrieving user details: " + e.getMessage(),
@@ -191,19 +292,27 @@ public class ChatActivity extends AppCompatActivity {
                 Log.d(TAG, "Generated new encryption keys");
             }
 
-            chatMessages = new ArrayList<>();
+            // Make sure this device can take part in ratchet sessions
+            String currentUserId = preferenceManager.getString(Constants.KEY_USER_ID);
+            if (currentUserId != null) {
+                signalSessionManager.ensureRegistered(currentUserId);
+            }
 
-            // Setup receiver's profile picture
-            Bitmap receiverBitmap = ImageHandler.decodeImage(receiverUser.getProfilePictureUrl());
-            if (receiverUser != null && receiverUser.profilePictureUrl != null && !receiverUser.profilePictureUrl.isEmpty()) {
+            chatMessages = new SortedMessageBuffer();
+
+            // Users saved before avatars got their own documents still carry the image inline
+            Bitmap receiverBitmap = null;
+            if (receiverUser.profilePictureUrl != null && !receiverUser.profilePictureUrl.isEmpty()) {
+                receiverBitmap = ImageHandler.decodeImage(receiverUser.profilePictureUrl);
                 binding.profilePic.setImageBitmap(receiverBitmap);
             }
 
             // Initialize chat adapter
             chatAdapter = new ChatAdapter(
-                    chatMessages,
                     receiverBitmap,
-                    preferenceManager.getString(Constants.KEY_USER_ID)
+                    currentUserId,
+                    currentUserId != null ? Conversation.idFor(currentUserId, receiverUser.id) : null,
+                    this::retryMessage
             );
 
             if (binding != null && binding.chatRecyclerView != null) {
@@ -212,6 +321,11 @@ public class ChatActivity extends AppCompatActivity {
                 throw new IllegalStateException("Binding or RecyclerView is null");
             }
 
+            loadReceiverAvatar();
+
+            // Draw stored history first, then start syncing with Firestore
+            loadStoredMessages();
+
         } catch (Exception e) {
             Log.e(TAG, "Error initializing chat: " + e.getMessage(), e);
             Toast.makeText(this, "Error initializing chat: " + e.getMessage(), Toast.LENGTH_LONG).show();
@@ -219,6 +333,228 @@ public class ChatActivity extends AppCompatActivity {
         }
     }
 
+    /**
+     * Loads the receiver's avatar thumbnail, which is kept apart from the user document,
+     * into the header and next to their messages.
+     */
+    private void loadReceiverAvatar() {
+        if (receiverUser.getAvatarThumbId() == null) return;
+        AvatarController.getInstance(getApplicationContext())
+                .getThumbnail(receiverUser.id, receiverUser.getAvatarVersion(), receiverUser.getAvatarThumbId())
+                .addOnSuccessListener(this, image -> {
+                    Bitmap receiverBitmap = ImageHandler.decodeImage(image);
+                    if (receiverBitmap == null) return;
+                    binding.profilePic.setImageBitmap(receiverBitmap);
+                    chatAdapter.setReceiverProfileImage(receiverBitmap);
+                });
+    }
+
+    /**
+     * Loads the newest page of already decrypted messages of this conversation from the
+     * local store and displays it before any network request is made. Starts the Firestore
+     * listener once the stored messages are known, so they are not decrypted again.
+     */
+    private void loadStoredMessages() {
+        String currentUserId = preferenceManager.getString(Constants.KEY_USER_ID);
+        if (currentUserId == null || currentUserId.isEmpty() || receiverUser.id == null) {
+            return;
+        }
+        conversationId = Conversation.idFor(currentUserId, receiverUser.id);
+        String storeConversationId = conversationId;
+
+        AppExecutors.getInstance().diskIO().execute(() -> {
+            List<ChatMessages> storedMessages = messageStore.getLatestMessages(storeConversationId, PAGE_SIZE);
+            Outbox outbox = Outbox.getInstance(getApplicationContext());
+            Set<String> pendingIds = outbox.getPendingIds(storeConversationId);
+            Set<String> failedIds = outbox.getFailedIds(storeConversationId);
+            for (ChatMessages storedMessage : storedMessages) {
+                storedMessage.dateTime = getReadableDateTime(storedMessage.dateObject);
+                storedMessage.isPending = pendingIds.contains(storedMessage.messageId);
+                storedMessage.isFailed = failedIds.contains(storedMessage.messageId);
+            }
+            AppExecutors.getInstance().mainThread().execute(() -> {
+                if (isFinishing() || isDestroyed()) return;
+                for (ChatMessages storedMessage : storedMessages) {
+                    knownMessageIds.add(storedMessage.messageId);
+                }
+                chatMessages.insertAll(storedMessages);
+                if (!chatMessages.isEmpty()) {
+                    submitMessages(() -> {
+                        binding.chatRecyclerView.scrollToPosition(chatMessages.size() - 1);
+                        binding.chatRecyclerView.setVisibility(View.VISIBLE);
+                    });
+                }
+                listenMessages();
+            });
+        });
+    }
+
+    /**
+     * Loads the page of messages just before the oldest one displayed and adds it to the top
+     * of the list. Pages come from Firestore ordered by timestamp using the oldest displayed
+     * message as cursor; messages already decrypted on this device are taken from the local
+     * store instead of being decrypted again. Falls back to the local store when offline.
+     * With nothing displayed yet, the newest page is loaded.
+     */
+    private void loadOlderMessages() {
+        if (isLoadingOlderMessages || hasReachedStartOfHistory || conversationId == null) {
+            return;
+        }
+        isLoadingOlderMessages = true;
+        String currentUserId = preferenceManager.getString(Constants.KEY_USER_ID);
+        String pageConversationId = conversationId;
+        Date oldestDate = chatMessages.getOldestDate();
+
+        Query page = conversationController.getMessages(pageConversationId)
+                .orderBy(Constants.KEY_TIMESTAMP, Query.Direction.DESCENDING);
+        if (oldestDate != null) {
+            page = page.startAfter(oldestDate);
+        }
+        page.limit(PAGE_SIZE)
+                .get()
+                .addOnSuccessListener(querySnapshot -> {
+                    List<DocumentSnapshot> documents = querySnapshot.getDocuments();
+                    List<String> documentIds = new ArrayList<>();
+                    for (DocumentSnapshot document : documents) {
+                        documentIds.add(document.getId());
+                    }
+
+                    AppExecutors.getInstance().diskIO().execute(() -> {
+                        Map<String, ChatMessages> storedMessages = messageStore.getMessagesById(documentIds);
+                        AppExecutors.getInstance().mainThread().execute(() -> {
+                            List<ChatMessages> olderMessages = new ArrayList<>();
+                            List<DocumentSnapshot> undecryptedDocuments = new ArrayList<>();
+                            // Documents arrive newest first, the list is displayed oldest first
+                            for (int i = documents.size() - 1; i >= 0; i--) {
+                                DocumentSnapshot document = documents.get(i);
+                                if (!knownMessageIds.add(document.getId())) continue;
+
+                                ChatMessages olderMessage = storedMessages.get(document.getId());
+                                if (olderMessage == null) {
+                                    undecryptedDocuments.add(document);
+                                } else {
+                                    olderMessage.dateTime = getReadableDateTime(olderMessage.dateObject);
+                                    olderMessages.add(olderMessage);
+                                }
+                            }
+                            prependMessages(olderMessages, documents.size() < PAGE_SIZE);
+                            decryptInBackground(pageConversationId, undecryptedDocuments, currentUserId);
+                        });
+                    });
+                })
+                .addOnFailureListener(e -> {
+                    Log.e(TAG, "Error loading older messages, using local history", e);
+                    AppExecutors.getInstance().diskIO().execute(() -> {
+                        List<ChatMessages> olderMessages = messageStore.getMessagesBefore(pageConversationId,
+                                oldestDate != null ? oldestDate.getTime() : Long.MAX_VALUE, PAGE_SIZE);
+                        for (ChatMessages olderMessage : olderMessages) {
+                            olderMessage.dateTime = getReadableDateTime(olderMessage.dateObject);
+                        }
+                        AppExecutors.getInstance().mainThread().execute(() -> {
+                            List<ChatMessages> unseenMessages = new ArrayList<>();
+                            for (ChatMessages olderMessage : olderMessages) {
+                                if (knownMessageIds.add(olderMessage.messageId)) {
+                                    unseenMessages.add(olderMessage);
+                                }
+                            }
+                            prependMessages(unseenMessages, olderMessages.size() < PAGE_SIZE);
+                        });
+                    });
+                });
+    }
+
+    /**
+     * Adds a page of older messages to the top of the list.
+     *
+     * @param olderMessages    the messages to add, oldest first
+     * @param isStartOfHistory true if there are no messages before this page
+     */
+    private void prependMessages(List<ChatMessages> olderMessages, boolean isStartOfHistory) {
+        if (isFinishing() || isDestroyed()) return;
+        hasReachedStartOfHistory = isStartOfHistory;
+        isLoadingOlderMessages = false;
+        if (olderMessages.isEmpty()) return;
+
+        boolean wasEmpty = chatMessages.isEmpty();
+        if (chatMessages.insertAll(olderMessages) > 0) {
+            submitMessages(() -> {
+                if (wasEmpty) {
+                    binding.chatRecyclerView.scrollToPosition(chatMessages.size() - 1);
+                }
+                binding.chatRecyclerView.setVisibility(View.VISIBLE);
+            });
+        }
+    }
+
+    /**
+     * Hands a snapshot of the message list to the adapter, which works out the changes
+     * against the shown list on a background thread.
+     *
+     * @param onCommitted run once the changes are shown, or null
+     */
+    private void submitMessages(Runnable onCommitted) {
+        chatAdapter.submitList(chatMessages.snapshot(), onCommitted);
+    }
+
+    /**
+     * Writes newly decrypted messages to the local store in the background.
+     *
+     * @param storeConversationId the conversation the messages belong to
+     * @param messages            the decrypted messages
+     */
+    private void saveMessages(String storeConversationId, List<ChatMessages> messages) {
+        if (messages.isEmpty()) return;
+        AppExecutors.getInstance().diskIO().execute(() ->
+                messageStore.saveMessages(storeConversationId, messages));
+    }
+
+    /**
+     * Clears the unread counter of this conversation when the user leaves it,
+     * covering messages that arrived while it was open.
+     */
+    @Override
+    protected void onPause() {
+        super.onPause();
+        String currentUserId = preferenceManager.getString(Constants.KEY_USER_ID);
+        if (currentUserId != null && conversationId != null) {
+            conversationController.markConversationRead(currentUserId, conversationId);
+        }
+    }
+
+    /**
+     * Keeps background sync away from this conversation while it is on screen, since its
+     * listener decrypts the new messages.
+     */
+    @Override
+    protected void onStart() {
+        super.onStart();
+        MessageSync.getInstance(getApplicationContext()).setOpenConversation(conversationId);
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        hasReceivedFirstSnapshot = false;
+        MessageSync.getInstance(getApplicationContext()).setOpenConversation(null);
+    }
+
+    /**
+     * Stops decrypting messages for this screen.
+     */
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (outboxController != null) {
+            outboxController.removeListener(outboxListener);
+        }
+        if (signalSessionManager != null) {
+            signalSessionManager.removeIdentityListener(identityListener);
+        }
+        if (decryptionScheduler != null) {
+            decryptionScheduler.cancel();
+        }
+    }
+
     /**
      * Validates that all necessary encryption components are properly initialized.
      *
@@ -247,8 +583,9 @@ public class ChatActivity extends AppCompatActivity {
     }
 
     /**
-     * Handles sending encrypted text messages. Generates a unique AES key for each message
-     * and encrypts it for both sender and receiver using their respective public keys.
+     * Handles sending encrypted text messages. Messages are encrypted with the Double Ratchet
+     * session shared with the receiver, which is set up on the first message from the
+     * receiver's published keys. Receivers without published keys get RSA encrypted messages.
      */
     private void sendMessages() {
         // Validate encryption setup before proceeding
@@ -265,55 +602,211 @@ public class ChatActivity extends AppCompatActivity {
             Toast.makeText(this, "Cannot send empty message", Toast.LENGTH_SHORT).show();
             return;
         }
+        // The message is shown as soon as it is encrypted, so the input is cleared right away
+        binding.messageInput.setText(null);
 
-        try {
-            // Generate and encrypt message with new AES key
-            SecretKey aesKey = keyManager.generateAESKey();
-            String encryptedMessage = keyManager.encryptMessage(messageText, aesKey);
+        signalSessionManager.prepareSession(receiverUser.id)
+                .addOnCompleteListener(this, task -> {
+                    if (task.isSuccessful()) {
+                        sendSignalMessage(currentUserId, messageText);
+                    } else {
+                        Log.w(TAG, "No ratchet session, sending RSA encrypted message", task.getException());
+                        sendLegacyMessage(currentUserId, messageText);
+                    }
+                });
+    }
+
+    /**
+     * Sends a text message encrypted with the Double Ratchet session. The sender cannot
+     * decrypt its own ratchet messages, so the plaintext is kept on this device under the
+     * message's ID. Encryption runs on the decryption scheduler's ordered lane, behind any
+     * ratchet message still being decrypted, and the message is queued back on the main thread.
+     *
+     * @param currentUserId the ID of the signed in user
+     * @param messageText   the message text
+     */
+    private void sendSignalMessage(String currentUserId, String messageText) {
+        String sentReceiverId = receiverUser.id;
+        decryptionScheduler.submit(true, true, () -> {
+            try {
+                return signalSessionManager.encrypt(sentReceiverId, messageText);
+            } catch (Exception e) {
+                Log.e(TAG, "Error in encryption process", e);
+                return null;
+            }
+        }, encrypted -> {
+            if (encrypted == null) {
+                showEncryptionError(messageText);
+                return;
+            }
+            // Prepare message data
+            HashMap<String, Object> message = new HashMap<>(encrypted);
+            message.put(Constants.KEY_SENDER_ID, currentUserId);
+            message.put(Constants.KEY_RECEIVER_ID, receiverUser.id);
+            message.put(Constants.KEY_MESSAGE_TYPE, Constants.MESSAGE_TYPE_TEXT);
+            Date timestamp = new Date();
+            message.put(Constants.KEY_TIMESTAMP, timestamp);
 
-            // Encrypt AES key for both participants
-            String recipientEncryptedKey = keyManager.encryptAESKey(aesKey, receiverUser.getPublicKey());
-            String senderEncryptedKey = keyManager.encryptAESKey(aesKey,
-                    preferenceManager.getString(Constants.KEY_PUBLIC_KEY));
+            String sentConversationId = Conversation.idFor(currentUserId, receiverUser.id);
+            String messageId = conversationController.newMessageId(sentConversationId);
 
+            ChatMessages sentMessage = new ChatMessages(currentUserId, receiverUser.id, messageText,
+                    getReadableDateTime(timestamp), timestamp);
+            sentMessage.messageId = messageId;
+            sentMessage.messageType = Constants.MESSAGE_TYPE_TEXT;
+            sentMessage.isRatchet = true;
+
+            queueMessage(currentUserId, sentConversationId, message, sentMessage);
+        });
+    }
+
+    /**
+     * Gives a message that could not be encrypted back to the input, so it is not lost.
+     *
+     * @param messageText the message text
+     */
+    private void showEncryptionError(String messageText) {
+        binding.messageInput.setText(messageText);
+        Toast.makeText(ChatActivity.this, "Error encrypting message", Toast.LENGTH_SHORT).show();
+    }
+
+    /**
+     * Sends a text message the original way: generates a unique AES key for the message
+     * and encrypts it for both sender and receiver using their respective public keys.
+     * Everything is sealed into one binary envelope field. Encryption runs on the decryption
+     * scheduler's ordered lane, like ratchet messages, so messages keep the order they were
+     * sent in, and the message is queued back on the main thread.
+     *
+     * @param currentUserId the ID of the signed in user
+     * @param messageText   the message text
+     */
+    private void sendLegacyMessage(String currentUserId, String messageText) {
+        String receiverPublicKey = receiverUser.getPublicKey();
+        String senderPublicKey = preferenceManager.getString(Constants.KEY_PUBLIC_KEY);
+        decryptionScheduler.submit(true, true, () -> {
+            try {
+                // Encrypt message with a new AES key wrapped for both participants
+                return keyManager.encryptEnvelope(messageText, receiverPublicKey, senderPublicKey);
+            } catch (Exception e) {
+                Log.e(TAG, "Error in encryption process", e);
+                return null;
+            }
+        }, envelope -> {
+            if (envelope == null) {
+                showEncryptionError(messageText);
+                return;
+            }
             // Prepare message data
             HashMap<String, Object> message = new HashMap<>();
             message.put(Constants.KEY_SENDER_ID, currentUserId);
             message.put(Constants.KEY_RECEIVER_ID, receiverUser.id);
-            message.put(Constants.KEY_ENCRYPTED_MESSAGE, encryptedMessage);
-            message.put(Constants.KEY_ENCRYPTED_AES_KEY_RECIPIENT, recipientEncryptedKey);
-            message.put(Constants.KEY_ENCRYPTED_AES_KEY_SENDER, senderEncryptedKey);
+            message.put(Constants.KEY_MESSAGE_ENVELOPE, Blob.fromBytes(envelope));
             message.put(Constants.KEY_MESSAGE_TYPE, Constants.MESSAGE_TYPE_TEXT);
-            message.put(Constants.KEY_TIMESTAMP, new Date());
-
-            // Send to Firebase
-            database.collection(Constants.KEY_COLLECTION_CHAT)
-                    .add(message)
-                    .addOnSuccessListener(documentReference -> {
-                        Log.d(TAG, "Message sent successfully");
-                        binding.messageInput.setText(null);
-                        if (chatMessages != null && !chatMessages.isEmpty()) {
-                            binding.chatRecyclerView.smoothScrollToPosition(chatMessages.size() - 1);
-                        }
-                    })
-                    .addOnFailureListener(e -> {
-                        Log.e(TAG, "Error sending message", e);
-                        Toast.makeText(ChatActivity.this,
-                                "Error sending message: " + e.getMessage(),
-                                Toast.LENGTH_SHORT).show();
-                    });
+            Date timestamp = new Date();
+            message.put(Constants.KEY_TIMESTAMP, timestamp);
 
-        } catch (Exception e) {
-            Log.e(TAG, "Error in encryption process", e);
-            Toast.makeText(ChatActivity.this,
-                    "Error encrypting message: " + e.getMessage(),
-                    Toast.LENGTH_SHORT).show();
-        }
+            String sentConversationId = Conversation.idFor(currentUserId, receiverUser.id);
+            ChatMessages sentMessage = new ChatMessages(currentUserId, receiverUser.id, messageText,
+                    getReadableDateTime(timestamp), timestamp);
+            sentMessage.messageId = conversationController.newMessageId(sentConversationId);
+            sentMessage.messageType = Constants.MESSAGE_TYPE_TEXT;
+
+            queueMessage(currentUserId, sentConversationId, message, sentMessage);
+        });
+    }
+
+    /**
+     * Shows a sent message at once, marked as sending, and hands it to the outbox, which
+     * writes it to Firestore in the background. The plaintext is kept on this device under
+     * the message's ID, so the message is never decrypted again here.
+     *
+     * @param currentUserId      the ID of the signed in user
+     * @param sentConversationId the conversation the message is sent to
+     * @param message            the encrypted message document data
+     * @param sentMessage        the displayable message, carrying the message ID
+     */
+    private void queueMessage(String currentUserId, String sentConversationId,
+                              HashMap<String, Object> message, ChatMessages sentMessage) {
+        sentMessage.isPending = true;
+        knownMessageIds.add(sentMessage.messageId);
+        saveMessages(sentConversationId, Collections.singletonList(sentMessage));
+        insertMessage(sentMessage);
+
+        OutboxMessage outboxMessage = new OutboxMessage();
+        outboxMessage.messageId = sentMessage.messageId;
+        outboxMessage.conversationId = sentConversationId;
+        outboxMessage.senderId = currentUserId;
+        outboxMessage.senderName = preferenceManager.getString(Constants.KEY_NAME);
+        outboxMessage.senderAvatarVersion = preferenceManager.getLong(Constants.KEY_AVATAR_VERSION);
+        outboxMessage.receiverId = receiverUser.id;
+        outboxMessage.receiverName = receiverUser.name;
+        outboxMessage.receiverAvatarVersion = receiverUser.getAvatarVersion();
+        outboxMessage.message = message;
+        outboxMessage.timestamp = sentMessage.dateObject;
+        outboxController.send(outboxMessage);
     }
 
     /**
-     * Handles sending images in chat. Images are encoded but not encrypted.
-     * Validates user authentication and image size before sending.
+     * Sends a message that failed to be sent again, showing it as sending meanwhile.
+     *
+     * @param failedMessage the failed message that was tapped
+     */
+    private void retryMessage(ChatMessages failedMessage) {
+        if (chatMessages.replace(failedMessage.withPending(true)) < 0) return;
+        submitMessages(null);
+        outboxController.retry(failedMessage.messageId);
+    }
+
+    /**
+     * Marks messages as sent once the outbox has written them.
+     */
+    private final OutboxListener outboxListener = new OutboxListener() {
+        @Override
+        public void onMessagesSent(List<String> messageIds) {
+            if (chatMessages == null) return;
+            boolean changed = false;
+            for (String messageId : messageIds) {
+                ChatMessages sentMessage = chatMessages.getById(messageId);
+                if (sentMessage != null && sentMessage.isPending) {
+                    chatMessages.replace(sentMessage.withPending(false));
+                    changed = true;
+                }
+            }
+            if (changed) {
+                submitMessages(null);
+            }
+        }
+
+        @Override
+        public void onMessagesFailed(List<String> messageIds) {
+            if (chatMessages == null) return;
+            boolean changed = false;
+            for (String messageId : messageIds) {
+                ChatMessages failedMessage = chatMessages.getById(messageId);
+                if (failedMessage != null && !failedMessage.isFailed) {
+                    chatMessages.replace(failedMessage.withFailed());
+                    changed = true;
+                }
+            }
+            if (changed) {
+                submitMessages(null);
+            }
+        }
+    };
+
+    /**
+     * Shows the notice that the receiver's identity changed, stored before it was trusted.
+     */
+    private final IdentityListener identityListener = notice -> {
+        if (chatMessages == null || receiverUser == null || !notice.senderId.equals(receiverUser.id)) return;
+        notice.dateTime = getReadableDateTime(notice.dateObject);
+        knownMessageIds.add(notice.messageId);
+        insertMessage(notice);
+    };
+
+    /**
+     * Handles sending images in chat. Images are stored as conversation media, not encrypted.
+     * Validates user authentication before sending.
      */
     private void sendImage(){
         String currentUserId = preferenceManager.getString(Constants.KEY_USER_ID);
@@ -349,37 +842,77 @@ public class ChatActivity extends AppCompatActivity {
                     });
             return;
         }
-        try {
-            // Process and validate image
-            String encodedImage = ImageHandler.encodeImage(this, selectedImageUri);
-            if (ImageHandler.isImageSizeValid(encodedImage)) {
-                // Prepare message data
-                HashMap<String, Object> message = new HashMap<>();
-                message.put(Constants.KEY_SENDER_ID, currentUserId);
-                message.put(Constants.KEY_RECEIVER_ID, receiverUser.id);
-                message.put(Constants.KEY_MESSAGE, encodedImage);  // Store encoded image directly
-                message.put(Constants.KEY_MESSAGE_TYPE, Constants.MESSAGE_TYPE_IMAGE);  // Mark as image
-                message.put(Constants.KEY_TIMESTAMP, new Date());
-
-                // Send to Firebase
-                database.collection(Constants.KEY_COLLECTION_CHAT).add(message)
-                        .addOnSuccessListener(documentReference -> {
-                            binding.messageInput.setText(null);
-                        })
-                        .addOnFailureListener(e -> {
-                            Toast.makeText(this, "Failed to send image", Toast.LENGTH_SHORT).show();
-                        });
-            } else {
-                Toast.makeText(this, "Selected image is too large", Toast.LENGTH_SHORT).show();
+        // Compress off the main thread, then upload the bytes as conversation media
+        String sendConversationId = Conversation.idFor(currentUserId, receiverUser.id);
+        Uri imageUri = selectedImageUri;
+        AppExecutors.getInstance().diskIO().execute(() -> {
+            byte[] imageBytes;
+            byte[] thumbnail;
+            try {
+                imageBytes = ImageHandler.compressImage(getApplicationContext(), imageUri);
+                thumbnail = ImageHandler.createThumbnail(imageBytes);
+            } catch (Exception e) {
+                Log.e(TAG, "Error processing image", e);
+                AppExecutors.getInstance().mainThread().execute(() ->
+                        Toast.makeText(this, "Failed to process image", Toast.LENGTH_SHORT).show());
+                return;
             }
-        } catch (Exception e) {
-            Toast.makeText(this, "Failed to process image", Toast.LENGTH_SHORT).show();
-        }
+            AppExecutors.getInstance().mainThread().execute(() ->
+                    sendImageMessage(currentUserId, sendConversationId, imageBytes, thumbnail));
+        });
     }
 
     /**
-     * Sets up real-time message listening for both sent and received messages.
-     * Handles message decryption and display.
+     * Uploads image bytes as conversation media and sends a message referring to them
+     * through the outbox. The message itself only carries the media's content hash and size,
+     * plus a tiny preview that receivers can show before fetching the full image.
+     *
+     * @param currentUserId      the ID of the signed in user
+     * @param sendConversationId the conversation to send the image to
+     * @param imageBytes         the compressed image
+     * @param thumbnail          the compressed preview
+     */
+    private void sendImageMessage(String currentUserId, String sendConversationId, byte[] imageBytes,
+                                  byte[] thumbnail) {
+        mediaController.uploadMedia(sendConversationId, imageBytes)
+                .addOnSuccessListener(this, mediaHash -> {
+                    // The sender keeps its own copy so it never downloads the image again
+                    AppExecutors.getInstance().diskIO().execute(() ->
+                            MediaCache.getInstance(getApplicationContext()).saveMedia(mediaHash, imageBytes));
+
+                    // Prepare message data
+                    HashMap<String, Object> message = new HashMap<>();
+                    message.put(Constants.KEY_SENDER_ID, currentUserId);
+                    message.put(Constants.KEY_RECEIVER_ID, receiverUser.id);
+                    message.put(Constants.KEY_MEDIA_HASH, mediaHash);
+                    message.put(Constants.KEY_MEDIA_SIZE, imageBytes.length);
+                    message.put(Constants.KEY_THUMBNAIL, Blob.fromBytes(thumbnail));
+                    message.put(Constants.KEY_MESSAGE_TYPE, Constants.MESSAGE_TYPE_IMAGE);  // Mark as image
+                    Date timestamp = new Date();
+                    message.put(Constants.KEY_TIMESTAMP, timestamp);
+
+                    ChatMessages sentMessage = new ChatMessages(currentUserId, receiverUser.id, null,
+                            getReadableDateTime(timestamp), timestamp);
+                    sentMessage.messageId = conversationController.newMessageId(sendConversationId);
+                    sentMessage.messageType = Constants.MESSAGE_TYPE_IMAGE;
+                    sentMessage.mediaHash = mediaHash;
+                    sentMessage.thumbnail = thumbnail;
+
+                    // Shown at once, the outbox writes it and updates both inboxes
+                    queueMessage(currentUserId, sendConversationId, message, sentMessage);
+                })
+                .addOnFailureListener(this, e -> {
+                    Log.e(TAG, "Error sending image", e);
+                    Toast.makeText(this, "Failed to send image", Toast.LENGTH_SHORT).show();
+                });
+    }
+
+    /**
+     * Sets up real-time message listening on the newest page of the conversation's messages
+     * subcollection, which holds both sent and received messages. Older messages still in the
+     * global chats collection are copied over first. Older pages are loaded on scroll.
+     * The listener is detached while the chat is in the background; when it comes back,
+     * only messages from the newest one already seen on are queried.
      */
     private void listenMessages() {
         String currentUserId = preferenceManager.getString(Constants.KEY_USER_ID);
@@ -387,95 +920,209 @@ public class ChatActivity extends AppCompatActivity {
             return;
         }
 
-        // Listen for sent messages
-        database.collection(Constants.KEY_COLLECTION_CHAT)
-                .whereEqualTo("senderId", currentUserId)
-                .whereEqualTo("receiverId", receiverUser.id)
-                .addSnapshotListener(eventListener);
-
-        // Listen for received messages
-        database.collection(Constants.KEY_COLLECTION_CHAT)
-                .whereEqualTo("receiverId", currentUserId)
-                .whereEqualTo("senderId", receiverUser.id)
-                .addSnapshotListener(eventListener);
+        conversationController.openConversation(currentUserId, receiverUser.id,
+                aVoid -> {
+                    if (isFinishing() || isDestroyed()) return;
+                    conversationController.markConversationRead(currentUserId, conversationId);
+                    String listenConversationId = Conversation.idFor(currentUserId, receiverUser.id);
+                    listenerRegistry.register(MESSAGES_LISTENER, cursor -> {
+                        // Ordered by the time messages reached the server, so a message sent late,
+                        // such as from an outbox that was offline, still comes after the cursor
+                        Query messages = conversationController.getMessages(listenConversationId)
+                                .orderBy(Constants.KEY_SENT_AT, Query.Direction.ASCENDING);
+                        // Messages at the cursor itself are already known and skipped. After a long
+                        // time away only the newest page is taken, older ones load on scroll
+                        return cursor == null
+                                ? messages.limitToLast(PAGE_SIZE)
+                                : messages.whereGreaterThanOrEqualTo(Constants.KEY_SENT_AT, cursor)
+                                        .limitToLast(PAGE_SIZE);
+                    }, eventListener);
+                },
+                e -> Toast.makeText(ChatActivity.this,
+                        "Error loading conversation: " + e.getMessage(),
+                        Toast.LENGTH_SHORT).show());
     }
 
     /**
      * Listens for real-time chat message updates from Firebase.
-     * Handles both image and encrypted text messages, processes them accordingly,
-     * and updates the chat interface.
-     *
-     * For text messages:
-     * - Decrypts the message using the appropriate AES key (sender's or receiver's)
-     * - Handles decryption failures gracefully
-     * For images:
-     * - Processes them without encryption
+     * Only messages that are not displayed yet are looked at; those decrypted on this
+     * device before come from the local store and the rest go to the decryption scheduler.
      */
     private final EventListener<QuerySnapshot> eventListener = (value, error) -> {
         if (error != null) return;
 
         if (value != null) {
-            int count = chatMessages.size();
+            if (!hasReceivedFirstSnapshot) {
+                hasReceivedFirstSnapshot = true;
+                dropStoredPageIfDisjoint(value);
+                // Messages from before sentAt existed are not in the listener, only in pages
+                if (chatMessages.isEmpty() && value.size() < PAGE_SIZE) {
+                    loadOlderMessages();
+                }
+            }
+
             String currentUserId = preferenceManager.getString(Constants.KEY_USER_ID);
+            List<DocumentSnapshot> newDocuments = new ArrayList<>();
 
             for (DocumentChange documentChange : value.getDocumentChanges()) {
                 if (documentChange.getType() == DocumentChange.Type.ADDED) {
-                    // Create new message object for each incoming message
-                    ChatMessages chatMessage = new ChatMessages();
-                    chatMessage.senderId = documentChange.getDocument().getString(Constants.KEY_SENDER_ID);
-                    chatMessage.receiverID = documentChange.getDocument().getString(Constants.KEY_RECEIVER_ID);
+                    // Skip messages already loaded from the local store
+                    if (knownMessageIds.add(documentChange.getDocument().getId())) {
+                        newDocuments.add(documentChange.getDocument());
+                    }
+                }
+            }
 
-                    String messageType = documentChange.getDocument().getString(Constants.KEY_MESSAGE_TYPE);
+            showMessages(conversationId, newDocuments, currentUserId);
+        }
+    };
 
-                    if (messageType != null && messageType.equals(Constants.MESSAGE_TYPE_IMAGE)) {
-                        // Process image messages without encryption
-                        chatMessage.message = documentChange.getDocument().getString(Constants.KEY_MESSAGE);
+    /**
+     * Displays message documents, taking the plaintext of messages decrypted on this device
+     * before from the local store so replayed snapshots need no decryption at all.
+     * The remaining documents are decrypted in the background.
+     *
+     * @param showConversationId the conversation the messages belong to
+     * @param documents          the message documents, oldest first
+     * @param currentUserId      the ID of the signed in user
+     */
+    private void showMessages(String showConversationId, List<DocumentSnapshot> documents,
+                              String currentUserId) {
+        if (documents.isEmpty()) return;
+        List<String> documentIds = new ArrayList<>();
+        for (DocumentSnapshot document : documents) {
+            documentIds.add(document.getId());
+        }
+
+        AppExecutors.getInstance().diskIO().execute(() -> {
+            Map<String, ChatMessages> storedMessages = messageStore.getMessagesById(documentIds);
+            for (ChatMessages storedMessage : storedMessages.values()) {
+                storedMessage.dateTime = getReadableDateTime(storedMessage.dateObject);
+            }
+            AppExecutors.getInstance().mainThread().execute(() -> {
+                if (isFinishing() || isDestroyed()) return;
+                List<DocumentSnapshot> undecryptedDocuments = new ArrayList<>();
+                for (DocumentSnapshot document : documents) {
+                    ChatMessages storedMessage = storedMessages.get(document.getId());
+                    if (storedMessage != null) {
+                        insertMessage(storedMessage);
                     } else {
-                        // Handle text message - with encryption
-                        String encryptedMessage = documentChange.getDocument().getString(Constants.KEY_ENCRYPTED_MESSAGE);
-                        try {
-                            // Determine which encryption key to use based on message direction
-                            String encryptedAESKey;
-                            if (chatMessage.senderId.equals(currentUserId)) {
-                                // We're the sender, use sender's key
-                                Log.d(TAG, "Decrypting as sender");
-                                encryptedAESKey = documentChange.getDocument().getString(Constants.KEY_ENCRYPTED_AES_KEY_SENDER);
-                            } else {
-                                // We're the receiver, use recipient's key
-                                Log.d(TAG, "Decrypting as receiver");
-                                encryptedAESKey = documentChange.getDocument().getString(Constants.KEY_ENCRYPTED_AES_KEY_RECIPIENT);
-                            }
+                        undecryptedDocuments.add(document);
+                    }
+                }
+                decryptInBackground(showConversationId, undecryptedDocuments, currentUserId);
+            });
+        });
+    }
 
-                            // Decrypt the message using the appropriate key
-                            SecretKey aesKey = keyManager.decryptAESKey(encryptedAESKey);
-                            chatMessage.message = keyManager.decryptMessage(encryptedMessage, aesKey);
-                        } catch (Exception e) {
-                            Log.e(TAG, "Error decrypting message", e);
-                            chatMessage.message = "[Error: Could not decrypt message]";
+    /**
+     * Decrypts message documents on the decryption scheduler and stores the plaintexts on
+     * the worker thread. The documents closest to the bottom of the chat are on screen, so
+     * they are decrypted first. Ratchet messages are decrypted in the order they were sent,
+     * as the ratchet requires.
+     *
+     * @param decryptConversationId the conversation the messages belong to
+     * @param documents             the message documents, oldest first
+     * @param currentUserId         the ID of the signed in user
+     */
+    private void decryptInBackground(String decryptConversationId, List<DocumentSnapshot> documents,
+                                     String currentUserId) {
+        int visibleCount = getVisibleMessageCount();
+        for (int i = 0; i < documents.size(); i++) {
+            DocumentSnapshot document = documents.get(i);
+            boolean isVisible = i >= documents.size() - visibleCount;
+            boolean isRatchetMessage = document.contains(Constants.KEY_SIGNAL_MESSAGE);
+            decryptionScheduler.submit(isVisible, isRatchetMessage,
+                    () -> {
+                        if (isRatchetMessage) {
+                            // Saved inside, since a ratchet message can only be decrypted once,
+                            // background sync may have stored it already, and the screen may
+                            // close before the result is shown
+                            ChatMessages chatMessage = messageDecoder.decodeOnce(decryptConversationId,
+                                    document, () -> decodeMessage(document, currentUserId));
+                            chatMessage.dateTime = getReadableDateTime(chatMessage.dateObject);
+                            return chatMessage;
                         }
-                    }
+                        ChatMessages chatMessage = decodeMessage(document, currentUserId);
+                        if (!MessageDecoder.DECRYPTION_FAILED_MESSAGE.equals(chatMessage.message)) {
+                            messageStore.saveMessages(decryptConversationId,
+                                    Collections.singletonList(chatMessage));
+                        }
+                        return chatMessage;
+                    },
+                    chatMessage -> {
+                        if (isFinishing() || isDestroyed()) return;
+                        insertMessage(chatMessage);
+                    });
+        }
+    }
 
-                    // Set message metadata
-                    chatMessage.dateTime = getReadableDateTime(
-                            documentChange.getDocument().getDate(Constants.KEY_TIMESTAMP));
-                    chatMessage.dateObject = documentChange.getDocument().getDate(Constants.KEY_TIMESTAMP);
-                    chatMessages.add(chatMessage);
-                }
-            }
+    /**
+     * Returns the number of messages currently on screen.
+     *
+     * @return the number of visible messages, or an estimate before the first layout
+     */
+    private int getVisibleMessageCount() {
+        int childCount = binding.chatRecyclerView.getChildCount();
+        return childCount > 0 ? childCount : DEFAULT_VISIBLE_MESSAGES;
+    }
 
-            // Sort messages by timestamp and update UI
-            Collections.sort(chatMessages, (obj1, obj2) -> obj1.dateObject.compareTo(obj2.dateObject));
-            if (count == 0) {
-                // Initial load - update entire dataset
-                chatAdapter.notifyDataSetChanged();
-            } else {
-                // New messages - insert at end
-                chatAdapter.notifyItemRangeInserted(chatMessages.size(), chatMessages.size());
-                binding.chatRecyclerView.smoothScrollToPosition(chatMessages.size() - 1);
+    /**
+     * Adds a decrypted message at its place in the timestamp ordered list.
+     *
+     * @param chatMessage the decrypted message
+     */
+    private void insertMessage(ChatMessages chatMessage) {
+        int position = chatMessages.insert(chatMessage);
+        if (position < 0) return;
+
+        boolean isNewest = position == chatMessages.size() - 1;
+        submitMessages(() -> {
+            if (isNewest) {
+                binding.chatRecyclerView.scrollToPosition(chatAdapter.getItemCount() - 1);
             }
             binding.chatRecyclerView.setVisibility(View.VISIBLE);
+        });
+    }
+
+    /**
+     * Clears the messages shown so far when more than a full page of messages arrived since
+     * the newest of them, so the list never shows a hole between them and the live page.
+     * That happens with a page drawn from the local store, or when the listener is attached
+     * again after a long time away. The missing messages are then loaded as older pages on scroll.
+     *
+     * @param firstSnapshot the first snapshot of the live page
+     */
+    private void dropStoredPageIfDisjoint(QuerySnapshot firstSnapshot) {
+        if (chatMessages.isEmpty() || firstSnapshot.size() < PAGE_SIZE) return;
+
+        DocumentSnapshot oldestLive = firstSnapshot.getDocuments().get(0);
+        Date oldestLiveDate = oldestLive.getDate(Constants.KEY_TIMESTAMP);
+        Date newestStoredDate = chatMessages.getNewestDate();
+        if (knownMessageIds.contains(oldestLive.getId()) || oldestLiveDate == null
+                || !oldestLiveDate.after(newestStoredDate)) {
+            return;
         }
-    };
+
+        knownMessageIds.clear();
+        chatMessages.clear();
+        hasReachedStartOfHistory = false;
+        submitMessages(null);
+    }
+
+    /**
+     * Builds a displayable message from a message document. Own ratchet messages cannot be
+     * decrypted; those sent from this device are stored when sent and never decoded here.
+     *
+     * @param document      the Firestore message document
+     * @param currentUserId the ID of the signed in user
+     * @return the decoded message
+     */
+    private ChatMessages decodeMessage(DocumentSnapshot document, String currentUserId) {
+        ChatMessages chatMessage = messageDecoder.decode(document, currentUserId);
+        chatMessage.dateTime = getReadableDateTime(chatMessage.dateObject);
+        return chatMessage;
+    }
 
     /**
      * Converts a Base64 encoded string to a Bitmap image.
@@ -494,11 +1141,9 @@ public class ChatActivity extends AppCompatActivity {
 
     /**
      * Loads and displays the chat receiver's details in the chat header.
-     * Retrieves user information from the intent extras and updates the UI.
      * Closes the activity if receiver details are missing.
      */
     private void loadReceiverDetails() {
-        receiverUser = (User) getIntent().getSerializableExtra(Constants.KEY_USER);
         if (receiverUser != null) {
             binding.contact.setText(receiverUser.name);
         } else {
@@ -520,6 +1165,18 @@ public class ChatActivity extends AppCompatActivity {
         binding.attachments.setOnClickListener(v -> openImagePicker());
         // Profile viewing
         binding.profilePic.setOnClickListener(v -> viewProfile(receiverUser));
+        // Older history paging
+        binding.chatRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                if (dy >= 0) return;
+                LinearLayoutManager layoutManager = (LinearLayoutManager) recyclerView.getLayoutManager();
+                if (layoutManager != null
+                        && layoutManager.findFirstVisibleItemPosition() <= PREFETCH_DISTANCE) {
+                    loadOlderMessages();
+                }
+            }
+        });
     }
 
     /**
@@ -551,7 +1208,8 @@ public class ChatActivity extends AppCompatActivity {
      */
     private void viewProfile(User user){
         Intent intent = new Intent(this, ViewProfileActivity.class);
-        intent.putExtra(Constants.KEY_USER,user);
+        UserController.getInstance().rememberUser(user);
+        intent.putExtra(Constants.KEY_USER_ID,user.id);
         startActivity(intent);
     }
 }
\ No newline at end of file
@@ -1,30 +1,55 @@
 package com.example.talkoloco.views.activities;
 
+import android.Manifest;
 import android.content.Intent;
+import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.view.View;
 import android.widget.Toast;
 
+import androidx.activity.result.ActivityResultLauncher;
+import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.core.content.ContextCompat;
 
 import com.example.talkoloco.adapters.UsersAdapter;
+import com.example.talkoloco.controllers.AvatarController;
+import com.example.talkoloco.controllers.ContactController;
 import com.example.talkoloco.controllers.NavigationController;
+import com.example.talkoloco.controllers.UserController;
 import com.example.talkoloco.databinding.ActivityFriendsListBinding;
 import com.example.talkoloco.listeners.UserListener;
 import com.example.talkoloco.models.User;
 import com.example.talkoloco.utils.Constants;
 import com.example.talkoloco.utils.PreferenceManager;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.FieldPath;
 import com.google.firebase.firestore.FirebaseFirestore;
 import com.google.firebase.firestore.QueryDocumentSnapshot;
+import com.google.firebase.firestore.QuerySnapshot;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 public class FriendsListActivity extends AppCompatActivity implements UserListener {
     private ActivityFriendsListBinding binding;
     private NavigationController navigationController;
     private PreferenceManager preferenceManager;
 
+    // Launcher for asking to read the address book
+    private final ActivityResultLauncher<String> contactsPermissionLauncher = registerForActivityResult(
+            new ActivityResultContracts.RequestPermission(),
+            isGranted -> {
+                if (isGranted) {
+                    discoverContacts();
+                } else {
+                    showErrorMessage();
+                }
+            }
+    );
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -41,19 +66,50 @@ public class FriendsListActivity extends AppCompatActivity implements UserListen
     }
 
     /**
-     * method that will get users from firebase and place them in a list
+     * method that will get the users in the device address book and place them in a list.
+     * asks for the contacts permission first; without it there is nobody to show
      */
     private void getUsers(){
+        if(ContextCompat.checkSelfPermission(this, Manifest.permission.READ_CONTACTS)
+                == PackageManager.PERMISSION_GRANTED){
+            discoverContacts();
+        } else {
+            contactsPermissionLauncher.launch(Manifest.permission.READ_CONTACTS);
+        }
+    }
+
+    /**
+     * method that will find the registered users among the contacts and fetch their profiles
+     */
+    private void discoverContacts(){
+        ContactController.getInstance(getApplicationContext()).discoverContacts(
+                this::getUsersById,
+                e -> showErrorMessage());
+    }
+
+    /**
+     * method that will fetch users by ID, in whereIn chunks that are all sent at once
+     * @param userIds the IDs of the users to show
+     */
+    private void getUsersById(Set<String> userIds){
+        if(userIds.isEmpty()){
+            showErrorMessage();
+            return;
+        }
         FirebaseFirestore database = FirebaseFirestore.getInstance();
-        database.collection(Constants.KEY_COLLECTION_USERS).get()
-                .addOnCompleteListener(task -> {
-                    String currentUserId = preferenceManager.getString(Constants.KEY_USER_ID);
-                    if(task.isSuccessful() && task.getResult() !=null){
-                        List<User> users = new ArrayList<>();
-                        for(QueryDocumentSnapshot queryDocumentSnapshot : task.getResult()){
-                            if(currentUserId.equals(queryDocumentSnapshot.getId())){
-                                continue;
-                            }
+        List<String> ids = new ArrayList<>(userIds);
+        List<Task<QuerySnapshot>> tasks = new ArrayList<>();
+        for(int i = 0; i < ids.size(); i += Constants.MAX_WHERE_IN_VALUES){
+            tasks.add(database.collection(Constants.KEY_COLLECTION_USERS)
+                    .whereIn(FieldPath.documentId(),
+                            new ArrayList<>(ids.subList(i, Math.min(i + Constants.MAX_WHERE_IN_VALUES, ids.size()))))
+                    .get());
+        }
+        Tasks.whenAllSuccess(tasks)
+                .addOnSuccessListener(results -> {
+                    List<User> users = new ArrayList<>();
+                    for(Object result : results){
+                        for(QueryDocumentSnapshot queryDocumentSnapshot : (QuerySnapshot) result){
                             User user = new User();
                             user.name = queryDocumentSnapshot.getString(Constants.KEY_NAME);
                             user.image = queryDocumentSnapshot.getString(Constants.KEY_IMAGE);
@@ -62,19 +118,43 @@ public class FriendsListActivity extends AppCompatActivity implements UserListen
                             user.setPublicKey(queryDocumentSnapshot.getString(Constants.KEY_PUBLIC_KEY));
                             user.id = queryDocumentSnapshot.getId();
                             user.setStatus(queryDocumentSnapshot.getString(Constants.KEY_STATUS));
+                            Long avatarVersion = queryDocumentSnapshot.getLong(Constants.KEY_AVATAR_VERSION);
+                            user.setAvatarVersion(avatarVersion != null ? avatarVersion : 0L);
+                            user.setAvatarThumbId(queryDocumentSnapshot.getString(Constants.KEY_AVATAR_THUMB_ID));
+                            user.setAvatarId(queryDocumentSnapshot.getString(Constants.KEY_AVATAR_ID));
                             users.add(user);
                         }
-                        if(!users.isEmpty()){
-                            UsersAdapter usersAdapter = new UsersAdapter(users,this,binding.getRoot().getContext());
-                            binding.userRecycleView.setAdapter(usersAdapter);
-                            binding.userRecycleView.setVisibility(View.VISIBLE);
-                        } else {
-                            showErrorMessage();
-                        }
-                    }else {
+                    }
+                    if(!users.isEmpty()){
+                        UsersAdapter usersAdapter = new UsersAdapter(users,this,binding.getRoot().getContext());
+                        binding.userRecycleView.setAdapter(usersAdapter);
+                        binding.userRecycleView.setVisibility(View.VISIBLE);
+                        loadThumbnails(users, usersAdapter);
+                    } else {
                         showErrorMessage();
                     }
-                });
+                })
+                .addOnFailureListener(e -> showErrorMessage());
+    }
+
+    /**
+     * method that will fill in the avatar thumbnails, which are kept apart from the user documents
+     * @param users the users being shown
+     * @param usersAdapter the adapter showing them
+     */
+    private void loadThumbnails(List<User> users, UsersAdapter usersAdapter){
+        AvatarController avatarController = AvatarController.getInstance(getApplicationContext());
+        for(int position = 0; position < users.size(); position++){
+            User user = users.get(position);
+            if(user.getAvatarThumbId() == null) continue;
+            int index = position;
+            avatarController.getThumbnail(user.id, user.getAvatarVersion(), user.getAvatarThumbId())
+                    .addOnSuccessListener(this, image -> {
+                        user.image = image;
+                        user.profilePictureUrl = image;
+                        usersAdapter.notifyItemChanged(index);
+                    });
+        }
     }
 
     /**
@@ -93,7 +173,8 @@ public class FriendsListActivity extends AppCompatActivity implements UserListen
     @Override
     public void onUserClicked(User user) {
         Intent intent = new Intent(this, ViewProfileActivity.class);
-        intent.putExtra(Constants.KEY_USER,user);
+        UserController.getInstance().rememberUser(user);
+        intent.putExtra(Constants.KEY_USER_ID,user.id);
         startActivity(intent);
     }
 }
\ No newline at end of file
@@ -13,28 +13,41 @@ import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 
 import com.example.talkoloco.R;
 import com.example.talkoloco.controllers.AuthController;
+import com.example.talkoloco.controllers.AvatarController;
+import com.example.talkoloco.controllers.ConversationController;
 import com.example.talkoloco.controllers.NavigationController;
+import com.example.talkoloco.controllers.OutboxController;
+import com.example.talkoloco.controllers.RegistryController;
 import com.example.talkoloco.controllers.UserController;
 import com.example.talkoloco.adapters.UsersAdapter;
+import com.example.talkoloco.database.AvatarStore;
 import com.example.talkoloco.databinding.ActivityHomeBinding;
+import com.example.talkoloco.models.InboxEntry;
 import com.example.talkoloco.models.User;
 import com.example.talkoloco.listeners.UserListener;
+import com.example.talkoloco.utils.AppExecutors;
 import com.example.talkoloco.utils.Constants;
 import com.example.talkoloco.utils.Hash;
 import com.example.talkoloco.utils.PreferenceManager;
 import com.example.talkoloco.utils.PhoneNumberFormatter;
-import com.google.android.gms.tasks.OnFailureListener;
-import com.google.android.gms.tasks.OnSuccessListener;
+import com.example.talkoloco.utils.SignalSessionManager;
+import com.example.talkoloco.utils.TaskUtils;
+import com.google.android.gms.tasks.CancellationTokenSource;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
 import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.Query;
 import com.google.firebase.firestore.QueryDocumentSnapshot;
+import com.google.firebase.messaging.FirebaseMessaging;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Main home screen of the application that displays user contacts and provides
@@ -47,7 +60,11 @@ public class HomeActivity extends AppCompatActivity implements UserListener {
     private NavigationController navigationController;
     private AuthController authController;
     private UserController userController;
+    private ConversationController conversationController;
     private PreferenceManager preferenceManager;
+    private UsersAdapter usersAdapter;
+    private final List<User> users = new ArrayList<>();
+    private final CancellationTokenSource lifecycleCancellation = new CancellationTokenSource();
     private static final String TAG = "HomeActivity";
 
     /**
@@ -66,14 +83,37 @@ public class HomeActivity extends AppCompatActivity implements UserListener {
         navigationController = new NavigationController(this);
         authController = AuthController.getInstance();
         userController = UserController.getInstance();
+        conversationController = ConversationController.getInstance();
 
         // Setup bottom navigation and chat initialization buttons
         navigationController.setupNavigation(binding.bottomNavigationView);
         binding.addChatIcon.setOnClickListener(v -> showNewChatDialog());
         binding.startMessaging.setOnClickListener(v -> showNewChatDialog());
 
-        // Load existing users
-        getUsers();
+        // Publish this device's session keys so other users can start encrypted chats
+        String currentUserId = preferenceManager.getString(Constants.KEY_USER_ID);
+        if (currentUserId != null) {
+            SignalSessionManager.getInstance(getApplicationContext()).ensureRegistered(currentUserId);
+        }
+
+        // Register this device for pushes about new messages
+        if (currentUserId != null) {
+            FirebaseMessaging.getInstance().getToken().addOnSuccessListener(token -> {
+                if (!token.equals(preferenceManager.getString(Constants.KEY_FCM_TOKEN))) {
+                    UserController.getInstance().updateFcmToken(currentUserId, token);
+                    preferenceManager.putString(Constants.KEY_FCM_TOKEN, token);
+                }
+            });
+        }
+
+        // Catch up on registered numbers so the new chat dialog can check them offline
+        RegistryController.getInstance(getApplicationContext()).sync();
+
+        // Send messages left in the outbox when the app was last closed
+        OutboxController.getInstance(getApplicationContext()).flush();
+
+        // Load existing conversations
+        getConversations();
     }
 
     /**
@@ -89,6 +129,10 @@ public class HomeActivity extends AppCompatActivity implements UserListener {
         Button startChatButton = dialogView.findViewById(R.id.startChatButton);
         TextView cancelButton = dialogView.findViewById(R.id.cancelButton);
 
+        RegistryController registryController = RegistryController.getInstance(getApplicationContext());
+        // Catch up on numbers registered since the screen was created
+        registryController.sync();
+
         // Initially disable chat button until valid number is entered
         startChatButton.setEnabled(false);
 
@@ -146,13 +190,19 @@ public class HomeActivity extends AppCompatActivity implements UserListener {
                     s.replace(0, s.length(), formattedText);
                 }
 
-                // Enable button only for complete phone numbers
+                // Enable button for complete phone numbers. The local filter can be behind
+                // on recent sign ups, so a number it does not know is only flagged, and the
+                // exact lookup still runs when the chat is started
                 boolean isComplete = digits.length() == 11;
+                boolean isProbablyUnregistered = isComplete && Boolean.FALSE.equals(
+                        registryController.isProbablyRegistered(PhoneNumberFormatter.normalize(digits)));
                 startChatButton.setEnabled(isComplete);
 
-                // Show error for incomplete numbers
+                // Show error for incomplete numbers and a hint for unknown ones
                 if (digits.length() > 1 && !isComplete) {
                     phoneInput.setError("Enter a complete phone number");
+                } else if (isProbablyUnregistered) {
+                    phoneInput.setError("This number may not be on TalkoLoco yet");
                 } else {
                     phoneInput.setError(null);
                 }
@@ -202,31 +252,13 @@ public class HomeActivity extends AppCompatActivity implements UserListener {
             return;
         }
 
-        // Query user by phone number using UserController
-        userController.getUserByPhoneNumber(phoneNumber,
-                new OnSuccessListener<User>() {
-                    @Override
-                    public void onSuccess(User user) {
-                        // Create chat user object with necessary information
-                        User chatUser = new User();
-                        chatUser.name = user.getName();
-                        chatUser.id = user.getUserId();
-                        chatUser.profilePictureUrl = user.getProfilePictureUrl();
-                        chatUser.setPublicKey(user.getPublicKey()); // Required for encrypted communication
-
-                        // Navigate to chat
-                        startNewChatWithUser(chatUser);
-                    }
-                },
-                new OnFailureListener() {
-                    @Override
-                    public void onFailure(@NonNull Exception e) {
-                        Toast.makeText(HomeActivity.this,
-                                "No user found with this phone number",
-                                Toast.LENGTH_SHORT).show();
-                    }
-                }
-        );
+        // Query user by phone number using UserController; dropped if the screen closes first
+        TaskUtils.withCancellation(userController.getUserByPhoneNumber(phoneNumber), lifecycleCancellation.getToken())
+                // Navigate to chat, the user carries the public key needed for encryption
+                .addOnSuccessListener(this::startNewChatWithUser)
+                .addOnFailureListener(e -> Toast.makeText(HomeActivity.this,
+                        "No user found with this phone number",
+                        Toast.LENGTH_SHORT).show());
     }
 
     /**
@@ -244,7 +276,8 @@ public class HomeActivity extends AppCompatActivity implements UserListener {
     }
 
     /**
-     * Launches the ChatActivity with the selected user's information.
+     * Launches the ChatActivity for the selected user. Only the ID goes into the Intent,
+     * the chat screen picks the user up from UserController.
      *
      * @param user The User object containing chat participant details
      */
@@ -256,7 +289,8 @@ public class HomeActivity extends AppCompatActivity implements UserListener {
         }
         // Navigate to ChatActivity with the user details
         Intent intent = new Intent(this, ChatActivity.class);
-        intent.putExtra(Constants.KEY_USER, user); // Pass user object to ChatActivity
+        userController.rememberUser(user);
+        intent.putExtra(Constants.KEY_USER_ID, user.id);
         startActivity(intent);
     }
 
@@ -281,49 +315,167 @@ public class HomeActivity extends AppCompatActivity implements UserListener {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        lifecycleCancellation.cancel(); // Drop lookups this screen was waiting for
         binding = null; // Prevent memory leaks
     }
 
     /**
-     * Retrieves and displays the list of available users from Firebase.
-     * Filters out the current user from the list.
+     * Retrieves and displays the user's conversations from their inbox, newest first.
+     * Inboxes of users from before inboxes existed are built once from their old messages.
+     */
+    private void getConversations() {
+        String currentUserId = preferenceManager.getString(Constants.KEY_USER_ID);
+        if (currentUserId == null) {
+            showErrorMessage();
+            return;
+        }
+
+        if (preferenceManager.getBoolean(Constants.KEY_INBOX_BACKFILLED)) {
+            loadInbox(currentUserId);
+            return;
+        }
+        conversationController.backfillInbox(currentUserId,
+                aVoid -> {
+                    preferenceManager.putBoolean(Constants.KEY_INBOX_BACKFILLED, true);
+                    loadInbox(currentUserId);
+                },
+                e -> loadInbox(currentUserId));
+    }
+
+    /**
+     * Loads the inbox summaries and shows one row per conversation. Avatars come from the
+     * local avatar store and are only downloaded for peers whose avatar version changed.
+     *
+     * @param currentUserId the ID of the signed in user
+     */
+    private void loadInbox(String currentUserId) {
+        conversationController.getInbox(currentUserId)
+                .orderBy(Constants.KEY_TIMESTAMP, Query.Direction.DESCENDING)
+                .get()
+                .addOnSuccessListener(querySnapshot -> {
+                    if (binding == null) return;
+                    users.clear();
+                    Map<String, Long> avatarVersions = new HashMap<>();
+                    for (QueryDocumentSnapshot queryDocumentSnapshot : querySnapshot) {
+                        InboxEntry entry = queryDocumentSnapshot.toObject(InboxEntry.class);
+                        if (entry.peerId == null) continue;
+
+                        // Create user object from inbox entry
+                        User user = new User();
+                        user.id = entry.peerId;
+                        user.name = entry.peerName;
+                        user.setAvatarVersion(entry.peerAvatarVersion);
+                        users.add(user);
+                        avatarVersions.put(entry.peerId, entry.peerAvatarVersion);
+                    }
+
+                    if (users.isEmpty()) {
+                        showErrorMessage();
+                        return;
+                    }
+                    usersAdapter = new UsersAdapter(users, this, binding.getRoot().getContext());
+                    binding.userRecycleView.setAdapter(usersAdapter);
+                    binding.userRecycleView.setVisibility(View.VISIBLE);
+                    loadAvatars(avatarVersions);
+                })
+                .addOnFailureListener(e -> {
+                    Log.e(TAG, "Error loading inbox", e);
+                    showErrorMessage();
+                });
+    }
+
+    /**
+     * Fills in stored avatars and fetches the ones that are missing or out of date.
+     *
+     * @param avatarVersions the current avatar version of each peer
      */
-    private void getUsers(){
+    private void loadAvatars(Map<String, Long> avatarVersions) {
+        AvatarStore avatarStore = AvatarStore.getInstance(getApplicationContext());
+        AppExecutors.getInstance().diskIO().execute(() -> {
+            Map<String, AvatarStore.Avatar> storedAvatars = avatarStore.getAvatars(avatarVersions.keySet());
+            AppExecutors.getInstance().mainThread().execute(() -> {
+                if (binding == null) return;
+                List<String> staleIds = new ArrayList<>();
+                for (Map.Entry<String, Long> avatarVersion : avatarVersions.entrySet()) {
+                    AvatarStore.Avatar storedAvatar = storedAvatars.get(avatarVersion.getKey());
+                    if (storedAvatar != null && storedAvatar.version == avatarVersion.getValue()) {
+                        updatePeer(avatarVersion.getKey(), null, storedAvatar.image, null);
+                    } else {
+                        staleIds.add(avatarVersion.getKey());
+                    }
+                }
+                fetchPeers(staleIds);
+            });
+        });
+    }
+
+    /**
+     * Downloads the user documents of peers whose avatar is missing or out of date,
+     * in small whereIn chunks, and stores their avatars for the next launch.
+     *
+     * @param peerIds the peers to fetch
+     */
+    private void fetchPeers(List<String> peerIds) {
         FirebaseFirestore database = FirebaseFirestore.getInstance();
-        database.collection(Constants.KEY_COLLECTION_USERS).get()
-                .addOnCompleteListener(task -> {
-                    String currentUserId = preferenceManager.getString(Constants.KEY_USER_ID);
-                    if(task.isSuccessful() && task.getResult() !=null){
-                        List<User> users = new ArrayList<>();
-                        // Process each user document
-                        for(QueryDocumentSnapshot queryDocumentSnapshot : task.getResult()){
-                            // Skip current user
-                            if(currentUserId.equals(queryDocumentSnapshot.getId())){
+        AvatarStore avatarStore = AvatarStore.getInstance(getApplicationContext());
+        for (int i = 0; i < peerIds.size(); i += Constants.MAX_WHERE_IN_VALUES) {
+            database.collection(Constants.KEY_COLLECTION_USERS)
+                    .whereIn(FieldPath.documentId(),
+                            peerIds.subList(i, Math.min(i + Constants.MAX_WHERE_IN_VALUES, peerIds.size())))
+                    .get()
+                    .addOnSuccessListener(querySnapshot -> {
+                        for (DocumentSnapshot peer : querySnapshot.getDocuments()) {
+                            Long avatarVersion = peer.getLong(Constants.KEY_AVATAR_VERSION);
+                            long version = avatarVersion != null ? avatarVersion : 0L;
+                            String name = peer.getString(Constants.KEY_NAME);
+                            String publicKey = peer.getString(Constants.KEY_PUBLIC_KEY);
+                            String thumbId = peer.getString(Constants.KEY_AVATAR_THUMB_ID);
+                            if (thumbId != null) {
+                                // Thumbnail lives in its own document, stored once fetched
+                                AvatarController.getInstance(this)
+                                        .getThumbnail(peer.getId(), version, thumbId)
+                                        .addOnSuccessListener(this, image ->
+                                                updatePeer(peer.getId(), name, image, publicKey))
+                                        .addOnFailureListener(this, e ->
+                                                Log.e(TAG, "Error fetching avatar", e));
                                 continue;
                             }
-                            // Create user object from document data
-                            User user = new User();
-                            user.name = queryDocumentSnapshot.getString(Constants.KEY_NAME);
-                            user.image = queryDocumentSnapshot.getString(Constants.KEY_IMAGE);
-                            user.profilePictureUrl = queryDocumentSnapshot.getString(Constants.KEY_IMAGE);
-                            user.token = queryDocumentSnapshot.getString(Constants.KEY_FCM_TOKEN);
-                            user.setPublicKey(queryDocumentSnapshot.getString(Constants.KEY_PUBLIC_KEY));
-                            user.id = queryDocumentSnapshot.getId();
-                            user.setStatus(queryDocumentSnapshot.getString(Constants.KEY_STATUS));
-                            users.add(user);
-                        }
-                        // Update UI based on results
-                        if(!users.isEmpty()){
-                            UsersAdapter usersAdapter = new UsersAdapter(users,this,binding.getRoot().getContext());
-                            binding.userRecycleView.setAdapter(usersAdapter);
-                            binding.userRecycleView.setVisibility(View.VISIBLE);
-                        } else {
-                            showErrorMessage();
+                            // Profiles saved before avatars had their own documents
+                            String image = peer.getString(Constants.KEY_IMAGE);
+                            AppExecutors.getInstance().diskIO().execute(() ->
+                                    avatarStore.saveAvatar(peer.getId(), version, image));
+                            updatePeer(peer.getId(), name, image, publicKey);
                         }
-                    }else {
-                        showErrorMessage();
-                    }
-                });
+                    })
+                    .addOnFailureListener(e -> Log.e(TAG, "Error fetching peers", e));
+        }
+    }
+
+    /**
+     * Updates the row of a peer with newly known details.
+     *
+     * @param peerId    the ID of the peer
+     * @param name      the peer's name, or null to keep the current one
+     * @param image     the peer's Base64 avatar
+     * @param publicKey the peer's public key, or null to keep the current one
+     */
+    private void updatePeer(String peerId, String name, String image, String publicKey) {
+        if (binding == null || usersAdapter == null) return;
+        for (int position = 0; position < users.size(); position++) {
+            User user = users.get(position);
+            if (!peerId.equals(user.id)) continue;
+
+            user.image = image;
+            user.profilePictureUrl = image;
+            if (name != null) {
+                user.name = name;
+            }
+            if (publicKey != null) {
+                user.setPublicKey(publicKey);
+            }
+            usersAdapter.notifyItemChanged(position);
+            return;
+        }
     }
 
     /**
@@ -343,8 +495,21 @@ public class HomeActivity extends AppCompatActivity implements UserListener {
      */
     @Override
     public void onUserClicked(User user) {
-        Intent intent = new Intent(this, ChatActivity.class);
-        intent.putExtra(Constants.KEY_USER,user);
-        startActivity(intent);
+        if (user.getPublicKey() != null) {
+            startNewChatWithUser(user);
+            return;
+        }
+        // Inbox rows do not carry the peer's key, fetch it before opening the chat
+        TaskUtils.withCancellation(userController.getUserById(user.id), lifecycleCancellation.getToken())
+                .addOnSuccessListener(fetchedUser -> {
+                    user.setPublicKey(fetchedUser.getPublicKey());
+                    if (user.name == null) {
+                        user.name = fetchedUser.getName();
+                    }
+                    startNewChatWithUser(user);
+                })
+                .addOnFailureListener(e -> Toast.makeText(HomeActivity.this,
+                        "Could not load user details",
+                        Toast.LENGTH_SHORT).show());
     }
 }
\ No newline at end of file
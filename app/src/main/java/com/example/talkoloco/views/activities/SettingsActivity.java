@@ -25,7 +25,9 @@ import androidx.appcompat.app.AppCompatActivity;
 
 import com.example.talkoloco.R;
 import com.example.talkoloco.controllers.AuthController;
+import com.example.talkoloco.controllers.AvatarController;
 import com.example.talkoloco.controllers.NavigationController;
+import com.example.talkoloco.controllers.RegistryController;
 import com.example.talkoloco.controllers.UserController;
 import com.example.talkoloco.databinding.ActivitySettingsBinding;
 import com.example.talkoloco.models.User;
@@ -42,6 +44,7 @@ import com.google.firebase.FirebaseException;
 import com.google.firebase.auth.PhoneAuthCredential;
 import com.google.firebase.auth.PhoneAuthProvider;
 import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.ListenerRegistration;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -64,6 +67,7 @@ public class SettingsActivity extends AppCompatActivity {
     private boolean isPhoneUpdated = false;
     private boolean isNameUpdated = false;
     private boolean isStatusUpdated = false;
+    private ListenerRegistration userRegistration;
 
     private final ActivityResultLauncher<Intent> imagePickerLauncher = registerForActivityResult(
             new ActivityResultContracts.StartActivityForResult(),
@@ -105,6 +109,28 @@ public class SettingsActivity extends AppCompatActivity {
         // load user data
         loadUserData();
     }
+
+    /**
+     * keeps the cached profile of the signed in user current while settings are shown,
+     * so coming back to this screen renders up to date data from memory
+     */
+    @Override
+    protected void onStart() {
+        super.onStart();
+        String userId = authController.getCurrentUserId();
+        if (userId != null) {
+            userRegistration = userController.watchUser(userId);
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        if (userRegistration != null) {
+            userRegistration.remove();
+            userRegistration = null;
+        }
+    }
     /**
      * Sets up the dark mode toggle functionality.
      * Updates the button icon based on current theme and handles theme switching.
@@ -204,10 +230,9 @@ public class SettingsActivity extends AppCompatActivity {
         if (!newName.isEmpty() && currentUser != null) {
             String userId = authController.getCurrentUserId();
             if (userId != null) {
-                userController.updateUserProfile(
-                        userId,
-                        newName,
-                        currentUser.getProfilePictureUrl(),
+                Map<String, Object> updates = new HashMap<>();
+                updates.put(Constants.KEY_NAME, newName);
+                userController.updateFields(userId, updates,
                         aVoid -> {
                             Toast.makeText(this, "Name updated successfully", Toast.LENGTH_SHORT).show();
                             binding.nameInput.setEnabled(false);
@@ -215,6 +240,7 @@ public class SettingsActivity extends AppCompatActivity {
                             hideKeyboard();
                             isNameEditing = false;
                             currentUser.setName(newName);
+                            new PreferenceManager(this).putString(Constants.KEY_NAME, newName);
                         },
                         e -> Toast.makeText(this, "Failed to update name", Toast.LENGTH_SHORT).show()
                 );
@@ -380,7 +406,7 @@ public class SettingsActivity extends AppCompatActivity {
                 .show();
 
         // Check in Firebase for duplicates
-        userController.doesPhoneNumberExist(newPhoneNumber, exists -> {
+        userController.doesPhoneNumberExist(newPhoneNumber).addOnSuccessListener(this, exists -> {
             if (exists) {
                 Toast.makeText(this, "This phone number is already in use.", Toast.LENGTH_SHORT).show();
                 binding.currentPhoneNumber.setText(originalPhoneNumber);
@@ -389,7 +415,7 @@ public class SettingsActivity extends AppCompatActivity {
                 // If the number is valid and not in use, update it
                 updateUserPhoneNumber(newPhoneNumber);
             }
-        }, e -> {
+        }).addOnFailureListener(this, e -> {
             Toast.makeText(this, "Error checking phone number existence.", Toast.LENGTH_SHORT).show();
             binding.currentPhoneNumber.setText(originalPhoneNumber);
             resetPhoneEditState();
@@ -402,7 +428,7 @@ public class SettingsActivity extends AppCompatActivity {
      */
     private void checkAndSavePhoneNumber(String newPhoneNumber) {
         // Check in Firebase for duplicates
-        userController.doesPhoneNumberExist(newPhoneNumber, exists -> {
+        userController.doesPhoneNumberExist(newPhoneNumber).addOnSuccessListener(this, exists -> {
             if (exists) {
                 Toast.makeText(this, "This phone number is already in use.", Toast.LENGTH_SHORT).show();
                 binding.currentPhoneNumber.setText(originalPhoneNumber);
@@ -411,7 +437,7 @@ public class SettingsActivity extends AppCompatActivity {
                 // If the number is valid and not in use, update it
                 updateUserPhoneNumber(newPhoneNumber);
             }
-        }, e -> {
+        }).addOnFailureListener(this, e -> {
             Toast.makeText(this, "Error checking phone number existence.", Toast.LENGTH_SHORT).show();
             binding.currentPhoneNumber.setText(originalPhoneNumber);
             resetPhoneEditState();
@@ -481,6 +507,8 @@ public class SettingsActivity extends AppCompatActivity {
                         // Update local storage
                         PreferenceManager preferenceManager = new PreferenceManager(this);
                         preferenceManager.putString(Constants.KEY_PHONE_NUMBER, newPhoneNumber);
+                        RegistryController.getInstance(getApplicationContext())
+                                .register(Hash.hashPhoneNumber(newPhoneNumber));
 
                         // Update UI and current user
                         currentUser.setPhoneNumber(newPhoneNumber);
@@ -786,28 +814,20 @@ public class SettingsActivity extends AppCompatActivity {
     }
 
     /**
-     * method that will load the data from the user
+     * method that will load the data from the user.
+     * a cached profile is shown straight away, then replaced by a fresh one if it was stale
      */
     private void loadUserData() {
         binding.profileIcon.setAlpha(0.5f);
         String userId = authController.getCurrentUserId();
         if (userId != null) {
             userController.getUserById(userId,
+                    this::showUserData,
                     user -> {
-                        if (user != null) {
-                            currentUser = user; // Update local user object
-                            updateUI(user);
-
-                            // Fetch and prioritize locally stored phone number
-                            PreferenceManager preferenceManager = new PreferenceManager(this);
-                            String displayNumber = preferenceManager.getString(Constants.KEY_PHONE_NUMBER);
-                            if (displayNumber != null) {
-                                binding.currentPhoneNumber.setText(displayNumber); // Use locally stored number
-                            } else {
-                                binding.currentPhoneNumber.setText(user.getPhoneNumber() != null ? user.getPhoneNumber() : "No phone number available");
-                            }
+                        // do not overwrite a field the user is in the middle of editing
+                        if (!isNameEditing && !isPhoneEditing) {
+                            showUserData(user);
                         }
-                        binding.profileIcon.setAlpha(1.0f);
                     },
                     e -> {
                         Log.e(TAG, "Error loading user data", e);
@@ -818,6 +838,28 @@ public class SettingsActivity extends AppCompatActivity {
         }
     }
 
+    /**
+     * method that will show the loaded user data
+     * @param user user object
+     */
+    private void showUserData(User user) {
+        if (user != null) {
+            currentUser = user; // Update local user object
+            updateUI(user);
+
+            // Fetch and prioritize locally stored phone number
+            PreferenceManager preferenceManager = new PreferenceManager(this);
+            preferenceManager.putLong(Constants.KEY_AVATAR_VERSION, user.getAvatarVersion());
+            String displayNumber = preferenceManager.getString(Constants.KEY_PHONE_NUMBER);
+            if (displayNumber != null) {
+                binding.currentPhoneNumber.setText(displayNumber); // Use locally stored number
+            } else {
+                binding.currentPhoneNumber.setText(user.getPhoneNumber() != null ? user.getPhoneNumber() : "No phone number available");
+            }
+        }
+        binding.profileIcon.setAlpha(1.0f);
+    }
+
     /**
      * method that will update ui with user info
      * @param user user object
@@ -867,7 +909,9 @@ public class SettingsActivity extends AppCompatActivity {
             }
 
             // sets profile picture if available
-            if (user.getProfilePictureUrl() != null) {
+            if (user.getAvatarId() != null) {
+                loadFullAvatar(user);
+            } else if (user.getProfilePictureUrl() != null) {
                 Bitmap profileBitmap = ImageHandler.decodeImage(user.getProfilePictureUrl());
                 if (profileBitmap != null) {
                     binding.profileIcon.setImageBitmap(profileBitmap);
@@ -887,6 +931,27 @@ public class SettingsActivity extends AppCompatActivity {
         }
     }
 
+    /**
+     * method that will load the full size avatar of the user, kept apart from the user document
+     * @param user user object
+     */
+    private void loadFullAvatar(User user) {
+        AvatarController.getInstance(this).getFullImage(user.getAvatarId())
+                .addOnSuccessListener(this, image -> {
+                    if (currentUser != user) {
+                        return; // a newer copy of the user is showing
+                    }
+                    Bitmap profileBitmap = ImageHandler.decodeImage(image);
+                    if (profileBitmap != null) {
+                        // the fullscreen viewer reads the picture from here
+                        user.setProfilePictureUrl(image);
+                        binding.profileIcon.setImageBitmap(profileBitmap);
+                        Log.d(TAG, "Set profile picture");
+                    }
+                })
+                .addOnFailureListener(this, e -> Log.e(TAG, "Failed to load profile picture", e));
+    }
+
     /**
      * method that will show keyboard
      * @param view view
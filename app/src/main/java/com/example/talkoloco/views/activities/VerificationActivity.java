@@ -12,12 +12,12 @@ import androidx.appcompat.app.AppCompatActivity;
 import com.example.talkoloco.R;
 import com.example.talkoloco.controllers.AuthController;
 import com.example.talkoloco.controllers.UserController;
+import com.example.talkoloco.models.User;
 import com.example.talkoloco.utils.Constants;
 import com.example.talkoloco.utils.PreferenceManager;
 import com.google.firebase.FirebaseException;
 import com.google.firebase.auth.PhoneAuthCredential;
 import com.google.firebase.auth.PhoneAuthProvider;
-import com.google.firebase.firestore.FirebaseFirestore;
 
 import org.signal.libsignal.protocol.state.PreKeyBundle;
 
@@ -167,35 +167,31 @@ public class VerificationActivity extends AppCompatActivity {
             return;
         }
         // Check user existence and proceed accordingly
-        userController.checkIfUserExists(userId,
-                exists -> {
-                    if (exists) {
-                        // For existing users, save their data to preferences
-                        FirebaseFirestore.getInstance()
-                                .collection(Constants.KEY_COLLECTION_USERS)
-                                .document(userId)
-                                .get()
-                                .addOnSuccessListener(documentSnapshot -> {
-                                    if (documentSnapshot.exists()) {
-                                        // Save the name if it exists
-                                        String name = documentSnapshot.getString(Constants.KEY_NAME);
-                                        if (name != null) {
-                                            preferenceManager.putString(Constants.KEY_NAME, name);
-                                        }
-                                    }
-                                    Log.d(TAG, "Navigating to Home with userId: " + userId);
-                                    navigateToHome();
-                                })
-                                .addOnFailureListener(e -> {
-                                    Log.e(TAG, "Error fetching user data", e);
-                                    navigateToHome(); // Still proceed even if additional data fetch fails
-                                });
-                    } else {
+        userController.checkIfUserExists(userId)
+                .addOnSuccessListener(this, exists -> {
+                    if (!exists) {
                         Log.d(TAG, "New user, navigating to Profile Creation with userId: " + userId);
                         navigateToProfileCreation();
+                        return;
                     }
-                },
-                e -> {
+                    // For existing users, save their data to preferences;
+                    // the existence check cached the profile, so this is not another read
+                    userController.getUserById(userId).addOnCompleteListener(this, task -> {
+                        if (task.isSuccessful()) {
+                            User user = task.getResult();
+                            if (user.getName() != null) {
+                                preferenceManager.putString(Constants.KEY_NAME, user.getName());
+                            }
+                            preferenceManager.putLong(Constants.KEY_AVATAR_VERSION, user.getAvatarVersion());
+                        } else {
+                            // Still proceed even if additional data fetch fails
+                            Log.e(TAG, "Error fetching user data", task.getException());
+                        }
+                        Log.d(TAG, "Navigating to Home with userId: " + userId);
+                        navigateToHome();
+                    });
+                })
+                .addOnFailureListener(this, e -> {
                     Log.e(TAG, "Error checking user existence", e);
                     Toast.makeText(this, "Error verifying user status", Toast.LENGTH_SHORT).show();
                     onVerificationFailed();
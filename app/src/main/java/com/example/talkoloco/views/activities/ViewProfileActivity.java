@@ -8,7 +8,9 @@ import android.util.Log;
 import android.widget.Toast;
 
 import androidx.appcompat.app.AppCompatActivity;
+import com.example.talkoloco.controllers.AvatarController;
 import com.example.talkoloco.controllers.NavigationController;
+import com.example.talkoloco.controllers.UserController;
 import com.example.talkoloco.databinding.ActivityViewProfileBinding;
 import com.example.talkoloco.models.User;
 import com.example.talkoloco.utils.Constants;
@@ -34,35 +36,59 @@ public class ViewProfileActivity extends AppCompatActivity {
 
         navigationController.setupNavigation(binding.bottomNavigationView);
 
-        viewedUser = (User) getIntent().getSerializableExtra(Constants.KEY_USER);
-        if (viewedUser == null) {
-            Log.e(TAG, "Receiver user is null");
+        // only the ID is passed in the Intent
+        String userId = getIntent().getStringExtra(Constants.KEY_USER_ID);
+        if (userId == null) {
+            Log.e(TAG, "Receiver user ID is null");
             Toast.makeText(this, "Error: No user data received", Toast.LENGTH_SHORT).show();
             finish();
             return;
         }
 
-        loadReceiverDetails();
+        // show the user as the previous screen had it, then as currently stored
+        viewedUser = UserController.getInstance().peekUser(userId);
+        if (viewedUser != null) {
+            loadReceiverDetails();
+        }
+        UserController.getInstance().getUserById(userId)
+                .addOnSuccessListener(this, user -> {
+                    viewedUser = user;
+                    loadReceiverDetails();
+                })
+                .addOnFailureListener(this, e -> {
+                    Log.e(TAG, "Failed to load user", e);
+                    if (viewedUser == null) {
+                        Toast.makeText(this, "User details not found", Toast.LENGTH_SHORT).show();
+                        finish();
+                    }
+                });
     }
 
     /**
      * method that loads details from clicked user
      */
     private void loadReceiverDetails() {
-        viewedUser = (User) getIntent().getSerializableExtra(Constants.KEY_USER);
         //handle profile picture
-        Bitmap profileBitmap = ImageHandler.decodeImage(viewedUser.getProfilePictureUrl());
-        if (viewedUser != null && viewedUser.profilePictureUrl != null && !viewedUser.profilePictureUrl.isEmpty()) {
-            binding.profileIcon.setImageBitmap(profileBitmap);
+        if (viewedUser.profilePictureUrl != null && !viewedUser.profilePictureUrl.isEmpty()) {
+            Bitmap profileBitmap = ImageHandler.decodeImage(viewedUser.getProfilePictureUrl());
+            if (profileBitmap != null) {
+                binding.profileIcon.setImageBitmap(profileBitmap);
+            }
         }
-
-        if (viewedUser != null) {
-            binding.nameOutput.setText(viewedUser.getName());
-            binding.aboutOutput.setText(viewedUser.getStatus());
-        } else {
-            Toast.makeText(this, "User details not found", Toast.LENGTH_SHORT).show();
-            finish(); // Close the activity if no user details are found
+        // the list only had the thumbnail, swap in the full size avatar
+        if (viewedUser.getAvatarId() != null) {
+            AvatarController.getInstance(this).getFullImage(viewedUser.getAvatarId())
+                    .addOnSuccessListener(this, image -> {
+                        Bitmap fullBitmap = ImageHandler.decodeImage(image);
+                        if (fullBitmap != null) {
+                            binding.profileIcon.setImageBitmap(fullBitmap);
+                        }
+                    })
+                    .addOnFailureListener(this, e -> Log.e(TAG, "Failed to load profile picture", e));
         }
+
+        binding.nameOutput.setText(viewedUser.getName());
+        binding.aboutOutput.setText(viewedUser.getStatus());
     }
 
 
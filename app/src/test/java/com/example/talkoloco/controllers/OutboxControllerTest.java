@@ -0,0 +1,64 @@
+package com.example.talkoloco.controllers;
+
+import com.google.firebase.firestore.FirebaseFirestoreException;
+import com.google.firebase.firestore.FirebaseFirestoreException.Code;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the failure handling of {@link OutboxController}.
+ */
+public class OutboxControllerTest {
+
+    private static FirebaseFirestoreException error(Code code) {
+        return new FirebaseFirestoreException("write failed", code);
+    }
+
+    @Test
+    public void isRetryable_retriesTransientErrors() {
+        for (Code code : new Code[]{Code.CANCELLED, Code.UNKNOWN, Code.DEADLINE_EXCEEDED,
+                Code.RESOURCE_EXHAUSTED, Code.ABORTED, Code.INTERNAL, Code.UNAVAILABLE,
+                Code.UNAUTHENTICATED}) {
+            assertTrue(code.name(), OutboxController.isRetryable(error(code)));
+        }
+    }
+
+    @Test
+    public void isRetryable_rejectsErrorsThatRepeat() {
+        for (Code code : new Code[]{Code.INVALID_ARGUMENT, Code.NOT_FOUND, Code.ALREADY_EXISTS,
+                Code.PERMISSION_DENIED, Code.FAILED_PRECONDITION, Code.OUT_OF_RANGE,
+                Code.UNIMPLEMENTED, Code.DATA_LOSS}) {
+            assertFalse(code.name(), OutboxController.isRetryable(error(code)));
+        }
+    }
+
+    @Test
+    public void isRetryable_retriesOtherExceptions() {
+        assertTrue(OutboxController.isRetryable(new IOException("connection reset")));
+    }
+
+    @Test
+    public void countsAsAttempt_ignoresUnreachableServer() {
+        assertFalse(OutboxController.countsAsAttempt(error(Code.UNAVAILABLE)));
+    }
+
+    @Test
+    public void countsAsAttempt_countsOtherFailures() {
+        assertTrue(OutboxController.countsAsAttempt(error(Code.DEADLINE_EXCEEDED)));
+        assertTrue(OutboxController.countsAsAttempt(error(Code.ABORTED)));
+        assertTrue(OutboxController.countsAsAttempt(new IOException("connection reset")));
+    }
+
+    @Test
+    public void retryDelay_doublesUpToAMinute() {
+        assertEquals(1000, OutboxController.retryDelay(1));
+        assertEquals(2000, OutboxController.retryDelay(2));
+        assertEquals(32000, OutboxController.retryDelay(6));
+        assertEquals(60000, OutboxController.retryDelay(7));
+        assertEquals(60000, OutboxController.retryDelay(100));
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.talkoloco.database;
+
+import com.google.firebase.firestore.Blob;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the JSON payload of {@link Outbox} messages.
+ */
+public class OutboxPayloadTest {
+
+    private static Map<String, Object> roundTrip(Map<String, Object> document) throws Exception {
+        // Payloads are stored as text, so they go through a string like in the database
+        String payload = Outbox.encodeDocument(document).toString();
+        return Outbox.decodeDocument(new JSONObject(payload));
+    }
+
+    @Test
+    public void payload_keepsPlainValues() throws Exception {
+        Map<String, Object> document = new HashMap<>();
+        document.put("senderId", "alice");
+        document.put("messageType", "text");
+        document.put("signalMessageType", 3);
+        document.put("hasKyber", true);
+
+        Map<String, Object> decoded = roundTrip(document);
+
+        assertEquals(document, decoded);
+    }
+
+    @Test
+    public void payload_keepsBlobsAndDates() throws Exception {
+        byte[] bytes = new byte[256];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        Date timestamp = new Date(1729131769123L);
+        Map<String, Object> document = new HashMap<>();
+        document.put("envelope", Blob.fromBytes(bytes));
+        document.put("timestamp", timestamp);
+
+        Map<String, Object> decoded = roundTrip(document);
+
+        assertTrue(decoded.get("envelope") instanceof Blob);
+        assertArrayEquals(bytes, ((Blob) decoded.get("envelope")).toBytes());
+        assertEquals(timestamp, decoded.get("timestamp"));
+    }
+
+    @Test
+    public void payload_keepsListsAndNulls() throws Exception {
+        Map<String, Object> document = new HashMap<>();
+        document.put("tags", Arrays.asList("alice", "bob"));
+        document.put("parts", Arrays.asList(Blob.fromBytes(new byte[]{1, 2}), null));
+        document.put("thumbnail", null);
+
+        Map<String, Object> decoded = roundTrip(document);
+
+        assertEquals(Arrays.asList("alice", "bob"), decoded.get("tags"));
+        List<?> parts = (List<?>) decoded.get("parts");
+        assertEquals(2, parts.size());
+        assertArrayEquals(new byte[]{1, 2}, ((Blob) parts.get(0)).toBytes());
+        assertNull(parts.get(1));
+        assertTrue(decoded.containsKey("thumbnail"));
+        assertNull(decoded.get("thumbnail"));
+    }
+
+    @Test
+    public void payload_keepsEmptyDocument() throws Exception {
+        assertTrue(roundTrip(new HashMap<>()).isEmpty());
+    }
+}
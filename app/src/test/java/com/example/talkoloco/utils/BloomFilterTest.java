@@ -0,0 +1,81 @@
+package com.example.talkoloco.utils;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link BloomFilter}.
+ */
+public class BloomFilterTest {
+
+    private static byte[] key(int h1, int h2) {
+        return ByteBuffer.allocate(32).putInt(h1).putInt(h2).array();
+    }
+
+    @Test
+    public void put_setsDoubleHashedPositions() {
+        BloomFilter filter = new BloomFilter(2, 3);
+
+        assertTrue(filter.put(key(1, 5)));
+
+        // Positions 1, 6 and 11 of 16 bits
+        assertArrayEquals(new byte[]{0x42, 0x08}, filter.getBits());
+    }
+
+    @Test
+    public void put_wrapsPositionsAroundTheFilter() {
+        BloomFilter filter = new BloomFilter(2, 2);
+
+        filter.put(key(-1, 10));
+
+        // Position -1 wraps to 15, then 15 + 10 wraps to 9
+        assertArrayEquals(new byte[]{0x00, (byte) 0x82}, filter.getBits());
+    }
+
+    @Test
+    public void put_returnsFalseForKeyAlreadyAdded() {
+        BloomFilter filter = new BloomFilter(64, 4);
+
+        assertTrue(filter.put(key(12345, 67890)));
+        assertFalse(filter.put(key(12345, 67890)));
+    }
+
+    @Test
+    public void mightContain_findsAddedKeys() {
+        BloomFilter filter = new BloomFilter(256, 5);
+        for (int i = 0; i < 100; i++) {
+            filter.put(key(i * 7919, i * 104729 + 1));
+        }
+
+        for (int i = 0; i < 100; i++) {
+            assertTrue(filter.mightContain(key(i * 7919, i * 104729 + 1)));
+        }
+    }
+
+    @Test
+    public void mightContain_rejectsKeyWithUnsetBit() {
+        BloomFilter filter = new BloomFilter(2, 3);
+        filter.put(key(1, 5));
+
+        assertFalse(filter.mightContain(key(2, 5)));
+        assertFalse(new BloomFilter(2, 3).mightContain(key(1, 5)));
+    }
+
+    @Test
+    public void constructor_keepsGivenBits() {
+        byte[] bits = {0x42, 0x08};
+        BloomFilter filter = new BloomFilter(bits, 3);
+
+        assertSame(bits, filter.getBits());
+        assertEquals(3, filter.getHashCount());
+        assertTrue(filter.mightContain(key(1, 5)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_rejectsEmptyFilter() {
+        new BloomFilter(0, 3);
+    }
+}
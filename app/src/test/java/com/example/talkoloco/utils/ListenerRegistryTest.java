@@ -0,0 +1,176 @@
+package com.example.talkoloco.utils;
+
+import androidx.lifecycle.Lifecycle;
+import androidx.lifecycle.LifecycleOwner;
+
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.EventListener;
+import com.google.firebase.firestore.ListenerRegistration;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.QuerySnapshot;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * Local unit tests for the cursor handling of {@link ListenerRegistry}.
+ */
+public class ListenerRegistryTest {
+    private final Lifecycle lifecycle = mock(Lifecycle.class);
+    private final LifecycleOwner owner = mock(LifecycleOwner.class);
+    private final ListenerRegistration registration = mock(ListenerRegistration.class);
+    private final Query query = mock(Query.class);
+
+    // The cursor passed to each query built, and the listener attached to each
+    private final List<Date> cursors = new ArrayList<>();
+    private final List<EventListener<QuerySnapshot>> attached = new ArrayList<>();
+    private final List<QuerySnapshot> received = new ArrayList<>();
+
+    private ListenerRegistry registry;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        when(owner.getLifecycle()).thenReturn(lifecycle);
+        when(lifecycle.getCurrentState()).thenReturn(Lifecycle.State.STARTED);
+        when(query.addSnapshotListener(any(EventListener.class))).thenAnswer(invocation -> {
+            attached.add(invocation.getArgument(0));
+            return registration;
+        });
+        registry = new ListenerRegistry(owner);
+    }
+
+    private void register() {
+        registry.register("messages", cursor -> {
+            cursors.add(cursor);
+            return query;
+        }, (value, error) -> received.add(value));
+    }
+
+    private static QuerySnapshot snapshot(Date... sentAts) {
+        List<DocumentSnapshot> documents = new ArrayList<>();
+        for (Date sentAt : sentAts) {
+            DocumentSnapshot document = mock(DocumentSnapshot.class);
+            when(document.getDate(Constants.KEY_SENT_AT)).thenReturn(sentAt);
+            // A client timestamp far ahead, which must never become the cursor
+            when(document.getDate(Constants.KEY_TIMESTAMP)).thenReturn(new Date(Long.MAX_VALUE));
+            documents.add(document);
+        }
+        QuerySnapshot snapshot = mock(QuerySnapshot.class);
+        when(snapshot.getDocuments()).thenReturn(documents);
+        return snapshot;
+    }
+
+    private void deliver(QuerySnapshot snapshot) {
+        attached.get(attached.size() - 1).onEvent(snapshot, null);
+    }
+
+    private void restart() {
+        registry.onStop(owner);
+        registry.onStart(owner);
+    }
+
+    @Test
+    public void register_attachesWithoutCursorWhenStarted() {
+        register();
+
+        assertEquals(Arrays.asList((Date) null), cursors);
+        assertEquals(1, attached.size());
+    }
+
+    @Test
+    public void register_waitsForStart() {
+        when(lifecycle.getCurrentState()).thenReturn(Lifecycle.State.CREATED);
+        register();
+        assertTrue(attached.isEmpty());
+
+        registry.onStart(owner);
+
+        assertEquals(1, attached.size());
+    }
+
+    @Test
+    public void snapshots_reachTheListener() {
+        register();
+        QuerySnapshot snapshot = snapshot(new Date(100));
+
+        deliver(snapshot);
+
+        assertEquals(Arrays.asList(snapshot), received);
+    }
+
+    @Test
+    public void restart_resumesFromNewestSentAt() {
+        register();
+        deliver(snapshot(new Date(100), new Date(300), new Date(200)));
+
+        restart();
+
+        verify(registration).remove();
+        assertEquals(Arrays.asList(null, new Date(300)), cursors);
+    }
+
+    @Test
+    public void cursor_skipsWritesWithoutServerTime() {
+        register();
+        deliver(snapshot(new Date(100), null));
+
+        restart();
+
+        assertEquals(new Date(100), cursors.get(1));
+    }
+
+    @Test
+    public void cursor_staysWithoutAnyServerTime() {
+        register();
+        deliver(snapshot((Date) null));
+
+        restart();
+
+        assertNull(cursors.get(1));
+    }
+
+    @Test
+    public void cursor_neverMovesBack() {
+        register();
+        deliver(snapshot(new Date(300)));
+        deliver(snapshot(new Date(100), new Date(200)));
+
+        restart();
+
+        assertEquals(new Date(300), cursors.get(1));
+    }
+
+    @Test
+    public void register_replacesListenerUnderSameKey() {
+        register();
+        deliver(snapshot(new Date(300)));
+
+        register();
+
+        verify(registration).remove();
+        // The new listener starts over without the old one's cursor
+        assertEquals(Arrays.asList(null, null), cursors);
+    }
+
+    @Test
+    public void destroy_forgetsListeners() {
+        register();
+
+        registry.onDestroy(owner);
+        registry.onStart(owner);
+
+        verify(registration).remove();
+        verify(lifecycle).removeObserver(registry);
+        assertEquals(1, attached.size());
+    }
+}
@@ -0,0 +1,68 @@
+package com.example.talkoloco.utils;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link MessageEnvelope}.
+ */
+public class MessageEnvelopeTest {
+
+    private static byte[] filled(int length, int value) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) value);
+        return bytes;
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] bytes = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, bytes, first.length, second.length);
+        return bytes;
+    }
+
+    @Test
+    public void parse_readsHeaderWritten() {
+        byte[] iv = filled(12, 1);
+        byte[] recipientKey = filled(256, 2);
+        byte[] senderKey = filled(300, 3);
+        byte[] header = MessageEnvelope.header(iv, recipientKey, senderKey);
+        byte[] encoded = concat(header, filled(40, 4));
+
+        MessageEnvelope envelope = MessageEnvelope.parse(encoded);
+
+        assertArrayEquals(iv, envelope.iv);
+        assertArrayEquals(recipientKey, envelope.recipientKey);
+        assertArrayEquals(senderKey, envelope.senderKey);
+        assertSame(encoded, envelope.encoded);
+        assertEquals(header.length, envelope.headerLength);
+    }
+
+    @Test
+    public void header_startsWithVersion() {
+        byte[] header = MessageEnvelope.header(new byte[12], new byte[1], new byte[2]);
+
+        assertEquals(MessageEnvelope.VERSION_1, header[0]);
+        assertEquals(1 + 1 + 12 + 2 + 1 + 2 + 2, header.length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parse_rejectsUnknownVersion() {
+        byte[] encoded = MessageEnvelope.header(new byte[12], new byte[1], new byte[1]);
+        encoded[0] = 2;
+        MessageEnvelope.parse(encoded);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parse_rejectsTruncatedEnvelope() {
+        byte[] header = MessageEnvelope.header(new byte[12], new byte[256], new byte[256]);
+        MessageEnvelope.parse(Arrays.copyOf(header, header.length - 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parse_rejectsEmptyBytes() {
+        MessageEnvelope.parse(new byte[0]);
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.talkoloco.utils;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+import com.google.android.gms.tasks.Tasks;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link SingleFlight}.
+ */
+public class SingleFlightTest {
+
+    @Test
+    public void run_sharesInFlightTask() {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>();
+        TaskCompletionSource<String> source = new TaskCompletionSource<>();
+        AtomicInteger loads = new AtomicInteger();
+
+        Task<String> first = singleFlight.run("user", () -> {
+            loads.incrementAndGet();
+            return source.getTask();
+        });
+        Task<String> second = singleFlight.run("user", () -> {
+            loads.incrementAndGet();
+            return Tasks.forResult("other");
+        });
+
+        assertSame(first, second);
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void run_keepsKeysApart() {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>();
+
+        Task<String> first = singleFlight.run("first", () -> new TaskCompletionSource<String>().getTask());
+        Task<String> second = singleFlight.run("second", () -> new TaskCompletionSource<String>().getTask());
+
+        assertNotSame(first, second);
+    }
+
+    @Test
+    public void run_startsNewTaskAfterSuccess() {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>();
+        TaskCompletionSource<String> source = new TaskCompletionSource<>();
+
+        Task<String> first = singleFlight.run("user", source::getTask);
+        source.setResult("done");
+        Task<String> second = singleFlight.run("user", () -> new TaskCompletionSource<String>().getTask());
+
+        assertNotSame(first, second);
+    }
+
+    @Test
+    public void run_startsNewTaskAfterFailure() {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>();
+        TaskCompletionSource<String> source = new TaskCompletionSource<>();
+
+        Task<String> first = singleFlight.run("user", source::getTask);
+        source.setException(new IllegalStateException("offline"));
+        Task<String> second = singleFlight.run("user", () -> new TaskCompletionSource<String>().getTask());
+
+        assertNotSame(first, second);
+    }
+
+    @Test
+    public void run_doesNotKeepCompletedTask() {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>();
+        AtomicInteger loads = new AtomicInteger();
+
+        singleFlight.run("user", () -> {
+            loads.incrementAndGet();
+            return Tasks.forResult("cached");
+        });
+        singleFlight.run("user", () -> {
+            loads.incrementAndGet();
+            return Tasks.forResult("cached");
+        });
+
+        assertEquals(2, loads.get());
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.talkoloco.utils;
+
+import com.example.talkoloco.models.ChatMessages;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link SortedMessageBuffer}.
+ */
+public class SortedMessageBufferTest {
+
+    private static ChatMessages message(String messageId, long time) {
+        ChatMessages message = new ChatMessages("sender", "receiver", "text " + messageId,
+                null, new Date(time));
+        message.messageId = messageId;
+        return message;
+    }
+
+    private static void assertOrder(SortedMessageBuffer buffer, String... messageIds) {
+        List<ChatMessages> messages = buffer.snapshot();
+        assertEquals(messageIds.length, messages.size());
+        for (int i = 0; i < messageIds.length; i++) {
+            assertEquals(messageIds[i], messages.get(i).messageId);
+        }
+    }
+
+    @Test
+    public void insert_keepsTimestampOrder() {
+        SortedMessageBuffer buffer = new SortedMessageBuffer();
+        assertEquals(0, buffer.insert(message("b", 200)));
+        assertEquals(1, buffer.insert(message("d", 400)));
+        assertEquals(0, buffer.insert(message("a", 100)));
+        assertEquals(2, buffer.insert(message("c", 300)));
+
+        assertOrder(buffer, "a", "b", "c", "d");
+        assertEquals(new Date(100), buffer.getOldestDate());
+        assertEquals(new Date(400), buffer.getNewestDate());
+    }
+
+    @Test
+    public void insert_ordersEqualTimestampsById() {
+        SortedMessageBuffer buffer = new SortedMessageBuffer();
+        buffer.insert(message("m2", 100));
+        buffer.insert(message("m3", 100));
+        buffer.insert(message("m1", 100));
+
+        assertOrder(buffer, "m1", "m2", "m3");
+    }
+
+    @Test
+    public void insert_ignoresDuplicatesAndMissingTimestamps() {
+        SortedMessageBuffer buffer = new SortedMessageBuffer();
+        assertEquals(0, buffer.insert(message("a", 100)));
+        assertEquals(-1, buffer.insert(message("a", 500)));
+
+        ChatMessages undated = message("b", 0);
+        undated.dateObject = null;
+        assertEquals(-1, buffer.insert(undated));
+
+        assertEquals(1, buffer.size());
+        assertEquals(new Date(100), buffer.getById("a").dateObject);
+    }
+
+    @Test
+    public void insertAll_countsAddedMessages() {
+        SortedMessageBuffer buffer = new SortedMessageBuffer();
+        buffer.insert(message("b", 200));
+
+        int added = buffer.insertAll(Arrays.asList(message("c", 300), message("b", 200), message("a", 100)));
+
+        assertEquals(2, added);
+        assertOrder(buffer, "a", "b", "c");
+    }
+
+    @Test
+    public void replace_keepsPosition() {
+        SortedMessageBuffer buffer = new SortedMessageBuffer();
+        buffer.insertAll(Arrays.asList(message("a", 100), message("b", 200), message("c", 200),
+                message("d", 300)));
+
+        ChatMessages sent = buffer.getById("b").withPending(false);
+        assertEquals(1, buffer.replace(sent));
+        assertSame(sent, buffer.get(1));
+        assertSame(sent, buffer.getById("b"));
+        assertOrder(buffer, "a", "b", "c", "d");
+
+        assertEquals(3, buffer.replace(buffer.getById("d").withPending(true)));
+        assertTrue(buffer.get(3).isPending);
+    }
+
+    @Test
+    public void replace_returnsMinusOneForUnknownMessage() {
+        SortedMessageBuffer buffer = new SortedMessageBuffer();
+        buffer.insert(message("a", 100));
+
+        assertEquals(-1, buffer.replace(message("x", 100)));
+        assertOrder(buffer, "a");
+    }
+
+    @Test
+    public void clear_forgetsMessages() {
+        SortedMessageBuffer buffer = new SortedMessageBuffer();
+        buffer.insert(message("a", 100));
+        buffer.clear();
+
+        assertTrue(buffer.isEmpty());
+        assertNull(buffer.getOldestDate());
+        assertEquals(0, buffer.insert(message("a", 100)));
+    }
+}